@@ -0,0 +1,653 @@
+package com.ctminsights.streamshield.util;
+
+import android.util.Log;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Fixed capacity buffer written once by a single producer (the capture thread) and read by any number of consumers.
+ * Each consumer registers a {@link Cursor}, which is an {@link InputStream} with its own reading position. The data
+ * is written only once in the buffer, whatever the number of consumers, and the slowest cursor defines which part of
+ * the buffer can be reused.
+ * <p>
+ * When a cursor is too far behind, its {@link BufferOverflowPolicy} defines whether the producer waits for it, whether
+ * it loses its oldest data, or whether the new data is dropped. Each cursor has its own policy, so that a consumer that
+ * must not lose anything, such as a recording, can hold the producer while the others stay close to real time. The
+ * cursors dropping their oldest data are moved forward first. The new data is only dropped for the cursors dropping
+ * the newest data: as the data is written only once, it replaces their unread data, so such a cursor is moved past the
+ * data of the current write and only receives the data written after it. The producer then waits for the blocking
+ * cursors.
+ */
+@SuppressWarnings("unused")
+public class AudioBroadcastBuffer {
+
+    private static final String TAG = AudioBroadcastBuffer.class.getSimpleName();
+
+    private static final Cursor[] NO_CURSORS = new Cursor[0];
+
+    /**
+     * Receive the data read in place by {@link Cursor#read(DataConsumer, int)}.
+     */
+    public interface DataConsumer {
+
+        /**
+         * Called with a part of the data read, directly in the buffer.
+         *
+         * @param data   the buffer, only valid during the call. It must not be modified.
+         * @param offset the position of the first byte.
+         * @param length the number of bytes.
+         */
+        void onData(@NotNull byte[] data, int offset, int length);
+    }
+
+    // The buffer, its size is a power of two so that positions can be computed with a mask
+    private final byte[] buffer;
+    private final int mask;
+
+    // What to do when the buffer is full, for the cursors registered without a policy of their own
+    private final BufferOverflowPolicy overflowPolicy;
+    private final int frameSize;
+
+    // The writing sequence. It is never reset, the position in the buffer is (sequence & mask).
+    private final AtomicLong writeSequence = new AtomicLong(0);
+
+    // The registered cursors. The array is replaced on each registration so that the producer can iterate without lock.
+    private volatile Cursor[] cursors = NO_CURSORS;
+    private final Object cursorsMutex = new Object();
+
+    // The producer parked while waiting for space
+    private volatile Thread waitingWriter = null;
+
+    // Indicate that the stream is finished
+    private volatile boolean endOfStreamReached = false;
+
+    /**
+     * Create a new buffer.
+     *
+     * @param capacity       the minimal capacity of the buffer. It is rounded up to the next power of two.
+     * @param overflowPolicy what to do when a cursor is too far behind the producer, unless it has its own policy.
+     * @param frameSize      the size in bytes of an audio frame. Dropped data is always a multiple of this size.
+     */
+    public AudioBroadcastBuffer(final int capacity, final @NotNull BufferOverflowPolicy overflowPolicy, final int frameSize) {
+        if (capacity <= 0 || capacity > (1 << 30)) {
+            final String msg = String.format(Locale.getDefault(), "Unable to create a broadcast buffer with a capacity of %d bytes", capacity);
+            throw new IllegalArgumentException(msg);
+        }
+
+        final int size = Integer.highestOneBit(capacity) == capacity ? capacity : Integer.highestOneBit(capacity) << 1;
+
+        if (frameSize <= 0 || frameSize > size) {
+            final String msg = String.format(Locale.getDefault(), "Unable to use a frame size of %d bytes with a capacity of %d bytes", frameSize, size);
+            throw new IllegalArgumentException(msg);
+        }
+
+        this.buffer = new byte[size];
+        this.mask = size - 1;
+        this.overflowPolicy = overflowPolicy;
+        this.frameSize = frameSize;
+    }
+
+    /* ---------------------------------------------------------- */
+    /*                                                            */
+    /*                PRODUCER FUNCTIONS                          */
+    /*                                                            */
+    /* ---------------------------------------------------------- */
+
+    /**
+     * Add some bytes of a byte buffer, starting at its position. The position of the byte buffer is not modified, so
+     * that the data can also be sent somewhere else.
+     *
+     * @param source the data to add.
+     * @param length the number of bytes to add.
+     * @implNote This function must only be called by a single producer thread.
+     */
+    public void write(final @NotNull ByteBuffer source, final int length) {
+        final int startPosition = source.position();
+        if (length < 0 || length > source.remaining()) {
+            final String msg = String.format(Locale.getDefault(), "Unable to add %d bytes as source has only %d bytes remaining", length, source.remaining());
+            throw new IndexOutOfBoundsException(msg);
+        }
+
+        int remaining = length;
+        while (remaining > 0) {
+            final long write = writeSequence.get();
+            final int toCopy = reserve(write, remaining);
+            if (toCopy <= 0) {
+                countDroppedBytes(remaining);
+                break;
+            }
+
+            final int position = (int) (write & mask);
+            final int firstPart = Math.min(toCopy, buffer.length - position);
+
+            source.get(buffer, position, firstPart);
+            if (firstPart < toCopy) {
+                source.get(buffer, 0, toCopy - firstPart);
+            }
+
+            publish(write, write + toCopy);
+            remaining -= toCopy;
+        }
+
+        source.position(startPosition);
+    }
+
+    /**
+     * Add a bytes array to the buffer.
+     *
+     * @param bytes  the bytes to add.
+     * @param srcPos the starting position in the bytes to  add.
+     * @param length the number of bytes to add.
+     * @implNote This function must only be called by a single producer thread.
+     */
+    public void write(final @NotNull byte[] bytes, int srcPos, final int length) {
+        if (srcPos < 0 || length < 0 || srcPos + length > bytes.length) {
+            final String msg = String.format(Locale.getDefault(), "Unable to add %d bytes from index %d as source is only %d len", length, srcPos, bytes.length);
+            throw new IndexOutOfBoundsException(msg);
+        }
+
+        int remaining = length;
+        while (remaining > 0) {
+            final long write = writeSequence.get();
+            final int toCopy = reserve(write, remaining);
+            if (toCopy <= 0) {
+                countDroppedBytes(remaining);
+                break;
+            }
+
+            final int position = (int) (write & mask);
+            final int firstPart = Math.min(toCopy, buffer.length - position);
+
+            System.arraycopy(bytes, srcPos, buffer, position, firstPart);
+            if (firstPart < toCopy) {
+                System.arraycopy(bytes, srcPos + firstPart, buffer, 0, toCopy - firstPart);
+            }
+
+            publish(write, write + toCopy);
+            srcPos += toCopy;
+            remaining -= toCopy;
+        }
+    }
+
+    /**
+     * Define that the end of stream has been reached. All the cursors will return -1 once they have read the
+     * remaining data.
+     */
+    public void setEndOfStreamReached() {
+        this.endOfStreamReached = true;
+
+        for (final Cursor cursor : cursors) {
+            cursor.unparkReader();
+        }
+    }
+
+    /**
+     * Set the buffer in its initial state, so that it can be used for a new stream. The registered cursors are kept
+     * and positioned at the current end of the data.
+     */
+    public void restart() {
+        endOfStreamReached = false;
+
+        final long write = writeSequence.get();
+        for (final Cursor cursor : cursors) {
+            cursor.readSequence.set(write);
+        }
+
+        unparkWriter();
+    }
+
+    /**
+     * Get the size of the allocated underlying buffer.
+     *
+     * @return the actual size of the allocated buffer.
+     */
+    public int getBufferSize() {
+        return buffer.length;
+    }
+
+    /* ---------------------------------------------------------- */
+    /*                                                            */
+    /*                CURSORS MANAGEMENT                          */
+    /*                                                            */
+    /* ---------------------------------------------------------- */
+
+    /**
+     * Register a new consumer, with the overflow policy of the buffer. The returned cursor only receives the data
+     * written after its registration.
+     *
+     * @return the cursor to read the data.
+     */
+    public @NotNull Cursor register() {
+        return register(overflowPolicy);
+    }
+
+    /**
+     * Register a new consumer. The returned cursor only receives the data written after its registration.
+     *
+     * @param overflowPolicy what to do when this cursor is too far behind the producer.
+     * @return the cursor to read the data.
+     */
+    public @NotNull Cursor register(final @NotNull BufferOverflowPolicy overflowPolicy) {
+        final Cursor cursor = new Cursor(writeSequence.get(), overflowPolicy);
+
+        synchronized (cursorsMutex) {
+            final Cursor[] updated = Arrays.copyOf(cursors, cursors.length + 1);
+            updated[cursors.length] = cursor;
+            cursors = updated;
+        }
+
+        return cursor;
+    }
+
+    /**
+     * Unregister a consumer. The cursor does not hold back the producer anymore and its reads will return -1.
+     *
+     * @param cursor the cursor to unregister.
+     */
+    public void unregister(final @NotNull Cursor cursor) {
+        synchronized (cursorsMutex) {
+            final Cursor[] current = cursors;
+            for (int i = 0; i < current.length; i++) {
+                if (current[i] == cursor) {
+                    final Cursor[] updated = new Cursor[current.length - 1];
+                    System.arraycopy(current, 0, updated, 0, i);
+                    System.arraycopy(current, i + 1, updated, i, current.length - i - 1);
+                    cursors = updated;
+                    break;
+                }
+            }
+        }
+
+        cursor.closed = true;
+        cursor.unparkReader();
+
+        // The removed cursor may have been the one holding the producer
+        unparkWriter();
+    }
+
+    /**
+     * Get the number of registered consumers.
+     *
+     * @return the number of cursors.
+     */
+    public int getCursorCount() {
+        return cursors.length;
+    }
+
+    /* ---------------------------------------------------------- */
+    /*                                                            */
+    /*                INTERNAL FUNCTIONS                          */
+    /*                                                            */
+    /* ---------------------------------------------------------- */
+
+    /**
+     * Ensure there is some space for writing, by applying the overflow policies of the lagging cursors.
+     *
+     * @return the number of bytes that can be written, 0 if the data must be dropped.
+     */
+    private int reserve(final long write, final int length) {
+        // The end of the data of the current write, skipped by the cursors dropping the newest data
+        final long end = write + length;
+        final int largestWrite = buffer.length - buffer.length % frameSize;
+        final int wanted = Math.min(length, largestWrite);
+
+        while (true) {
+            final Cursor[] current = cursors;
+
+            // The sequence the cursors must have reached for the data to fit
+            final long required = write + wanted - buffer.length;
+
+            long slowest = write;
+            boolean moved = true;
+            for (final Cursor cursor : current) {
+                final long read = cursor.readSequence.get();
+
+                if (read < required && cursor.overflowPolicy == BufferOverflowPolicy.DROP_OLDEST) {
+                    // Move the cursor forward. It may be reading at the same time, so the update is done in the same
+                    // way as when it reads, and checked again if it has moved.
+                    final long target = Math.min(write, read + roundUpToFrame((int) (required - read)));
+                    if (cursor.readSequence.compareAndSet(read, target)) {
+                        cursor.droppedBytes += target - read;
+                    } else {
+                        moved = false;
+                    }
+                    slowest = Math.min(slowest, target);
+                    continue;
+                }
+
+                if (read < required && cursor.overflowPolicy == BufferOverflowPolicy.DROP_NEWEST) {
+                    // The new data does not fit and overwrites the oldest unread data: the cursor loses its unread
+                    // data, and the data of the current write is skipped once published
+                    if (cursor.readSequence.compareAndSet(read, write)) {
+                        cursor.droppedBytes += write - read;
+                        cursor.skipSequence = end;
+                    } else {
+                        moved = false;
+                    }
+                    continue;
+                }
+
+                slowest = Math.min(slowest, read);
+            }
+
+            if (!moved) {
+                continue;
+            }
+
+            final int free = buffer.length - (int) (write - slowest);
+            final int toCopy = Math.min(wanted, free);
+
+            // Only the blocking cursors can leave less space than wanted
+            if (toCopy > 0) {
+                return toCopy;
+            }
+
+            // Wait for the blocking cursors to free some space
+            waitForSpace(write);
+
+            if (endOfStreamReached) {
+                return 0;
+            }
+        }
+    }
+
+    private void publish(final long write, final long sequence) {
+        writeSequence.set(sequence);
+        skipDroppedData(write, sequence);
+
+        for (final Cursor cursor : cursors) {
+            cursor.unparkReader();
+        }
+    }
+
+    /**
+     * Move the cursors dropping the newest data past the data just published, up to the end of the write that did not
+     * fit in them.
+     */
+    private void skipDroppedData(final long write, final long sequence) {
+        for (final Cursor cursor : cursors) {
+            if (cursor.skipSequence <= write) {
+                continue;
+            }
+
+            // A cursor that has already started to read the new data keeps it, so that it never gets a partial frame
+            final long target = Math.min(sequence, cursor.skipSequence);
+            if (cursor.readSequence.compareAndSet(write, target)) {
+                cursor.droppedBytes += target - write;
+            } else {
+                cursor.skipSequence = 0;
+            }
+        }
+    }
+
+    private void countDroppedBytes(final int length) {
+        for (final Cursor cursor : cursors) {
+            cursor.droppedBytes += length;
+        }
+    }
+
+    private int roundUpToFrame(final int length) {
+        final int remainder = length % frameSize;
+        return remainder == 0 ? length : length + frameSize - remainder;
+    }
+
+    private void waitForSpace(final long write) {
+        waitingWriter = Thread.currentThread();
+
+        // Check again after having published the waiting thread, so that no wake-up can be lost
+        boolean full = false;
+        for (final Cursor cursor : cursors) {
+            if (cursor.overflowPolicy == BufferOverflowPolicy.BLOCK && write - cursor.readSequence.get() == buffer.length) {
+                full = true;
+                break;
+            }
+        }
+
+        if (full && !endOfStreamReached) {
+            LockSupport.park(this);
+        }
+
+        waitingWriter = null;
+    }
+
+    private void unparkWriter() {
+        final Thread writer = waitingWriter;
+        if (writer != null) {
+            LockSupport.unpark(writer);
+        }
+    }
+
+    /**
+     * The reading side of a consumer. It must only be used by a single thread.
+     */
+    public final class Cursor extends InputStream {
+
+        // The reading sequence. It may be moved forward by the producer when dropping the oldest data.
+        private final AtomicLong readSequence;
+
+        // What to do when this cursor is too far behind the producer
+        private final BufferOverflowPolicy overflowPolicy;
+
+        // The consumer parked while waiting for data
+        private volatile Thread waitingReader = null;
+
+        // Indicate that this consumer does not want any more data
+        private volatile boolean endOfStreamReached = false;
+        private volatile boolean closed = false;
+
+        // The statistics. Only updated by the producer.
+        private volatile long droppedBytes = 0;
+
+        // The end of the data skipped by a cursor dropping the newest data. Only used by the producer.
+        private long skipSequence = 0;
+
+        // Temporary array for the single byte read
+        private final byte[] singleByte = new byte[1];
+
+        private Cursor(final long startSequence, final @NotNull BufferOverflowPolicy overflowPolicy) {
+            this.readSequence = new AtomicLong(startSequence);
+            this.overflowPolicy = overflowPolicy;
+        }
+
+        public @NotNull BufferOverflowPolicy getOverflowPolicy() {
+            return overflowPolicy;
+        }
+
+        @Override
+        public int read() {
+            final int bytesRead = readAvailable(singleByte, 0, 1);
+            return bytesRead <= 0 ? -1 : singleByte[0] & 0xff;
+        }
+
+        /**
+         * Reads up to <code>len</code> bytes of data. This method blocks until at least one byte is available, the end
+         * of the stream is detected or the cursor is closed. Then all the bytes available, up to <code>len</code>, are
+         * copied at once.
+         *
+         * @param b   the buffer into which the data is read.
+         * @param off the start offset in array <code>b</code> at which the data is written.
+         * @param len the maximum number of bytes to read.
+         * @return the total number of bytes read into the buffer, or <code>-1</code> if there is no more data because
+         * the end of the stream has been reached.
+         * @throws IOException If the cursor has been closed.
+         */
+        @Override
+        public int read(final @NotNull byte[] b, int off, int len) throws IOException {
+            if (closed) {
+                throw new IOException("Cursor is closed");
+            }
+
+            if (off < 0 || len < 0 || off + len > b.length) {
+                final String msg = String.format(Locale.getDefault(), "Unable to read %d bytes at index %d as target is only %d len", len, off, b.length);
+                throw new IndexOutOfBoundsException(msg);
+            }
+
+            if (len == 0) {
+                return 0;
+            }
+
+            return readAvailable(b, off, len);
+        }
+
+        /**
+         * Read the data in place, without copying it: the consumer is given the available bytes, up to maxLength,
+         * directly in the buffer, in one part or two when the data wraps around its end. This method blocks until at
+         * least one byte is available, the end of the stream is detected or the cursor is closed.
+         *
+         * @param consumer  the receiver of the data.
+         * @param maxLength the maximum number of bytes to read.
+         * @return the number of bytes given to the consumer, or <code>-1</code> if there is no more data because the
+         * end of the stream has been reached.
+         * @throws IOException If the cursor has been closed.
+         * @implNote With the policy {@link BufferOverflowPolicy#DROP_OLDEST}, the data may be overwritten by newer
+         * data while the consumer reads it, if this cursor is a whole buffer behind the producer.
+         */
+        public int read(final @NotNull DataConsumer consumer, final int maxLength) throws IOException {
+            if (closed) {
+                throw new IOException("Cursor is closed");
+            }
+
+            if (maxLength < 0) {
+                final String msg = String.format(Locale.getDefault(), "Unable to read %d bytes", maxLength);
+                throw new IllegalArgumentException(msg);
+            }
+
+            if (maxLength == 0) {
+                return 0;
+            }
+
+            long read;
+            int available;
+            while ((available = (int) (writeSequence.get() - (read = readSequence.get()))) == 0) {
+                // If the there is no data and the stream is finished, fine
+                if (isFinished()) {
+                    return -1;
+                }
+
+                waitForData();
+            }
+
+            final int toRead = Math.min(available, maxLength);
+            final int position = (int) (read & mask);
+            final int firstPart = Math.min(toRead, buffer.length - position);
+
+            consumer.onData(buffer, position, firstPart);
+            if (firstPart < toRead) {
+                consumer.onData(buffer, 0, toRead - firstPart);
+            }
+
+            // Release the space to the writer. The data cannot be given again, so if the writer has dropped some of it in
+            // the meantime, only move past the data given.
+            final long end = read + toRead;
+            long current = read;
+            while (current < end && !readSequence.compareAndSet(current, end)) {
+                current = readSequence.get();
+            }
+
+            unparkWriter();
+
+            return toRead;
+        }
+
+        @Override
+        public int available() {
+            return (int) (writeSequence.get() - readSequence.get());
+        }
+
+        /**
+         * Unregister the cursor from its buffer.
+         */
+        @Override
+        public void close() {
+            Log.d(TAG, "Closing a cursor");
+
+            unregister(this);
+        }
+
+        /**
+         * Define that this consumer does not want more data: it will return -1 once it has read the remaining data.
+         */
+        public void setEndOfStreamReached() {
+            this.endOfStreamReached = true;
+
+            unparkReader();
+        }
+
+        /**
+         * Get the number of bytes this cursor has missed because of the overflow policy.
+         *
+         * @return the number of dropped bytes.
+         */
+        public long getDroppedBytes() {
+            return droppedBytes;
+        }
+
+        private boolean isFinished() {
+            return endOfStreamReached || closed || AudioBroadcastBuffer.this.endOfStreamReached;
+        }
+
+        private int readAvailable(final @NotNull byte[] b, int off, int len) {
+            int toCopy;
+            while (true) {
+                final long read = readSequence.get();
+                final int available = (int) (writeSequence.get() - read);
+
+                if (available == 0) {
+                    // If the there is no data and the stream is finished, fine
+                    if (isFinished()) {
+                        return -1;
+                    }
+
+                    waitForData();
+                    continue;
+                }
+
+                toCopy = Math.min(available, len);
+
+                final int position = (int) (read & mask);
+                final int firstPart = Math.min(toCopy, buffer.length - position);
+
+                System.arraycopy(buffer, position, b, off, firstPart);
+                if (firstPart < toCopy) {
+                    System.arraycopy(buffer, 0, b, off + firstPart, toCopy - firstPart);
+                }
+
+                // Release the space to the writer. If the writer has dropped the data being copied, it may have been
+                // overwritten, so just read again.
+                if (readSequence.compareAndSet(read, read + toCopy)) {
+                    break;
+                }
+            }
+
+            unparkWriter();
+
+            return toCopy;
+        }
+
+        private void waitForData() {
+            waitingReader = Thread.currentThread();
+
+            // Check again after having published the waiting thread, so that no wake-up can be lost
+            if (writeSequence.get() == readSequence.get() && !isFinished()) {
+                LockSupport.park(this);
+            }
+
+            waitingReader = null;
+        }
+
+        private void unparkReader() {
+            final Thread reader = waitingReader;
+            if (reader != null) {
+                LockSupport.unpark(reader);
+            }
+        }
+    }
+}
@@ -0,0 +1,407 @@
+package com.ctminsights.streamshield.util;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Chain of filters cleaning up 16 bits mono audio before the recognition: removal of the DC offset and of the hum,
+ * levelling of the volume, attenuation of the background between the words. The stages are fused: each sample goes
+ * through the whole chain in a single pass over the block, which is modified in place, so there is no intermediate
+ * block and no allocation after the creation.
+ * <p>
+ * The stages keep their state from one block to the next, so the blocks can have any size. The time spent on each
+ * block is measured, and can be read from any thread. The instance must only be used by a single thread.
+ */
+public class AudioPreprocessor {
+
+    /**
+     * A filter of the chain, working on one sample at a time, as a float in the range of the 16 bits samples.
+     */
+    public interface Stage {
+
+        /**
+         * Filter a sample.
+         *
+         * @param sample the sample, possibly already out of the 16 bits range because of a previous stage.
+         * @return the filtered sample, clipped to the 16 bits range at the end of the chain only.
+         */
+        float process(float sample);
+
+        /**
+         * Forget the history, before a new stream.
+         */
+        void reset();
+    }
+
+    /**
+     * Create the stages of a chain, one per channel and per session, for their own state.
+     */
+    public interface StageFactory {
+
+        @NotNull Stage create(int sampleRate);
+    }
+
+    // Highest level of a 16 bits sample, for the conversions from dBFS
+    private static final float FULL_SCALE = 32768f;
+
+    private final int sampleRate;
+    private final Stage[] stages;
+
+    // Cost of the processing, written by the processing thread only
+    private volatile long processedBlocks = 0;
+    private volatile long processedSamples = 0;
+    private volatile long totalNanos = 0;
+    private volatile long lastBlockNanos = 0;
+
+    /**
+     * Create a chain.
+     *
+     * @param sampleRate the sample rate of the audio.
+     * @param factories  the stages, in processing order.
+     */
+    public AudioPreprocessor(final int sampleRate, final @NotNull List<StageFactory> factories) {
+        if (sampleRate <= 0) {
+            final String msg = String.format(Locale.getDefault(), "Invalid sample rate: %d Hz", sampleRate);
+            throw new IllegalArgumentException(msg);
+        }
+
+        this.sampleRate = sampleRate;
+        this.stages = new Stage[factories.size()];
+        for (int i = 0; i < stages.length; i++) {
+            stages[i] = factories.get(i).create(sampleRate);
+        }
+    }
+
+    /**
+     * Remove the DC offset and the low frequency hum, with a second order high-pass filter.
+     *
+     * @param cutoffHz the cutoff frequency, usually between 60 and 120 Hz for the speech.
+     * @return the factory of the stage.
+     */
+    public static @NotNull StageFactory highPass(final double cutoffHz) {
+        if (cutoffHz <= 0) {
+            final String msg = String.format(Locale.getDefault(), "Invalid cutoff frequency: %f Hz", cutoffHz);
+            throw new IllegalArgumentException(msg);
+        }
+
+        return sampleRate -> new HighPassFilter(sampleRate, cutoffHz);
+    }
+
+    /**
+     * Bring the level of the speech to a target, so that the quiet and the loud callers reach the decoder at the same
+     * level. The gain only adapts while the level is above the noise, so that the background is not amplified
+     * between the words.
+     *
+     * @param targetDbfs the level of the speech, in dBFS, for example -20.
+     * @param maxGainDb  the highest amplification, in dB.
+     * @return the factory of the stage.
+     */
+    public static @NotNull StageFactory automaticGainControl(final double targetDbfs, final double maxGainDb) {
+        if (targetDbfs >= 0 || maxGainDb < 0) {
+            final String msg = String.format(Locale.getDefault(), "Invalid automatic gain control settings (target: %f dBFS, max gain: %f dB)", targetDbfs, maxGainDb);
+            throw new IllegalArgumentException(msg);
+        }
+
+        return sampleRate -> new AutomaticGainControl(sampleRate, targetDbfs, maxGainDb);
+    }
+
+    /**
+     * Attenuate the audio while its level stays below a threshold, such as the background between the words.
+     *
+     * @param thresholdDbfs  the level under which the gate closes, in dBFS, for example -50.
+     * @param attenuationDb  the attenuation of the closed gate, in dB. The audio is not muted, so that the decoder
+     *                       still hears a natural background.
+     * @return the factory of the stage.
+     */
+    public static @NotNull StageFactory noiseGate(final double thresholdDbfs, final double attenuationDb) {
+        if (thresholdDbfs >= 0 || attenuationDb < 0) {
+            final String msg = String.format(Locale.getDefault(), "Invalid noise gate settings (threshold: %f dBFS, attenuation: %f dB)", thresholdDbfs, attenuationDb);
+            throw new IllegalArgumentException(msg);
+        }
+
+        return sampleRate -> new NoiseGate(sampleRate, thresholdDbfs, attenuationDb);
+    }
+
+    /**
+     * Filter a block of audio in place.
+     *
+     * @param samples the samples.
+     * @param srcPos  the position of the first sample.
+     * @param count   the number of samples.
+     */
+    public void process(final @NotNull short[] samples, final int srcPos, final int count) {
+        if (srcPos < 0 || count < 0 || srcPos + count > samples.length) {
+            final String msg = String.format(Locale.getDefault(), "Invalid block (position: %d, count: %d, length: %d)", srcPos, count, samples.length);
+            throw new IndexOutOfBoundsException(msg);
+        }
+
+        final long startTime = System.nanoTime();
+        final Stage[] chain = stages;
+        final int end = srcPos + count;
+
+        for (int i = srcPos; i < end; i++) {
+            float sample = samples[i];
+            for (final Stage stage : chain) {
+                sample = stage.process(sample);
+            }
+
+            // Clip once, at the end of the chain
+            if (sample >= Short.MAX_VALUE) {
+                samples[i] = Short.MAX_VALUE;
+            } else if (sample <= Short.MIN_VALUE) {
+                samples[i] = Short.MIN_VALUE;
+            } else {
+                samples[i] = (short) Math.round(sample);
+            }
+        }
+
+        final long elapsed = System.nanoTime() - startTime;
+        lastBlockNanos = elapsed;
+        totalNanos += elapsed;
+        processedSamples += count;
+        processedBlocks++;
+    }
+
+    /**
+     * Forget the history of the stages, before a new stream. The cost statistics are kept.
+     */
+    public void reset() {
+        for (final Stage stage : stages) {
+            stage.reset();
+        }
+    }
+
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    public int getStageCount() {
+        return stages.length;
+    }
+
+    public long getProcessedBlocks() {
+        return processedBlocks;
+    }
+
+    public long getLastBlockNanos() {
+        return lastBlockNanos;
+    }
+
+    /**
+     * Get the average time spent on a block.
+     *
+     * @return the average time, in nanoseconds, or 0 if no block has been processed.
+     */
+    public long getAverageBlockNanos() {
+        final long blocks = processedBlocks;
+        return blocks == 0 ? 0 : totalNanos / blocks;
+    }
+
+    /**
+     * Get the time spent on the processing, compared to the duration of the audio processed.
+     *
+     * @return the ratio, or 0 if no audio has been processed.
+     */
+    public double getRealTimeFactor() {
+        final long samples = processedSamples;
+        return samples == 0 ? 0 : totalNanos / 1_000_000_000.0 * sampleRate / samples;
+    }
+
+    /* ---------------------------------------------------------- */
+    /*                                                            */
+    /*                INTERNAL FUNCTIONS                          */
+    /*                                                            */
+    /* ---------------------------------------------------------- */
+
+    private static float fromDbfs(final double dbfs) {
+        return (float) (FULL_SCALE * Math.pow(10, dbfs / 20));
+    }
+
+    /**
+     * Get the coefficient of a one pole smoothing reaching 63% of a step after a time.
+     */
+    private static float smoothingCoefficient(final int sampleRate, final double timeMillis) {
+        return (float) (1 - Math.exp(-1000.0 / (timeMillis * sampleRate)));
+    }
+
+    /**
+     * Butterworth high-pass biquad (Q = 0.707), in transposed direct form II.
+     */
+    private static final class HighPassFilter implements Stage {
+
+        private final float b0;
+        private final float b1;
+        private final float b2;
+        private final float a1;
+        private final float a2;
+
+        private float z1 = 0;
+        private float z2 = 0;
+
+        HighPassFilter(final int sampleRate, final double cutoffHz) {
+            if (cutoffHz >= sampleRate / 2.0) {
+                final String msg = String.format(Locale.getDefault(), "Cutoff frequency %f Hz above the Nyquist frequency at %d Hz", cutoffHz, sampleRate);
+                throw new IllegalArgumentException(msg);
+            }
+
+            final double omega = 2 * Math.PI * cutoffHz / sampleRate;
+            final double alpha = Math.sin(omega) / (2 * Math.sqrt(0.5));
+            final double cos = Math.cos(omega);
+            final double a0 = 1 + alpha;
+
+            this.b0 = (float) ((1 + cos) / 2 / a0);
+            this.b1 = (float) (-(1 + cos) / a0);
+            this.b2 = b0;
+            this.a1 = (float) (-2 * cos / a0);
+            this.a2 = (float) ((1 - alpha) / a0);
+        }
+
+        @Override
+        public float process(final float sample) {
+            final float output = b0 * sample + z1;
+            z1 = b1 * sample - a1 * output + z2;
+            z2 = b2 * sample - a2 * output;
+            return output;
+        }
+
+        @Override
+        public void reset() {
+            z1 = 0;
+            z2 = 0;
+        }
+    }
+
+    /**
+     * Gain following the level of the speech: the power is smoothed over a few tens of milliseconds, and the gain
+     * moves quickly down on the loud parts and slowly up on the quiet ones.
+     */
+    private static final class AutomaticGainControl implements Stage {
+
+        // Time over which the power is averaged
+        private static final double LEVEL_TIME_MS = 50;
+
+        // Time for reducing the gain on a loud part, and for raising it on a quiet one
+        private static final double GAIN_ATTACK_MS = 5;
+        private static final double GAIN_RELEASE_MS = 1000;
+
+        // Level under which the audio is considered as noise, and the gain is kept
+        private static final double NOISE_LEVEL_DBFS = -55;
+
+        // Interval of the update of the target gain, which needs a square root
+        private static final int UPDATE_MS = 1;
+
+        private final float targetLevel;
+        private final float maxGain;
+        private final float noisePower;
+        private final float levelCoefficient;
+        private final float attackCoefficient;
+        private final float releaseCoefficient;
+        private final int updateSamples;
+
+        private float power = 0;
+        private float gain = 1;
+        private float targetGain = 1;
+        private int samplesToUpdate = 0;
+
+        AutomaticGainControl(final int sampleRate, final double targetDbfs, final double maxGainDb) {
+            final float noiseLevel = fromDbfs(NOISE_LEVEL_DBFS);
+
+            this.targetLevel = fromDbfs(targetDbfs);
+            this.maxGain = (float) Math.pow(10, maxGainDb / 20);
+            this.noisePower = noiseLevel * noiseLevel;
+            this.levelCoefficient = smoothingCoefficient(sampleRate, LEVEL_TIME_MS);
+            this.attackCoefficient = smoothingCoefficient(sampleRate, GAIN_ATTACK_MS);
+            this.releaseCoefficient = smoothingCoefficient(sampleRate, GAIN_RELEASE_MS);
+            this.updateSamples = Math.max(1, sampleRate * UPDATE_MS / 1000);
+        }
+
+        @Override
+        public float process(final float sample) {
+            power += (sample * sample - power) * levelCoefficient;
+
+            if (--samplesToUpdate <= 0) {
+                samplesToUpdate = updateSamples;
+                if (power > noisePower) {
+                    // The target applies to the RMS level, not to the peaks
+                    targetGain = Math.min(maxGain, targetLevel / (float) Math.sqrt(power));
+                }
+            }
+
+            gain += (targetGain - gain) * (targetGain < gain ? attackCoefficient : releaseCoefficient);
+            return sample * gain;
+        }
+
+        @Override
+        public void reset() {
+            power = 0;
+            gain = 1;
+            targetGain = 1;
+            samplesToUpdate = 0;
+        }
+    }
+
+    /**
+     * Gate following the peak level: it opens at once when the level rises above the threshold, and closes smoothly
+     * after a hold time below it, so that the end of the words is kept.
+     */
+    private static final class NoiseGate implements Stage {
+
+        // Time for the peak level to fall
+        private static final double LEVEL_RELEASE_MS = 20;
+
+        // Time the gate stays open after the level falls under the threshold
+        private static final int HOLD_MS = 100;
+
+        // Time for opening and closing the gate
+        private static final double OPEN_MS = 1;
+        private static final double CLOSE_MS = 50;
+
+        private final float threshold;
+        private final float closedGain;
+        private final float levelCoefficient;
+        private final float openCoefficient;
+        private final float closeCoefficient;
+        private final int holdSamples;
+
+        private float level = 0;
+        private float gain = 1;
+        private int holdLeft = 0;
+
+        NoiseGate(final int sampleRate, final double thresholdDbfs, final double attenuationDb) {
+            this.threshold = fromDbfs(thresholdDbfs);
+            this.closedGain = (float) Math.pow(10, -attenuationDb / 20);
+            this.levelCoefficient = smoothingCoefficient(sampleRate, LEVEL_RELEASE_MS);
+            this.openCoefficient = smoothingCoefficient(sampleRate, OPEN_MS);
+            this.closeCoefficient = smoothingCoefficient(sampleRate, CLOSE_MS);
+            this.holdSamples = sampleRate * HOLD_MS / 1000;
+        }
+
+        @Override
+        public float process(final float sample) {
+            final float magnitude = Math.abs(sample);
+            level = magnitude > level ? magnitude : level + (magnitude - level) * levelCoefficient;
+
+            if (level >= threshold) {
+                holdLeft = holdSamples;
+            } else if (holdLeft > 0) {
+                holdLeft--;
+            }
+
+            if (holdLeft > 0) {
+                gain += (1 - gain) * openCoefficient;
+            } else {
+                gain += (closedGain - gain) * closeCoefficient;
+            }
+            return sample * gain;
+        }
+
+        @Override
+        public void reset() {
+            level = 0;
+            gain = 1;
+            holdLeft = 0;
+        }
+    }
+}
@@ -0,0 +1,228 @@
+package com.ctminsights.streamshield.util;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Cut the audio of a channel into segments at the silences, for the {@link BatchTranscriber}. The frames are classified
+ * from their energy against an adaptive noise floor. A segment is cut in the middle of a silence once it is long enough,
+ * and at its quietest frame when it reaches the maximum duration, so that continuous speech is cut too. The segments
+ * without speech are skipped.
+ */
+final class AudioSegmenter {
+
+    /**
+     * Receive the segments with speech, in order.
+     */
+    interface SegmentListener {
+
+        /**
+         * Receive a segment.
+         *
+         * @param startSample the position of its first sample in the channel.
+         * @param segment     the samples, owned by the listener.
+         * @throws IOException if the segment cannot be handled, stopping the segmentation.
+         */
+        void onSegment(long startSample, @NotNull short[] segment) throws IOException;
+    }
+
+    // Duration of a frame of the segmentation
+    private static final int FRAME_MS = 10;
+
+    // A segment is only cut at a silence once it is long enough, so that the recognizer has some context, and is
+    // always cut when it reaches the maximum duration
+    static final int MIN_SEGMENT_MS = 5000;
+    static final int MAX_SEGMENT_MS = 30000;
+
+    // Duration of a silence where a segment can be cut. The cut is done in its middle, so that the words on both sides
+    // are not clipped.
+    static final int MIN_SILENCE_MS = 300;
+
+    // Ratio between the energy of a speech frame and the noise floor (about 6 dB), and energy (mean square) below which
+    // a frame is never speech, about -50 dBFS
+    private static final double SPEECH_ENERGY_RATIO = 4.0;
+    private static final double MIN_SPEECH_ENERGY = 10000.0;
+
+    // Lowest noise floor, also used as the initial one so that a recording starting with speech is not taken as
+    // noise, and adaptation speed of the noise floor: fast when the noise decreases, slow when it increases, very slow
+    // during speech so that a noisy recording is eventually followed
+    private static final double MIN_NOISE_FLOOR = 100.0;
+    private static final double NOISE_FLOOR_FALL_RATE = 0.3;
+    private static final double NOISE_FLOOR_RISE_RATE = 0.02;
+    private static final double NOISE_FLOOR_SPEECH_RISE_RATE = 0.001;
+
+    private final SegmentListener listener;
+    private final int frameSamples;
+    private final int minSegmentFrames;
+    private final int maxSegmentFrames;
+    private final int minSilenceFrames;
+
+    // The audio of the current segment, and the classification of its analyzed frames
+    private final short[] samples;
+    private final boolean[] speechFrames;
+    private int fill = 0;
+    private int analyzedFrames = 0;
+
+    // Position of the current segment in the channel
+    private long segmentStart = 0;
+
+    private double noiseFloor = MIN_NOISE_FLOOR;
+    private int silenceFrames = 0;
+    private boolean hasSpeech = false;
+
+    // The quietest frame after the minimum duration, where the segment is cut if it reaches the maximum duration
+    private int quietestFrame = -1;
+    private double quietestEnergy = Double.MAX_VALUE;
+
+    // Number of segments without speech, not given to the listener
+    private int skippedSegments = 0;
+
+    /**
+     * Create a segmenter.
+     *
+     * @param sampleRate the sample rate of the audio.
+     * @param listener   the receiver of the segments.
+     */
+    AudioSegmenter(final int sampleRate, final @NotNull SegmentListener listener) {
+        this.listener = listener;
+        this.frameSamples = sampleRate * FRAME_MS / 1000;
+        this.minSegmentFrames = MIN_SEGMENT_MS / FRAME_MS;
+        this.maxSegmentFrames = MAX_SEGMENT_MS / FRAME_MS;
+        this.minSilenceFrames = MIN_SILENCE_MS / FRAME_MS;
+        this.samples = new short[maxSegmentFrames * frameSamples];
+        this.speechFrames = new boolean[maxSegmentFrames];
+    }
+
+    long getTotalSamples() {
+        return segmentStart + fill;
+    }
+
+    int getSkippedSegments() {
+        return skippedSegments;
+    }
+
+    void addSamples(final @NotNull short[] input, final int count) throws IOException {
+        int position = 0;
+        while (position < count) {
+            final int toCopy = Math.min(count - position, samples.length - fill);
+            System.arraycopy(input, position, samples, fill, toCopy);
+            fill += toCopy;
+            position += toCopy;
+
+            while ((analyzedFrames + 1) * frameSamples <= fill) {
+                analyzeFrame();
+            }
+
+            // The maximum duration cuts the segment before it is full, but never let a full segment stop the reading
+            if (fill == samples.length) {
+                cut(fill);
+            }
+        }
+    }
+
+    void flush() throws IOException {
+        if (fill > 0) {
+            cut(fill);
+        }
+    }
+
+    /* ---------------------------------------------------------- */
+    /*                                                            */
+    /*                INTERNAL FUNCTIONS                          */
+    /*                                                            */
+    /* ---------------------------------------------------------- */
+
+    private void analyzeFrame() throws IOException {
+        final int frame = analyzedFrames;
+        final int start = frame * frameSamples;
+
+        long sumOfSquares = 0;
+        for (int i = start; i < start + frameSamples; i++) {
+            sumOfSquares += (long) samples[i] * samples[i];
+        }
+        final double energy = (double) sumOfSquares / frameSamples;
+
+        final boolean speech = energy >= MIN_SPEECH_ENERGY && energy > noiseFloor * SPEECH_ENERGY_RATIO;
+
+        final double rate;
+        if (energy < noiseFloor) {
+            rate = NOISE_FLOOR_FALL_RATE;
+        } else if (speech) {
+            rate = NOISE_FLOOR_SPEECH_RISE_RATE;
+        } else {
+            rate = NOISE_FLOOR_RISE_RATE;
+        }
+        noiseFloor = Math.max(MIN_NOISE_FLOOR, noiseFloor + (energy - noiseFloor) * rate);
+
+        speechFrames[frame] = speech;
+        analyzedFrames++;
+
+        if (speech) {
+            silenceFrames = 0;
+            hasSpeech = true;
+        } else {
+            silenceFrames++;
+
+            // Nothing to decode yet, only keep the end of the silence before the speech
+            if (!hasSpeech && analyzedFrames > minSilenceFrames) {
+                drop(analyzedFrames - minSilenceFrames / 2);
+                return;
+            }
+
+            // Cut in the middle of a silence long enough
+            final int silenceStart = analyzedFrames - silenceFrames;
+            if (silenceFrames == minSilenceFrames && silenceStart >= minSegmentFrames) {
+                cut((silenceStart + minSilenceFrames / 2) * frameSamples);
+                return;
+            }
+
+            if (frame >= minSegmentFrames && energy < quietestEnergy) {
+                quietestFrame = frame;
+                quietestEnergy = energy;
+            }
+        }
+
+        // Checked whatever the last frame, a segment of continuous speech must be cut too
+        if (analyzedFrames == maxSegmentFrames) {
+            cut((quietestFrame > 0 ? quietestFrame : maxSegmentFrames) * frameSamples);
+        }
+    }
+
+    private void cut(final int length) throws IOException {
+        final int frames = (length + frameSamples - 1) / frameSamples;
+
+        boolean segmentHasSpeech = false;
+        for (int i = 0; i < Math.min(frames, analyzedFrames); i++) {
+            segmentHasSpeech |= speechFrames[i];
+        }
+
+        if (segmentHasSpeech) {
+            listener.onSegment(segmentStart, Arrays.copyOf(samples, length));
+        } else {
+            skippedSegments++;
+        }
+
+        drop(frames);
+    }
+
+    private void drop(final int frames) {
+        final int length = Math.min(fill, frames * frameSamples);
+        System.arraycopy(samples, length, samples, 0, fill - length);
+        fill -= length;
+        segmentStart += length;
+
+        final int droppedFrames = Math.min(frames, analyzedFrames);
+        System.arraycopy(speechFrames, droppedFrames, speechFrames, 0, analyzedFrames - droppedFrames);
+        analyzedFrames -= droppedFrames;
+
+        hasSpeech = false;
+        for (int i = 0; i < analyzedFrames; i++) {
+            hasSpeech |= speechFrames[i];
+        }
+
+        quietestFrame = -1;
+        quietestEnergy = Double.MAX_VALUE;
+    }
+}
@@ -0,0 +1,501 @@
+package com.ctminsights.streamshield.util;
+
+import android.content.Context;
+import android.util.Log;
+
+import org.jetbrains.annotations.NotNull;
+import org.vosk.Model;
+import org.vosk.Recognizer;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Transcribe recorded WAV files, as written by {@link WaveWriter}, faster than real time.
+ * <p>
+ * The audio is converted to the sample rate of the model and cut into segments at the silences, while the file is
+ * read. The segments are decoded in parallel on a fork-join pool, with a recognizer per segment on the shared model,
+ * and the segments without speech are not decoded at all. Once the whole file is decoded, the results
+ * are given in order to the word stages, as the live recognition would.
+ */
+public class BatchTranscriber {
+
+    private static final String TAG = BatchTranscriber.class.getSimpleName();
+
+    // Number of bytes read at once from the file
+    private static final int READ_CHUNK_SIZE = 64 * 1024;
+
+    // Duration of the audio given at once to a recognizer
+    private static final int DECODE_CHUNK_MS = 200;
+
+    // Number of segments waiting for a worker, per worker, so that the memory does not grow with the file
+    private static final int PENDING_SEGMENTS_PER_WORKER = 2;
+
+    private final Context context;
+    private final int parallelism;
+    private final ForkJoinPool pool;
+
+    private volatile SpeechRecognizer.ChannelMode channelMode = SpeechRecognizer.ChannelMode.DOWNMIX;
+    private volatile StereoDownmixer.Mode downmixMode = StereoDownmixer.Mode.LEFT;
+    private volatile PolyphaseResampler.Quality resamplingQuality = PolyphaseResampler.Quality.BALANCED;
+
+    /**
+     * Create a transcriber using all the cores.
+     *
+     * @param context the context, for accessing the model.
+     */
+    public BatchTranscriber(final @NotNull Context context) {
+        this(context, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Create a transcriber.
+     *
+     * @param context     the context, for accessing the model.
+     * @param parallelism the number of segments decoded at once.
+     */
+    public BatchTranscriber(final @NotNull Context context, final int parallelism) {
+        if (parallelism <= 0) {
+            final String msg = String.format(Locale.getDefault(), "Invalid parallelism: %d", parallelism);
+            throw new IllegalArgumentException(msg);
+        }
+
+        this.context = context;
+        this.parallelism = parallelism;
+        this.pool = new ForkJoinPool(parallelism);
+    }
+
+    /**
+     * Define if the channels of a stereo file are mixed, or transcribed separately.
+     *
+     * @param mode the channel mode.
+     */
+    public void setChannelMode(final @NotNull SpeechRecognizer.ChannelMode mode) {
+        channelMode = mode;
+    }
+
+    /**
+     * Define how a stereo file is converted to mono, when the channels are mixed.
+     *
+     * @param mode the conversion mode.
+     */
+    public void setDownmixMode(final @NotNull StereoDownmixer.Mode mode) {
+        downmixMode = mode;
+    }
+
+    /**
+     * Define the quality of the conversion to the sample rate of the model.
+     *
+     * @param quality the quality of the conversion.
+     */
+    public void setResamplingQuality(final @NotNull PolyphaseResampler.Quality quality) {
+        resamplingQuality = quality;
+    }
+
+    /**
+     * Transcribe a WAV file. The words of each utterance are given one by one to the stage, followed by an end of
+     * sentence, in the order of the file. The results are final, so the stage is the one receiving single words, like
+     * the next stage of a {@link WordReceiverDebouncer}. The positions of the words are counted from the start of the
+     * file, at the recognition sample rate. The stage must be started.
+     *
+     * @param wavFile   the 16 bits PCM file, mono or stereo.
+     * @param wordStage the stage receiving the words.
+     * @throws IOException if the file cannot be read, or the model cannot be loaded.
+     */
+    public void transcribe(final @NotNull File wavFile, final @NotNull WordReceiver wordStage) throws IOException {
+        final long startTime = System.nanoTime();
+
+        final Model model;
+        try {
+            model = ModelRegistry.getInstance().acquire(context, SpeechRecognizer.MODEL_NAME).get();
+        } catch (final ExecutionException e) {
+            ModelRegistry.getInstance().release(SpeechRecognizer.MODEL_NAME);
+            throw new IOException("Unable to load the model", e.getCause());
+        } catch (final InterruptedException e) {
+            ModelRegistry.getInstance().release(SpeechRecognizer.MODEL_NAME);
+            Thread.currentThread().interrupt();
+            throw new IOException("Loading of the model was interrupted", e);
+        }
+
+        // The buffers of each worker thread, created on its first segment
+        final Map<Thread, Worker> workers = new ConcurrentHashMap<>();
+
+        try (InputStream input = new BufferedInputStream(new FileInputStream(wavFile), READ_CHUNK_SIZE)) {
+            final WaveFormat format = readHeader(input);
+            Log.i(TAG, String.format(Locale.getDefault(), "Transcribing %s (%d Hz, %d channel(s), %d workers)", wavFile.getName(), format.sampleRate, format.numberOfChannels, parallelism));
+
+            final Decoding decoding = new Decoding(model, format, workers);
+            try {
+                decoding.readAudio(input);
+            } catch (final IOException e) {
+                decoding.abort();
+                throw e;
+            }
+            final List<SegmentResult> results = decoding.awaitResults();
+
+            // The segments of the two channels are mixed in time order
+            results.sort(Comparator.comparingLong((SegmentResult result) -> result.startSample).thenComparingInt(result -> result.channel));
+            for (final SegmentResult result : results) {
+                for (final WordEvent[] utterance : result.utterances) {
+                    for (final WordEvent word : utterance) {
+                        wordStage.putText(result.channel, word);
+                    }
+                    wordStage.signalEndOfSentence(result.channel);
+                }
+            }
+
+            final long elapsedMillis = Math.max(1, (System.nanoTime() - startTime) / 1_000_000);
+            final long audioMillis = decoding.totalSamples * 1000 / decoding.recognitionSampleRate;
+            Log.i(TAG, String.format(Locale.getDefault(), "Transcribed %d ms of audio in %d ms (%.1fx real time, %d segments decoded, %d skipped)", audioMillis, elapsedMillis, (double) audioMillis / elapsedMillis, decoding.decodedSegments, decoding.skippedSegments));
+        } finally {
+            ModelRegistry.getInstance().release(SpeechRecognizer.MODEL_NAME);
+        }
+    }
+
+    /**
+     * Stop the worker threads. The transcriber cannot be used afterwards.
+     */
+    public void close() {
+        pool.shutdown();
+    }
+
+    /* ---------------------------------------------------------- */
+    /*                                                            */
+    /*                INTERNAL FUNCTIONS                          */
+    /*                                                            */
+    /* ---------------------------------------------------------- */
+
+    private static @NotNull WaveFormat readHeader(final @NotNull InputStream input) throws IOException {
+        final byte[] header = new byte[12];
+        readFully(input, header, header.length);
+        if (!hasId(header, 0, "RIFF") || !hasId(header, 8, "WAVE")) {
+            throw new IOException("Not a WAV file");
+        }
+
+        int formatTag = 0;
+        int numberOfChannels = 0;
+        int sampleRate = 0;
+        int bitsPerSample = 0;
+
+        // Go through the chunks until the data
+        final byte[] chunkHeader = new byte[8];
+        while (true) {
+            readFully(input, chunkHeader, chunkHeader.length);
+            final long chunkSize = readInt(chunkHeader, 4) & 0xffffffffL;
+
+            if (hasId(chunkHeader, 0, "fmt ")) {
+                final byte[] fmt = new byte[(int) Math.min(chunkSize, 64)];
+                readFully(input, fmt, fmt.length);
+                skipFully(input, chunkSize - fmt.length + (chunkSize & 1));
+
+                formatTag = readShort(fmt, 0);
+                numberOfChannels = readShort(fmt, 2);
+                sampleRate = readInt(fmt, 4);
+                bitsPerSample = readShort(fmt, 14);
+            } else if (hasId(chunkHeader, 0, "data")) {
+                break;
+            } else {
+                skipFully(input, chunkSize + (chunkSize & 1));
+            }
+        }
+
+        if (formatTag != 1 || bitsPerSample != 16 || (numberOfChannels != 1 && numberOfChannels != 2) || sampleRate <= 0) {
+            final String msg = String.format(Locale.getDefault(), "Unsupported WAV format (format: %d, %d bits, %d channels, %d Hz)", formatTag, bitsPerSample, numberOfChannels, sampleRate);
+            throw new IOException(msg);
+        }
+
+        // The size of the data is not used: it is left to 0 when the recording was interrupted, the data then goes
+        // until the end of the file
+        return new WaveFormat(sampleRate, numberOfChannels);
+    }
+
+    private static boolean hasId(final @NotNull byte[] bytes, final int offset, final @NotNull String id) {
+        for (int i = 0; i < 4; i++) {
+            if (bytes[offset + i] != id.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int readShort(final @NotNull byte[] bytes, final int offset) {
+        return (bytes[offset] & 0xff) | ((bytes[offset + 1] & 0xff) << 8);
+    }
+
+    private static int readInt(final @NotNull byte[] bytes, final int offset) {
+        return readShort(bytes, offset) | (readShort(bytes, offset + 2) << 16);
+    }
+
+    private static void readFully(final @NotNull InputStream input, final @NotNull byte[] bytes, final int length) throws IOException {
+        if (read(input, bytes, length) < length) {
+            throw new IOException("Unexpected end of the WAV file");
+        }
+    }
+
+    /**
+     * Read until the bytes are filled, or the end of the stream.
+     *
+     * @return the number of bytes read.
+     */
+    private static int read(final @NotNull InputStream input, final @NotNull byte[] bytes, final int length) throws IOException {
+        int total = 0;
+        while (total < length) {
+            final int bytesRead = input.read(bytes, total, length - total);
+            if (bytesRead < 0) {
+                break;
+            }
+            total += bytesRead;
+        }
+        return total;
+    }
+
+    private static void skipFully(final @NotNull InputStream input, long length) throws IOException {
+        while (length > 0) {
+            final long skipped = input.skip(length);
+            if (skipped <= 0) {
+                if (input.read() < 0) {
+                    throw new IOException("Unexpected end of the WAV file");
+                }
+                length--;
+            } else {
+                length -= skipped;
+            }
+        }
+    }
+
+    private static final class WaveFormat {
+        final int sampleRate;
+        final int numberOfChannels;
+
+        WaveFormat(final int sampleRate, final int numberOfChannels) {
+            this.sampleRate = sampleRate;
+            this.numberOfChannels = numberOfChannels;
+        }
+    }
+
+    /**
+     * What a worker thread needs to decode, reused from one segment to the next.
+     */
+    private static final class Worker {
+        final HypothesisParser parser = new HypothesisParser();
+        final short[] chunk;
+
+        Worker(final int chunkSamples) {
+            this.chunk = new short[chunkSamples];
+        }
+    }
+
+    private static final class SegmentResult {
+        final int channel;
+        final long startSample;
+        final List<WordEvent[]> utterances;
+
+        SegmentResult(final int channel, final long startSample, final @NotNull List<WordEvent[]> utterances) {
+            this.channel = channel;
+            this.startSample = startSample;
+            this.utterances = utterances;
+        }
+    }
+
+    /**
+     * The transcription of one file: conversion and segmentation of the audio on the reading thread, then decoding of
+     * the segments on the pool.
+     */
+    private final class Decoding {
+
+        private final Model model;
+        private final Map<Thread, Worker> workers;
+        private final int numberOfChannels;
+        private final int sampleRate;
+        private final int recognitionSampleRate;
+        private final int chunkSamples;
+
+        // The conversion and the segmentation of each transcribed channel
+        private final StereoDownmixer downmixer;
+        private final PolyphaseResampler[] resamplers;
+        private final AudioSegmenter[] segmenters;
+
+        // The decoding of the segments, in the order they were cut
+        private final List<Future<SegmentResult>> futures = new ArrayList<>();
+        private final Semaphore pendingSegments = new Semaphore(parallelism * PENDING_SEGMENTS_PER_WORKER);
+
+        // Set when the transcription fails, so that the segments not decoded yet are skipped
+        private volatile boolean aborted = false;
+
+        // Statistics of the transcription
+        private long totalSamples = 0;
+        private int decodedSegments = 0;
+        private int skippedSegments = 0;
+
+        Decoding(final @NotNull Model model, final @NotNull WaveFormat format, final @NotNull Map<Thread, Worker> workers) {
+            this.model = model;
+            this.workers = workers;
+            this.sampleRate = format.sampleRate;
+            this.numberOfChannels = format.numberOfChannels;
+            this.recognitionSampleRate = Math.min(format.sampleRate, SpeechRecognizer.MODEL_SAMPLE_RATE);
+            this.chunkSamples = recognitionSampleRate * DECODE_CHUNK_MS / 1000;
+
+            final int transcribedChannels = numberOfChannels == 2 && channelMode == SpeechRecognizer.ChannelMode.SPLIT ? 2 : 1;
+            this.downmixer = new StereoDownmixer(downmixMode);
+            this.resamplers = new PolyphaseResampler[transcribedChannels];
+            this.segmenters = new AudioSegmenter[transcribedChannels];
+            for (int channel = 0; channel < transcribedChannels; channel++) {
+                resamplers[channel] = new PolyphaseResampler(sampleRate, recognitionSampleRate, resamplingQuality);
+                final int segmentChannel = channel;
+                segmenters[channel] = new AudioSegmenter(recognitionSampleRate, (startSample, segment) -> submit(segmentChannel, startSample, segment));
+            }
+        }
+
+        void readAudio(final @NotNull InputStream input) throws IOException {
+            final byte[] bytes = new byte[READ_CHUNK_SIZE];
+            // The samples of the mono audio or of the first channel, and of the second channel
+            final short[] left = new short[READ_CHUNK_SIZE / 2];
+            final short[] right = new short[left.length];
+            short[] resampled = new short[0];
+
+            int bytesRead;
+            while ((bytesRead = read(input, bytes, bytes.length)) > 0) {
+                final int samples;
+                if (numberOfChannels == 1) {
+                    samples = bytesRead / 2;
+                    for (int i = 0; i < samples; i++) {
+                        left[i] = (short) ((bytes[2 * i] & 0xff) | (bytes[2 * i + 1] << 8));
+                    }
+                } else if (segmenters.length == 2) {
+                    samples = downmixer.split(bytes, 0, bytesRead, left, right, 0);
+                } else {
+                    samples = downmixer.downmix(bytes, 0, bytesRead, left, 0);
+                }
+
+                for (int channel = 0; channel < segmenters.length; channel++) {
+                    final short[] channelSamples = channel == 0 ? left : right;
+
+                    if (recognitionSampleRate == sampleRate) {
+                        segmenters[channel].addSamples(channelSamples, samples);
+                        continue;
+                    }
+
+                    final int maxSamples = resamplers[channel].getMaxOutputSamples(samples);
+                    if (resampled.length < maxSamples) {
+                        resampled = new short[maxSamples];
+                    }
+                    final int resampledCount = resamplers[channel].process(channelSamples, 0, samples, resampled, 0);
+                    segmenters[channel].addSamples(resampled, resampledCount);
+                }
+
+                if (bytesRead < bytes.length) {
+                    break;
+                }
+            }
+
+            for (final AudioSegmenter segmenter : segmenters) {
+                segmenter.flush();
+                skippedSegments += segmenter.getSkippedSegments();
+            }
+            totalSamples = segmenters[0].getTotalSamples();
+        }
+
+        @NotNull List<SegmentResult> awaitResults() throws IOException {
+            final List<SegmentResult> results = new ArrayList<>(futures.size());
+
+            try {
+                for (final Future<SegmentResult> future : futures) {
+                    results.add(future.get());
+                }
+            } catch (final ExecutionException e) {
+                abort();
+                throw new IOException("Unable to decode a segment", e.getCause());
+            } catch (final InterruptedException e) {
+                abort();
+                Thread.currentThread().interrupt();
+                throw new IOException("Transcription was interrupted", e);
+            }
+
+            return results;
+        }
+
+        /**
+         * Skip the segments not decoded yet, and wait for the ones being decoded, so that the model can be released.
+         */
+        void abort() {
+            aborted = true;
+
+            for (final Future<SegmentResult> future : futures) {
+                try {
+                    future.get();
+                } catch (final ExecutionException e) {
+                    // Already reported
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+
+        private void submit(final int channel, final long startSample, final @NotNull short[] segment) throws IOException {
+            // Wait for the workers to catch up with the reading
+            try {
+                pendingSegments.acquire();
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Transcription was interrupted", e);
+            }
+
+            decodedSegments++;
+            futures.add(pool.submit(() -> {
+                try {
+                    if (aborted) {
+                        return new SegmentResult(channel, startSample, new ArrayList<>());
+                    }
+                    return new SegmentResult(channel, startSample, decodeSegment(segment, startSample));
+                } finally {
+                    pendingSegments.release();
+                }
+            }));
+        }
+
+        private @NotNull List<WordEvent[]> decodeSegment(final @NotNull short[] segment, final long startSample) throws IOException {
+            final Worker worker = workers.computeIfAbsent(Thread.currentThread(), thread -> new Worker(chunkSamples));
+            final List<WordEvent[]> utterances = new ArrayList<>();
+
+            // A new recognizer for each segment: the times of the words are counted from its creation, and a reused
+            // one keeps counting across reset()
+            try (Recognizer recognizer = new Recognizer(model, recognitionSampleRate)) {
+                recognizer.setWords(true);
+
+                for (int position = 0; position < segment.length; position += chunkSamples) {
+                    final int count = Math.min(chunkSamples, segment.length - position);
+                    System.arraycopy(segment, position, worker.chunk, 0, count);
+
+                    if (recognizer.acceptWaveForm(worker.chunk, count)) {
+                        addUtterance(worker.parser, recognizer.getResult(), startSample, utterances);
+                    }
+                }
+                addUtterance(worker.parser, recognizer.getFinalResult(), startSample, utterances);
+            }
+
+            return utterances;
+        }
+
+        private void addUtterance(final @NotNull HypothesisParser parser, final @NotNull String hypothesis, final long startSample, final @NotNull List<WordEvent[]> utterances) {
+            if (!parser.parse(hypothesis)) {
+                Log.e(TAG, "Unable to read the hypothesis: " + hypothesis);
+            } else if (!parser.isTextBlank()) {
+                utterances.add(parser.getWordEvents(recognitionSampleRate, startSample));
+            }
+        }
+    }
+}
@@ -0,0 +1,25 @@
+package com.ctminsights.streamshield.util;
+
+/**
+ * What a bounded audio buffer does when the producer adds more data than the free space left by the consumer.
+ */
+public enum BufferOverflowPolicy {
+
+    /**
+     * The producer waits until the consumer has read enough data. Nothing is lost, but the capture may be delayed.
+     */
+    BLOCK,
+
+    /**
+     * The oldest buffered audio is discarded to make room for the new data, so that the consumer stays close to real
+     * time.
+     */
+    DROP_OLDEST,
+
+    /**
+     * The new data that does not fit in the buffer is discarded, the buffered audio is kept. For a cursor of an
+     * {@link AudioBroadcastBuffer}, the new data is still written for the other cursors, so the cursor also loses its
+     * unread audio.
+     */
+    DROP_NEWEST
+}
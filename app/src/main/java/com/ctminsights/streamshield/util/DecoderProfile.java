@@ -0,0 +1,169 @@
+package com.ctminsights.streamshield.util;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Locale;
+
+/**
+ * Trade-off between the speed and the accuracy of the decoder, through the width of its search: the beam and the
+ * maximum number of active states.
+ * <p>
+ * Vosk reads these settings from conf/model.conf when loading a model, so each profile is a variant of the model: a
+ * directory linking to the files of the unpacked model, with its own model.conf. The variants are loaded as separate
+ * models by the {@link ModelRegistry}.
+ */
+public enum DecoderProfile {
+    /**
+     * Narrow search, for the devices that cannot keep up. Some words are missed in noisy audio.
+     */
+    FAST(7.0, 1000, 1.0),
+    /**
+     * The settings shipped with the model.
+     */
+    BALANCED(10.0, 3000, 2.0),
+    /**
+     * Wide search, for the devices with time to spare.
+     */
+    ACCURATE(13.0, 7000, 4.0);
+
+    // Directory of the model settings, and name of the decoder settings
+    private static final String CONF_DIRECTORY = "conf";
+    private static final String MODEL_CONF = "model.conf";
+
+    private final double beam;
+    private final int maxActive;
+    private final double latticeBeam;
+
+    DecoderProfile(final double beam, final int maxActive, final double latticeBeam) {
+        this.beam = beam;
+        this.maxActive = maxActive;
+        this.latticeBeam = latticeBeam;
+    }
+
+    public double getBeam() {
+        return beam;
+    }
+
+    public int getMaxActive() {
+        return maxActive;
+    }
+
+    /**
+     * Get the profile with a narrower search.
+     *
+     * @return the faster profile, or this one if it is the fastest.
+     */
+    public @NotNull DecoderProfile faster() {
+        return ordinal() == 0 ? this : values()[ordinal() - 1];
+    }
+
+    /**
+     * Get the profile with a wider search.
+     *
+     * @return the more accurate profile, or this one if it is the most accurate.
+     */
+    public @NotNull DecoderProfile moreAccurate() {
+        final DecoderProfile[] profiles = values();
+        return ordinal() == profiles.length - 1 ? this : profiles[ordinal() + 1];
+    }
+
+    /**
+     * Create the variant of a model for this profile. The files are linked, except the decoder settings which are
+     * rewritten with the settings of the profile.
+     *
+     * @param modelDirectory   the unpacked model.
+     * @param variantDirectory the directory of the variant, replaced if it exists.
+     * @throws IOException if the variant cannot be created.
+     */
+    public void createVariant(final @NotNull File modelDirectory, final @NotNull File variantDirectory) throws IOException {
+        deleteRecursively(variantDirectory);
+        if (!variantDirectory.mkdirs()) {
+            throw new IOException("Unable to create the directory " + variantDirectory);
+        }
+
+        final File[] entries = modelDirectory.listFiles();
+        if (entries == null) {
+            throw new IOException("Unable to list the model " + modelDirectory);
+        }
+
+        for (final File entry : entries) {
+            if (entry.getName().equals(CONF_DIRECTORY)) {
+                createConf(entry, new File(variantDirectory, CONF_DIRECTORY));
+            } else {
+                Files.createSymbolicLink(new File(variantDirectory, entry.getName()).toPath(), entry.getAbsoluteFile().toPath());
+            }
+        }
+    }
+
+    /* ---------------------------------------------------------- */
+    /*                                                            */
+    /*                INTERNAL FUNCTIONS                          */
+    /*                                                            */
+    /* ---------------------------------------------------------- */
+
+    private void createConf(final @NotNull File confDirectory, final @NotNull File variantConfDirectory) throws IOException {
+        if (!variantConfDirectory.mkdirs()) {
+            throw new IOException("Unable to create the directory " + variantConfDirectory);
+        }
+
+        final File[] entries = confDirectory.listFiles();
+        if (entries == null) {
+            throw new IOException("Unable to list " + confDirectory);
+        }
+
+        for (final File entry : entries) {
+            if (entry.getName().equals(MODEL_CONF)) {
+                writeModelConf(entry, new File(variantConfDirectory, MODEL_CONF));
+            } else {
+                Files.createSymbolicLink(new File(variantConfDirectory, entry.getName()).toPath(), entry.getAbsoluteFile().toPath());
+            }
+        }
+    }
+
+    private void writeModelConf(final @NotNull File source, final @NotNull File target) throws IOException {
+        final StringBuilder builder = new StringBuilder();
+
+        // Keep every setting of the model, except the ones of the profile
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(source), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.startsWith("--beam=") && !line.startsWith("--max-active=") && !line.startsWith("--lattice-beam=")) {
+                    builder.append(line).append('\n');
+                }
+            }
+        }
+
+        builder.append(String.format(Locale.ROOT, "--beam=%.1f\n--max-active=%d\n--lattice-beam=%.1f\n", beam, maxActive, latticeBeam));
+
+        try (OutputStream output = new FileOutputStream(target)) {
+            output.write(builder.toString().getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    private static void deleteRecursively(final @NotNull File file) throws IOException {
+        // The links are deleted, not their target
+        if (file.isDirectory() && !Files.isSymbolicLink(file.toPath())) {
+            final File[] children = file.listFiles();
+            if (children != null) {
+                for (final File child : children) {
+                    deleteRecursively(child);
+                }
+            }
+        }
+
+        if (file.exists() || Files.isSymbolicLink(file.toPath())) {
+            if (!file.delete()) {
+                throw new IOException("Unable to delete " + file);
+            }
+        }
+    }
+}
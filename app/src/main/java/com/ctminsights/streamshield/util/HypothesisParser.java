@@ -0,0 +1,521 @@
+package com.ctminsights.streamshield.util;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Extract the content of the hypotheses sent by the recognizer, without building a JSON tree. The fields read are:
+ * <ul>
+ *     <li>partial or text: the text of the hypothesis,</li>
+ *     <li>partial_result or result: the optional array of words, with their timing and confidence.</li>
+ * </ul>
+ * Every other field is skipped. The text and the words are kept as positions in the parsed string, and the strings are
+ * only created when asked for. The instance keeps its arrays from one hypothesis to the next, and must only be used by
+ * a single thread.
+ */
+public class HypothesisParser {
+
+    // Initial number of words that can be kept without growing the arrays
+    private static final int INITIAL_WORD_CAPACITY = 32;
+
+    private String json = null;
+    private int pos = 0;
+
+    // The text of the hypothesis, as a position in the json string
+    private boolean hasText = false;
+    private boolean partial = false;
+    private int textStart = 0;
+    private int textEnd = 0;
+    private boolean textEscaped = false;
+    private String text = null;
+
+    // The words of the hypothesis, by index
+    private int wordCount = 0;
+    private int[] wordStarts = new int[INITIAL_WORD_CAPACITY];
+    private int[] wordEnds = new int[INITIAL_WORD_CAPACITY];
+    private boolean[] wordEscaped = new boolean[INITIAL_WORD_CAPACITY];
+    private float[] wordStartTimes = new float[INITIAL_WORD_CAPACITY];
+    private float[] wordEndTimes = new float[INITIAL_WORD_CAPACITY];
+    private float[] wordConfidences = new float[INITIAL_WORD_CAPACITY];
+
+    // Position of the last string read
+    private int stringStart = 0;
+    private int stringEnd = 0;
+    private boolean stringEscaped = false;
+
+    // Reused for the decoding of the escaped strings
+    private final StringBuilder unescapeBuilder = new StringBuilder();
+
+    /**
+     * Parse a hypothesis. The content of the previous one is forgotten.
+     *
+     * @param hypothesis the JSON hypothesis sent by the recognizer.
+     * @return false if the hypothesis is null or not valid.
+     */
+    public boolean parse(final @Nullable String hypothesis) {
+        json = hypothesis;
+        pos = 0;
+        hasText = false;
+        partial = false;
+        textEscaped = false;
+        text = null;
+        wordCount = 0;
+
+        if (hypothesis == null) {
+            return false;
+        }
+
+        try {
+            parseHypothesis();
+            return true;
+        } catch (final IllegalArgumentException e) {
+            hasText = false;
+            wordCount = 0;
+            return false;
+        }
+    }
+
+    /**
+     * Check if the hypothesis has a text, from a partial or text field.
+     *
+     * @return true if a text was found.
+     */
+    public boolean hasText() {
+        return hasText;
+    }
+
+    /**
+     * Check if the text comes from a partial field.
+     *
+     * @return true for a partial hypothesis.
+     */
+    public boolean isPartial() {
+        return partial;
+    }
+
+    /**
+     * Check if the text is missing, empty or only made of white spaces, without creating it.
+     *
+     * @return true if there is no text to use.
+     */
+    public boolean isTextBlank() {
+        if (!hasText) {
+            return true;
+        }
+
+        for (int i = textStart; i < textEnd; i++) {
+            if (!Character.isWhitespace(json.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Get the text of the hypothesis.
+     *
+     * @return the text, empty if there is none.
+     */
+    public @NotNull String getText() {
+        if (!hasText) {
+            return "";
+        }
+
+        if (text == null) {
+            text = getString(textStart, textEnd, textEscaped);
+        }
+        return text;
+    }
+
+    public int getWordCount() {
+        return wordCount;
+    }
+
+    public @NotNull String getWord(final int index) {
+        checkWordIndex(index);
+        return getString(wordStarts[index], wordEnds[index], wordEscaped[index]);
+    }
+
+    /**
+     * Get the start of a word.
+     *
+     * @param index the index of the word.
+     * @return the start time, in seconds from the start of the stream.
+     */
+    public float getWordStartTime(final int index) {
+        checkWordIndex(index);
+        return wordStartTimes[index];
+    }
+
+    /**
+     * Get the end of a word.
+     *
+     * @param index the index of the word.
+     * @return the end time, in seconds from the start of the stream.
+     */
+    public float getWordEndTime(final int index) {
+        checkWordIndex(index);
+        return wordEndTimes[index];
+    }
+
+    /**
+     * Get the confidence of a word.
+     *
+     * @param index the index of the word.
+     * @return the confidence, between 0 and 1.
+     */
+    public float getWordConfidence(final int index) {
+        checkWordIndex(index);
+        return wordConfidences[index];
+    }
+
+    /**
+     * Get the words of the hypothesis as events. When the recognizer did not give the words, they are taken from the
+     * text, without timing nor confidence.
+     *
+     * @param sampleRate  the sample rate of the recognized audio, for converting the times to positions.
+     * @param startSample the position of the start of the stream in the audio, added to the positions of the words.
+     * @return the words, possibly none.
+     */
+    public @NotNull WordEvent[] getWordEvents(final int sampleRate, final long startSample) {
+        if (wordCount == 0) {
+            return hasText ? WordEvent.fromText(getText()) : new WordEvent[0];
+        }
+
+        final WordEvent[] words = new WordEvent[wordCount];
+        for (int i = 0; i < wordCount; i++) {
+            words[i] = new WordEvent(
+                    getString(wordStarts[i], wordEnds[i], wordEscaped[i]),
+                    startSample + Math.round((double) wordStartTimes[i] * sampleRate),
+                    startSample + Math.round((double) wordEndTimes[i] * sampleRate),
+                    wordConfidences[i]);
+        }
+        return words;
+    }
+
+    /* ---------------------------------------------------------- */
+    /*                                                            */
+    /*                INTERNAL FUNCTIONS                          */
+    /*                                                            */
+    /* ---------------------------------------------------------- */
+
+    private void parseHypothesis() {
+        expect('{');
+        if (consumeIf('}')) {
+            return;
+        }
+
+        do {
+            readString();
+            expect(':');
+
+            if (isKey("partial") || isKey("text")) {
+                final boolean isPartial = isKey("partial");
+                skipWhitespaces();
+                if (peek() == '"') {
+                    readString();
+                    hasText = true;
+                    partial = isPartial;
+                    textStart = stringStart;
+                    textEnd = stringEnd;
+                    textEscaped = stringEscaped;
+                } else {
+                    skipValue();
+                }
+            } else if (isKey("result") || isKey("partial_result")) {
+                skipWhitespaces();
+                if (peek() == '[') {
+                    readWords();
+                } else {
+                    skipValue();
+                }
+            } else {
+                skipValue();
+            }
+        } while (consumeIf(','));
+
+        expect('}');
+    }
+
+    private void readWords() {
+        wordCount = 0;
+
+        expect('[');
+        if (consumeIf(']')) {
+            return;
+        }
+
+        do {
+            ensureWordCapacity(wordCount + 1);
+
+            final int index = wordCount;
+            wordStarts[index] = 0;
+            wordEnds[index] = 0;
+            wordEscaped[index] = false;
+            wordStartTimes[index] = 0;
+            wordEndTimes[index] = 0;
+            wordConfidences[index] = 1;
+
+            expect('{');
+            if (!consumeIf('}')) {
+                do {
+                    readString();
+                    expect(':');
+
+                    if (isKey("word")) {
+                        readString();
+                        wordStarts[index] = stringStart;
+                        wordEnds[index] = stringEnd;
+                        wordEscaped[index] = stringEscaped;
+                    } else if (isKey("start")) {
+                        wordStartTimes[index] = (float) readNumber();
+                    } else if (isKey("end")) {
+                        wordEndTimes[index] = (float) readNumber();
+                    } else if (isKey("conf")) {
+                        wordConfidences[index] = (float) readNumber();
+                    } else {
+                        skipValue();
+                    }
+                } while (consumeIf(','));
+                expect('}');
+            }
+
+            wordCount++;
+        } while (consumeIf(','));
+
+        expect(']');
+    }
+
+    private boolean isKey(final @NotNull String key) {
+        return !stringEscaped && stringEnd - stringStart == key.length() && json.regionMatches(stringStart, key, 0, key.length());
+    }
+
+    private void readString() {
+        expect('"');
+
+        stringStart = pos;
+        stringEscaped = false;
+
+        final int length = json.length();
+        while (pos < length) {
+            final char c = json.charAt(pos);
+            if (c == '"') {
+                stringEnd = pos;
+                pos++;
+                return;
+            } else if (c == '\\') {
+                stringEscaped = true;
+                pos += 2;
+            } else {
+                pos++;
+            }
+        }
+
+        throw error("Unterminated string");
+    }
+
+    private double readNumber() {
+        skipWhitespaces();
+
+        final int length = json.length();
+        boolean negative = false;
+        if (pos < length && json.charAt(pos) == '-') {
+            negative = true;
+            pos++;
+        }
+
+        double value = 0;
+        boolean hasDigits = false;
+        while (pos < length && isDigit(json.charAt(pos))) {
+            value = value * 10 + (json.charAt(pos++) - '0');
+            hasDigits = true;
+        }
+
+        if (pos < length && json.charAt(pos) == '.') {
+            pos++;
+            double scale = 0.1;
+            while (pos < length && isDigit(json.charAt(pos))) {
+                value += (json.charAt(pos++) - '0') * scale;
+                scale /= 10;
+                hasDigits = true;
+            }
+        }
+
+        if (!hasDigits) {
+            throw error("Number expected");
+        }
+
+        if (pos < length && (json.charAt(pos) == 'e' || json.charAt(pos) == 'E')) {
+            pos++;
+            boolean negativeExponent = false;
+            if (pos < length && (json.charAt(pos) == '+' || json.charAt(pos) == '-')) {
+                negativeExponent = json.charAt(pos) == '-';
+                pos++;
+            }
+            int exponent = 0;
+            while (pos < length && isDigit(json.charAt(pos))) {
+                exponent = exponent * 10 + (json.charAt(pos++) - '0');
+            }
+            value *= Math.pow(10, negativeExponent ? -exponent : exponent);
+        }
+
+        return negative ? -value : value;
+    }
+
+    private void skipValue() {
+        skipWhitespaces();
+
+        final char c = peek();
+        if (c == '"') {
+            readString();
+        } else if (c == '{' || c == '[') {
+            // Skip the nested values, strings may contain brackets
+            int depth = 0;
+            final int length = json.length();
+            while (pos < length) {
+                final char current = json.charAt(pos);
+                if (current == '"') {
+                    readString();
+                    continue;
+                }
+
+                pos++;
+                if (current == '{' || current == '[') {
+                    depth++;
+                } else if (current == '}' || current == ']') {
+                    depth--;
+                    if (depth == 0) {
+                        return;
+                    }
+                }
+            }
+            throw error("Unterminated value");
+        } else {
+            // Number, true, false or null
+            final int length = json.length();
+            final int start = pos;
+            while (pos < length) {
+                final char current = json.charAt(pos);
+                if (current == ',' || current == '}' || current == ']' || Character.isWhitespace(current)) {
+                    break;
+                }
+                pos++;
+            }
+            if (pos == start) {
+                throw error("Value expected");
+            }
+        }
+    }
+
+    private void expect(final char expected) {
+        skipWhitespaces();
+        if (pos >= json.length() || json.charAt(pos) != expected) {
+            throw error("'" + expected + "' expected");
+        }
+        pos++;
+    }
+
+    private boolean consumeIf(final char expected) {
+        skipWhitespaces();
+        if (pos < json.length() && json.charAt(pos) == expected) {
+            pos++;
+            return true;
+        }
+        return false;
+    }
+
+    private char peek() {
+        if (pos >= json.length()) {
+            throw error("Unexpected end of hypothesis");
+        }
+        return json.charAt(pos);
+    }
+
+    private void skipWhitespaces() {
+        final int length = json.length();
+        while (pos < length && Character.isWhitespace(json.charAt(pos))) {
+            pos++;
+        }
+    }
+
+    private @NotNull IllegalArgumentException error(final @NotNull String message) {
+        return new IllegalArgumentException(String.format(Locale.getDefault(), "%s at index %d", message, pos));
+    }
+
+    private @NotNull String getString(final int start, final int end, final boolean escaped) {
+        if (!escaped) {
+            return json.substring(start, end);
+        }
+
+        unescapeBuilder.setLength(0);
+        int i = start;
+        while (i < end) {
+            final char c = json.charAt(i++);
+            if (c != '\\' || i >= end) {
+                unescapeBuilder.append(c);
+                continue;
+            }
+
+            final char escapedChar = json.charAt(i++);
+            switch (escapedChar) {
+                case 'n':
+                    unescapeBuilder.append('\n');
+                    break;
+                case 't':
+                    unescapeBuilder.append('\t');
+                    break;
+                case 'r':
+                    unescapeBuilder.append('\r');
+                    break;
+                case 'b':
+                    unescapeBuilder.append('\b');
+                    break;
+                case 'f':
+                    unescapeBuilder.append('\f');
+                    break;
+                case 'u':
+                    if (i + 4 <= end) {
+                        int code = 0;
+                        for (int j = 0; j < 4; j++) {
+                            code = (code << 4) | Math.max(0, Character.digit(json.charAt(i++), 16));
+                        }
+                        unescapeBuilder.append((char) code);
+                    }
+                    break;
+                default:
+                    // \" \\ and \/
+                    unescapeBuilder.append(escapedChar);
+                    break;
+            }
+        }
+        return unescapeBuilder.toString();
+    }
+
+    private void ensureWordCapacity(final int capacity) {
+        if (capacity <= wordStarts.length) {
+            return;
+        }
+
+        final int newCapacity = Math.max(capacity, wordStarts.length * 2);
+        wordStarts = Arrays.copyOf(wordStarts, newCapacity);
+        wordEnds = Arrays.copyOf(wordEnds, newCapacity);
+        wordEscaped = Arrays.copyOf(wordEscaped, newCapacity);
+        wordStartTimes = Arrays.copyOf(wordStartTimes, newCapacity);
+        wordEndTimes = Arrays.copyOf(wordEndTimes, newCapacity);
+        wordConfidences = Arrays.copyOf(wordConfidences, newCapacity);
+    }
+
+    private void checkWordIndex(final int index) {
+        if (index < 0 || index >= wordCount) {
+            final String msg = String.format(Locale.getDefault(), "Word %d requested while the hypothesis has only %d words", index, wordCount);
+            throw new IndexOutOfBoundsException(msg);
+        }
+    }
+
+    private static boolean isDigit(final char c) {
+        return c >= '0' && c <= '9';
+    }
+}
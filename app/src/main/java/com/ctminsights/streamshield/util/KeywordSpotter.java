@@ -0,0 +1,184 @@
+package com.ctminsights.streamshield.util;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A list of phrases to spot in the audio, instead of transcribing it. The phrases are turned into a grammar for the
+ * recognizer, so that the decoder only searches among them (and an unknown word for everything else), which costs far
+ * less than the full dictation graph. The matches are then found in the results of the recognizer.
+ * <p>
+ * The instances are immutable, and can be shared between the recognizers.
+ */
+public final class KeywordSpotter {
+
+    // The word of the grammar matching everything that is not a phrase
+    private static final String UNKNOWN_WORD = "[unk]";
+
+    private final String grammar;
+    private final float minConfidence;
+    private final int phraseCount;
+
+    // The phrases, as words, by their first word
+    private final Map<String, List<String[]>> phrasesByFirstWord = new HashMap<>();
+
+    /**
+     * Create a spotter.
+     *
+     * @param phrases       the phrases to spot, in lower case, made of words known by the model.
+     * @param minConfidence the confidence, between 0 and 1, that each word of a match must reach. The recognizer
+     *                      always picks a phrase of the grammar, so a low confidence usually means another phrase was
+     *                      said.
+     */
+    public KeywordSpotter(final @NotNull Collection<String> phrases, final float minConfidence) {
+        if (minConfidence < 0 || minConfidence > 1) {
+            final String msg = String.format(Locale.getDefault(), "Invalid minimum confidence: %f", minConfidence);
+            throw new IllegalArgumentException(msg);
+        }
+
+        // Normalize the phrases, and drop the duplicates
+        final Set<String> normalized = new LinkedHashSet<>();
+        for (final String phrase : phrases) {
+            final String words = phrase.trim().toLowerCase(Locale.ROOT).replaceAll("\\s+", " ");
+            if (!words.isEmpty()) {
+                normalized.add(words);
+            }
+        }
+
+        if (normalized.isEmpty()) {
+            throw new IllegalArgumentException("No phrase to spot");
+        }
+
+        final StringBuilder builder = new StringBuilder("[");
+        for (final String phrase : normalized) {
+            appendJsonString(builder, phrase);
+            builder.append(", ");
+
+            final String[] words = phrase.split(" ");
+            phrasesByFirstWord.computeIfAbsent(words[0], key -> new ArrayList<>()).add(words);
+        }
+        appendJsonString(builder, UNKNOWN_WORD);
+        builder.append(']');
+
+        // Try the longest phrases first
+        for (final List<String[]> candidates : phrasesByFirstWord.values()) {
+            candidates.sort((first, second) -> second.length - first.length);
+        }
+
+        this.grammar = builder.toString();
+        this.minConfidence = minConfidence;
+        this.phraseCount = normalized.size();
+    }
+
+    /**
+     * Get the grammar of the recognizer.
+     *
+     * @return the phrases and the unknown word, as a JSON array.
+     */
+    public @NotNull String getGrammar() {
+        return grammar;
+    }
+
+    public float getMinConfidence() {
+        return minConfidence;
+    }
+
+    public int getPhraseCount() {
+        return phraseCount;
+    }
+
+    /**
+     * Find the phrases in the words of a result. A match covers the audio of its words, and has the lowest of their
+     * confidences.
+     *
+     * @param words the words of the result.
+     * @return the matches, in order, possibly none.
+     */
+    public @NotNull List<WordEvent> match(final @NotNull WordEvent[] words) {
+        final List<WordEvent> matches = new ArrayList<>();
+
+        int position = 0;
+        while (position < words.length) {
+            final int length = matchAt(words, position);
+            if (length == 0) {
+                position++;
+                continue;
+            }
+
+            final WordEvent first = words[position];
+            final WordEvent last = words[position + length - 1];
+            float confidence = 1;
+            final StringBuilder phrase = new StringBuilder();
+            for (int i = position; i < position + length; i++) {
+                if (i > position) {
+                    phrase.append(' ');
+                }
+                phrase.append(words[i].getWord());
+                if (words[i].hasConfidence()) {
+                    confidence = Math.min(confidence, words[i].getConfidence());
+                }
+            }
+
+            if (confidence >= minConfidence) {
+                matches.add(new WordEvent(phrase.toString(), first.getStartSample(), last.getEndSample(), confidence));
+            }
+            position += length;
+        }
+
+        return matches;
+    }
+
+    /* ---------------------------------------------------------- */
+    /*                                                            */
+    /*                INTERNAL FUNCTIONS                          */
+    /*                                                            */
+    /* ---------------------------------------------------------- */
+
+    /**
+     * Get the number of words of the longest phrase starting at a position.
+     *
+     * @return the number of words, or 0 if no phrase starts there.
+     */
+    private int matchAt(final @NotNull WordEvent[] words, final int position) {
+        final List<String[]> candidates = phrasesByFirstWord.get(words[position].getWord());
+        if (candidates == null) {
+            return 0;
+        }
+
+        for (final String[] candidate : candidates) {
+            if (position + candidate.length > words.length) {
+                continue;
+            }
+
+            boolean matching = true;
+            for (int i = 1; i < candidate.length && matching; i++) {
+                matching = candidate[i].equals(words[position + i].getWord());
+            }
+            if (matching) {
+                return candidate.length;
+            }
+        }
+
+        return 0;
+    }
+
+    private static void appendJsonString(final @NotNull StringBuilder builder, final @NotNull String value) {
+        builder.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                builder.append('\\');
+            }
+            builder.append(c);
+        }
+        builder.append('"');
+    }
+}
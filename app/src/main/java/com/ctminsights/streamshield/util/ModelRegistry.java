@@ -0,0 +1,363 @@
+package com.ctminsights.streamshield.util;
+
+import android.content.Context;
+import android.util.Log;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.vosk.Model;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Process wide cache of the recognition models, by name. The models are unpacked from the assets by a
+ * {@link ModelUnpacker} and loaded in the background, and are shared by all the recognizers using them.
+ * <p>
+ * A model is referenced while a recognizer uses it, between {@link #acquire(Context, String)} and
+ * {@link #release(String)}. The models that are not referenced stay loaded, so that the next recognition starts
+ * immediately, until the loaded models exceed the memory budget: the least recently used ones are then closed.
+ * <p>
+ * A model can be loaded with several {@link DecoderProfile}s. Each profile other than the balanced one is a separate
+ * variant of the model, loaded and counted on its own.
+ */
+public final class ModelRegistry {
+
+    private static final String TAG = ModelRegistry.class.getSimpleName();
+
+    // Directory of the external files where the models are unpacked
+    private static final String MODELS_DIRECTORY = "model";
+
+    // Directory of the internal files where the variants of the models are created, as they are made of links
+    private static final String VARIANTS_DIRECTORY = "model-variants";
+
+    // Default memory budget of the loaded models
+    private static final long DEFAULT_MEMORY_BUDGET = 256L * 1024 * 1024;
+
+    private static final ModelRegistry instance = new ModelRegistry();
+
+    private final Object mutex = new Object();
+
+    // Unpack and load the models, one at a time
+    private final ExecutorService loader = Executors.newSingleThreadExecutor(runnable -> {
+        final Thread thread = new Thread(runnable, "ModelRegistry Loader");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private volatile ModelUnpacker.ProgressListener unpackProgressListener = null;
+
+    // The models by name, in access order so that the first one is the least recently used
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    private long memoryBudget = DEFAULT_MEMORY_BUDGET;
+
+    private ModelRegistry() {
+    }
+
+    public static @NotNull ModelRegistry getInstance() {
+        return instance;
+    }
+
+    /**
+     * Start loading a model if it is not already loaded, without referencing it.
+     *
+     * @param context   the context, for accessing the assets.
+     * @param modelName the name of the model, which is the name of its directory in the assets.
+     * @return the future model, completed with an IOException if it cannot be loaded.
+     */
+    public @NotNull CompletableFuture<Model> preload(final @NotNull Context context, final @NotNull String modelName) {
+        return preload(context, modelName, DecoderProfile.BALANCED);
+    }
+
+    /**
+     * Start loading the variant of a model for a decoder profile if it is not already loaded, without referencing it.
+     *
+     * @param context   the context, for accessing the assets.
+     * @param modelName the name of the model, which is the name of its directory in the assets.
+     * @param profile   the decoder profile.
+     * @return the future model, completed with an IOException if it cannot be loaded.
+     */
+    public @NotNull CompletableFuture<Model> preload(final @NotNull Context context, final @NotNull String modelName, final @NotNull DecoderProfile profile) {
+        synchronized (mutex) {
+            return getOrLoad(context, modelName, profile).future;
+        }
+    }
+
+    /**
+     * Reference a model, loading it if needed. Each call must be followed by a call to {@link #release(String)} once
+     * the model, and the recognizers created from it, are not used anymore.
+     *
+     * @param context   the context, for accessing the assets.
+     * @param modelName the name of the model, which is the name of its directory in the assets.
+     * @return the future model, completed with an IOException if it cannot be loaded.
+     */
+    public @NotNull CompletableFuture<Model> acquire(final @NotNull Context context, final @NotNull String modelName) {
+        return acquire(context, modelName, DecoderProfile.BALANCED);
+    }
+
+    /**
+     * Reference the variant of a model for a decoder profile, loading it if needed. Each call must be followed by a
+     * call to {@link #release(String, DecoderProfile)}.
+     *
+     * @param context   the context, for accessing the assets.
+     * @param modelName the name of the model, which is the name of its directory in the assets.
+     * @param profile   the decoder profile.
+     * @return the future model, completed with an IOException if it cannot be loaded.
+     */
+    public @NotNull CompletableFuture<Model> acquire(final @NotNull Context context, final @NotNull String modelName, final @NotNull DecoderProfile profile) {
+        synchronized (mutex) {
+            final Entry entry = getOrLoad(context, modelName, profile);
+            entry.references++;
+            return entry.future;
+        }
+    }
+
+    /**
+     * Release a model referenced by {@link #acquire(Context, String)}. It stays loaded until the memory budget is
+     * exceeded.
+     *
+     * @param modelName the name of the model.
+     */
+    public void release(final @NotNull String modelName) {
+        release(modelName, DecoderProfile.BALANCED);
+    }
+
+    /**
+     * Release the variant of a model referenced by {@link #acquire(Context, String, DecoderProfile)}.
+     *
+     * @param modelName the name of the model.
+     * @param profile   the decoder profile.
+     */
+    public void release(final @NotNull String modelName, final @NotNull DecoderProfile profile) {
+        final String key = getKey(modelName, profile);
+        final List<Model> evicted;
+
+        synchronized (mutex) {
+            final Entry entry = entries.get(key);
+            if (entry == null || entry.references == 0) {
+                Log.e(TAG, "Release of the unreferenced model " + key);
+                return;
+            }
+
+            entry.references--;
+            evicted = evict(null);
+        }
+
+        closeModels(evicted);
+    }
+
+    /**
+     * Define the memory budget of the loaded models. The size of a model is estimated from the size of its files.
+     *
+     * @param bytes the memory budget, in bytes.
+     */
+    public void setMemoryBudget(final long bytes) {
+        if (bytes < 0) {
+            final String msg = String.format(Locale.getDefault(), "Invalid memory budget: %d bytes", bytes);
+            throw new IllegalArgumentException(msg);
+        }
+
+        final List<Model> evicted;
+
+        synchronized (mutex) {
+            memoryBudget = bytes;
+            evicted = evict(null);
+        }
+
+        closeModels(evicted);
+    }
+
+    /**
+     * Define the receiver of the progress of the unpacking of the models.
+     *
+     * @param listener the receiver of the progress, may be null.
+     */
+    public void setUnpackProgressListener(final @Nullable ModelUnpacker.ProgressListener listener) {
+        unpackProgressListener = listener;
+    }
+
+    /**
+     * Get the estimated memory used by the loaded models.
+     *
+     * @return the size of the loaded models, in bytes.
+     */
+    public long getLoadedSize() {
+        synchronized (mutex) {
+            return getLoadedSizeLocked();
+        }
+    }
+
+    /**
+     * Check if a model is loaded and ready to be used.
+     *
+     * @param modelName the name of the model.
+     * @return true if the model is loaded.
+     */
+    public boolean isLoaded(final @NotNull String modelName) {
+        synchronized (mutex) {
+            final Entry entry = entries.get(modelName);
+            return entry != null && entry.future.isDone() && !entry.future.isCompletedExceptionally();
+        }
+    }
+
+    /* ---------------------------------------------------------- */
+    /*                                                            */
+    /*                INTERNAL FUNCTIONS                          */
+    /*                                                            */
+    /* ---------------------------------------------------------- */
+
+    private static @NotNull String getKey(final @NotNull String modelName, final @NotNull DecoderProfile profile) {
+        return profile == DecoderProfile.BALANCED ? modelName : modelName + "@" + profile.name().toLowerCase(Locale.ROOT);
+    }
+
+    private @NotNull Entry getOrLoad(final @NotNull Context context, final @NotNull String modelName, final @NotNull DecoderProfile profile) {
+        final String key = getKey(modelName, profile);
+        final Entry existing = entries.get(key);
+        if (existing != null) {
+            return existing;
+        }
+
+        final Entry entry = new Entry();
+        entries.put(key, entry);
+
+        Log.i(TAG, "Loading the model " + key);
+        final long startTime = System.nanoTime();
+
+        final File modelDirectory = new File(context.getExternalFilesDir(null), MODELS_DIRECTORY + "/" + modelName);
+        final File variantDirectory = new File(context.getFilesDir(), VARIANTS_DIRECTORY + "/" + key);
+        final ModelUnpacker unpacker = new ModelUnpacker(context.getAssets(), modelName, modelDirectory);
+
+        final File loadedDirectory = profile == DecoderProfile.BALANCED ? modelDirectory : variantDirectory;
+
+        loader.execute(() -> {
+            final Model model;
+            try {
+                unpacker.unpack(unpackProgressListener);
+
+                if (profile != DecoderProfile.BALANCED) {
+                    profile.createVariant(modelDirectory, variantDirectory);
+                }
+
+                model = new Model(loadedDirectory.getAbsolutePath());
+            } catch (final IOException | RuntimeException e) {
+                // Any failure must complete the future, or the requests would wait for the model forever
+                onLoadFailed(key, entry, e);
+                return;
+            }
+
+            onLoaded(key, entry, model, loadedDirectory, startTime);
+        });
+
+        return entry;
+    }
+
+    private void onLoaded(final @NotNull String modelName, final @NotNull Entry entry, final @NotNull Model model, final @NotNull File modelDirectory, final long startTime) {
+        final long size = getDirectorySize(modelDirectory);
+        Log.i(TAG, String.format(Locale.getDefault(), "Model %s loaded in %d ms (%d bytes)", modelName, (System.nanoTime() - startTime) / 1_000_000, size));
+
+        final List<Model> evicted;
+
+        synchronized (mutex) {
+            entry.size = size;
+            entry.model = model;
+
+            // The model just loaded is kept, even above the budget, as it was requested
+            evicted = evict(entry);
+        }
+
+        entry.future.complete(model);
+
+        closeModels(evicted);
+    }
+
+    private void onLoadFailed(final @NotNull String modelName, final @NotNull Entry entry, final @NotNull Exception exception) {
+        Log.e(TAG, "Failed to load the model " + modelName, exception);
+
+        // Forget the failure, so that the next request tries again
+        synchronized (mutex) {
+            if (entries.get(modelName) == entry) {
+                entries.remove(modelName);
+            }
+        }
+
+        entry.future.completeExceptionally(exception);
+    }
+
+    /**
+     * Remove the least recently used models without reference until the loaded models fit in the budget.
+     *
+     * @param kept a model that must not be removed, may be null.
+     * @return the models to close, out of the lock.
+     */
+    private @NotNull List<Model> evict(final @Nullable Entry kept) {
+        final List<Model> evicted = new ArrayList<>();
+
+        long loadedSize = getLoadedSizeLocked();
+        final Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+        while (loadedSize > memoryBudget && iterator.hasNext()) {
+            final Map.Entry<String, Entry> mapEntry = iterator.next();
+            final Entry entry = mapEntry.getValue();
+
+            if (entry == kept || entry.references > 0 || entry.model == null) {
+                continue;
+            }
+
+            Log.i(TAG, "Evicting the model " + mapEntry.getKey());
+            iterator.remove();
+            loadedSize -= entry.size;
+            evicted.add(entry.model);
+        }
+
+        return evicted;
+    }
+
+    private long getLoadedSizeLocked() {
+        long size = 0;
+        for (final Entry entry : entries.values()) {
+            if (entry.model != null) {
+                size += entry.size;
+            }
+        }
+        return size;
+    }
+
+    private static void closeModels(final @NotNull List<Model> models) {
+        for (final Model model : models) {
+            model.close();
+        }
+    }
+
+    private static long getDirectorySize(final @NotNull File file) {
+        if (file.isFile()) {
+            return file.length();
+        }
+
+        final File[] children = file.listFiles();
+        if (children == null) {
+            return 0;
+        }
+
+        long size = 0;
+        for (final File child : children) {
+            size += getDirectorySize(child);
+        }
+        return size;
+    }
+
+    private static final class Entry {
+        final CompletableFuture<Model> future = new CompletableFuture<>();
+        Model model = null;
+        long size = 0;
+        int references = 0;
+    }
+}
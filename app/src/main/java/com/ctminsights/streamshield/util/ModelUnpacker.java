@@ -0,0 +1,301 @@
+package com.ctminsights.streamshield.util;
+
+import android.content.res.AssetManager;
+import android.util.Log;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Copy a model from the assets to the files of the application, only for the files that are missing or changed.
+ * <p>
+ * The models module generates a manifest next to the model at build time, with one line per file:
+ * {@code <sha256> <size> <relative path>}. The manifest of the last successful copy is kept in the target directory,
+ * so the files whose hash did not change are not copied again. The other files are copied in parallel, checked against
+ * their hash, then moved to their place.
+ */
+public class ModelUnpacker {
+
+    private static final String TAG = ModelUnpacker.class.getSimpleName();
+
+    // Name of the manifest, in the model assets and in the target directory
+    private static final String MANIFEST_NAME = "manifest";
+
+    // Suffix of the files being copied
+    private static final String TEMPORARY_SUFFIX = ".tmp";
+
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Receive the progress of the copy.
+     */
+    public interface ProgressListener {
+
+        /**
+         * Called after each copied file, from the copying threads.
+         *
+         * @param modelName   the name of the model.
+         * @param copiedBytes the number of bytes copied so far.
+         * @param totalBytes  the number of bytes to copy.
+         */
+        void onProgress(@NotNull String modelName, long copiedBytes, long totalBytes);
+    }
+
+    private final AssetManager assets;
+    private final String modelName;
+    private final File targetDirectory;
+
+    /**
+     * Create an unpacker.
+     *
+     * @param assets          the assets of the application.
+     * @param modelName       the name of the model, which is the name of its directory in the assets.
+     * @param targetDirectory the directory where the model is copied.
+     */
+    public ModelUnpacker(final @NotNull AssetManager assets, final @NotNull String modelName, final @NotNull File targetDirectory) {
+        this.assets = assets;
+        this.modelName = modelName;
+        this.targetDirectory = targetDirectory;
+    }
+
+    /**
+     * Bring the copy of the model up to date. The copy uses one thread per core, and returns once all the files are
+     * in place.
+     *
+     * @param listener the receiver of the progress, may be null.
+     * @return the directory of the model.
+     * @throws IOException if a file cannot be copied, or does not match its hash.
+     */
+    public @NotNull File unpack(final @Nullable ProgressListener listener) throws IOException {
+        final long startTime = System.nanoTime();
+
+        final String manifestContent = readAssetManifest();
+        final Map<String, ManifestEntry> expected = parseManifest(manifestContent);
+
+        final File localManifestFile = new File(targetDirectory, MANIFEST_NAME);
+        final Map<String, ManifestEntry> existing = localManifestFile.isFile()
+                ? parseManifest(readFile(localManifestFile))
+                : new LinkedHashMap<>();
+
+        // Only copy the files missing or changed since the last copy
+        final List<ManifestEntry> toCopy = new ArrayList<>();
+        long totalBytes = 0;
+        for (final ManifestEntry entry : expected.values()) {
+            final ManifestEntry previous = existing.get(entry.path);
+            final File file = new File(targetDirectory, entry.path);
+            if (previous == null || !previous.hash.equals(entry.hash) || file.length() != entry.size) {
+                toCopy.add(entry);
+                totalBytes += entry.size;
+            }
+        }
+
+        // Remove the files of the previous version that are gone
+        for (final ManifestEntry entry : existing.values()) {
+            if (!expected.containsKey(entry.path)) {
+                if (!new File(targetDirectory, entry.path).delete()) {
+                    Log.w(TAG, "Unable to delete the old file " + entry.path);
+                }
+            }
+        }
+
+        if (!toCopy.isEmpty()) {
+            // The manifest is only written once every file is in place, an interrupted copy is resumed next time
+            if (localManifestFile.exists() && !localManifestFile.delete()) {
+                throw new IOException("Unable to delete " + localManifestFile);
+            }
+
+            copyFiles(toCopy, totalBytes, listener);
+            writeFile(localManifestFile, manifestContent);
+        }
+
+        Log.i(TAG, String.format(Locale.getDefault(), "Model %s unpacked in %d ms (%d of %d files copied, %d bytes)", modelName, (System.nanoTime() - startTime) / 1_000_000, toCopy.size(), expected.size(), totalBytes));
+
+        return targetDirectory;
+    }
+
+    /* ---------------------------------------------------------- */
+    /*                                                            */
+    /*                INTERNAL FUNCTIONS                          */
+    /*                                                            */
+    /* ---------------------------------------------------------- */
+
+    private void copyFiles(final @NotNull List<ManifestEntry> entries, final long totalBytes, final @Nullable ProgressListener listener) throws IOException {
+        final AtomicLong copiedBytes = new AtomicLong();
+        final int threads = Math.max(1, Math.min(entries.size(), Runtime.getRuntime().availableProcessors()));
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+
+        try {
+            final List<Future<?>> futures = new ArrayList<>(entries.size());
+            for (final ManifestEntry entry : entries) {
+                futures.add(executor.submit(() -> {
+                    copyFile(entry);
+
+                    final long copied = copiedBytes.addAndGet(entry.size);
+                    if (listener != null) {
+                        listener.onProgress(modelName, copied, totalBytes);
+                    }
+                    return null;
+                }));
+            }
+
+            for (final Future<?> future : futures) {
+                future.get();
+            }
+        } catch (final ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException("Unable to unpack the model " + modelName, cause);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Unpacking of the model " + modelName + " was interrupted", e);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private void copyFile(final @NotNull ManifestEntry entry) throws IOException {
+        final File target = new File(targetDirectory, entry.path);
+        final File temporary = new File(targetDirectory, entry.path + TEMPORARY_SUFFIX);
+
+        final File parent = target.getParentFile();
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs() && !parent.isDirectory()) {
+            throw new IOException("Unable to create the directory " + parent);
+        }
+
+        final MessageDigest digest = newDigest();
+        final byte[] buffer = new byte[COPY_BUFFER_SIZE];
+
+        try (InputStream input = assets.open(modelName + "/" + entry.path);
+             OutputStream output = new FileOutputStream(temporary)) {
+            int bytesRead;
+            while ((bytesRead = input.read(buffer)) > 0) {
+                digest.update(buffer, 0, bytesRead);
+                output.write(buffer, 0, bytesRead);
+            }
+        }
+
+        final String hash = toHex(digest.digest());
+        if (!hash.equals(entry.hash)) {
+            //noinspection ResultOfMethodCallIgnored
+            temporary.delete();
+            throw new IOException("The content of " + entry.path + " does not match the manifest");
+        }
+
+        if (!temporary.renameTo(target)) {
+            throw new IOException("Unable to move " + temporary + " to " + target);
+        }
+    }
+
+    private @NotNull String readAssetManifest() throws IOException {
+        try (InputStream input = assets.open(modelName + "/" + MANIFEST_NAME)) {
+            return readStream(input);
+        }
+    }
+
+    private static @NotNull String readFile(final @NotNull File file) throws IOException {
+        try (InputStream input = new FileInputStream(file)) {
+            return readStream(input);
+        }
+    }
+
+    private static @NotNull String readStream(final @NotNull InputStream input) throws IOException {
+        final StringBuilder builder = new StringBuilder();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(input, StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                builder.append(line).append('\n');
+            }
+        }
+        return builder.toString();
+    }
+
+    private static void writeFile(final @NotNull File file, final @NotNull String content) throws IOException {
+        final File temporary = new File(file.getPath() + TEMPORARY_SUFFIX);
+        try (OutputStream output = new FileOutputStream(temporary)) {
+            output.write(content.getBytes(StandardCharsets.UTF_8));
+        }
+
+        if (!temporary.renameTo(file)) {
+            throw new IOException("Unable to move " + temporary + " to " + file);
+        }
+    }
+
+    private static @NotNull Map<String, ManifestEntry> parseManifest(final @NotNull String content) throws IOException {
+        final Map<String, ManifestEntry> entries = new LinkedHashMap<>();
+
+        for (final String line : content.split("\n")) {
+            if (line.isBlank()) {
+                continue;
+            }
+
+            // The path is last, as it may contain spaces
+            final String[] fields = line.split(" ", 3);
+            if (fields.length != 3) {
+                throw new IOException("Invalid manifest line: " + line);
+            }
+
+            try {
+                final ManifestEntry entry = new ManifestEntry(fields[2], fields[0], Long.parseLong(fields[1]));
+                entries.put(entry.path, entry);
+            } catch (final NumberFormatException e) {
+                throw new IOException("Invalid manifest line: " + line, e);
+            }
+        }
+
+        return entries;
+    }
+
+    private static @NotNull MessageDigest newDigest() throws IOException {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (final NoSuchAlgorithmException e) {
+            throw new IOException("SHA-256 is not available", e);
+        }
+    }
+
+    private static @NotNull String toHex(final @NotNull byte[] bytes) {
+        final char[] digits = "0123456789abcdef".toCharArray();
+        final char[] result = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            result[i * 2] = digits[(bytes[i] >> 4) & 0xf];
+            result[i * 2 + 1] = digits[bytes[i] & 0xf];
+        }
+        return new String(result);
+    }
+
+    private static final class ManifestEntry {
+        final String path;
+        final String hash;
+        final long size;
+
+        ManifestEntry(final @NotNull String path, final @NotNull String hash, final long size) {
+            this.path = path;
+            this.hash = hash;
+            this.size = size;
+        }
+    }
+}
@@ -0,0 +1,256 @@
+package com.ctminsights.streamshield.util;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Locale;
+
+/**
+ * Streaming sample rate converter for 16 bits mono audio, based on a polyphase windowed-sinc filter. The conversion
+ * ratio is reduced to L/M (eg 160/441 for 44100 Hz to 16000 Hz), and each output sample is computed with the single
+ * phase of the filter it needs, so the cost only depends on the number of output samples and the quality.
+ * <p>
+ * The chunks can have any size: the end of the previous chunk is kept as history for the next one. The instance does
+ * not allocate anything while converting chunks of a stable size, but must only be used by a single thread.
+ */
+public class PolyphaseResampler {
+
+    /**
+     * Trade-off between speed and accuracy of the conversion.
+     */
+    public enum Quality {
+        /**
+         * Short filter, with a wide transition band. Some aliasing remains close to the cutoff.
+         */
+        FAST(8, 0.80, 4.5),
+        /**
+         * Medium filter, good enough for the speech recognition.
+         */
+        BALANCED(16, 0.88, 6.5),
+        /**
+         * Long filter, with a narrow transition band and a strong attenuation of the aliasing.
+         */
+        HIGH(32, 0.93, 8.5);
+
+        private final int tapsPerPhase;
+        private final double cutoffRatio;
+        private final double kaiserBeta;
+
+        Quality(final int tapsPerPhase, final double cutoffRatio, final double kaiserBeta) {
+            this.tapsPerPhase = tapsPerPhase;
+            this.cutoffRatio = cutoffRatio;
+            this.kaiserBeta = kaiserBeta;
+        }
+    }
+
+    private final int inputRate;
+    private final int outputRate;
+    private final Quality quality;
+
+    // The reduced conversion ratio: upsampling by L, then downsampling by M
+    private final int upFactor;
+    private final int downFactor;
+
+    // The coefficients of the filter, by phase: coefficients[phase * taps + j] applies to x[i - j]
+    private final int taps;
+    private final float[] coefficients;
+
+    // The last (taps - 1) input samples followed by the current chunk
+    private float[] work;
+
+    // Position of the next output sample: index of the input sample (relative to the current chunk) and phase
+    private int nextInputIndex;
+    private int nextPhase;
+
+    public PolyphaseResampler(final int inputRate, final int outputRate, final @NotNull Quality quality) {
+        if (inputRate <= 0 || outputRate <= 0) {
+            final String msg = String.format(Locale.getDefault(), "Unable to convert from %d Hz to %d Hz", inputRate, outputRate);
+            throw new IllegalArgumentException(msg);
+        }
+
+        this.inputRate = inputRate;
+        this.outputRate = outputRate;
+        this.quality = quality;
+
+        final int divisor = gcd(inputRate, outputRate);
+        this.upFactor = outputRate / divisor;
+        this.downFactor = inputRate / divisor;
+
+        this.taps = quality.tapsPerPhase;
+        this.coefficients = computeCoefficients(quality);
+
+        this.work = new float[taps - 1 + 1024];
+        reset();
+    }
+
+    public int getInputRate() {
+        return inputRate;
+    }
+
+    public int getOutputRate() {
+        return outputRate;
+    }
+
+    public @NotNull Quality getQuality() {
+        return quality;
+    }
+
+    /**
+     * Get the maximum number of samples produced by converting a chunk.
+     *
+     * @param inputCount the number of samples of the chunk.
+     * @return the maximum number of samples produced.
+     */
+    public int getMaxOutputSamples(final int inputCount) {
+        return (int) (((long) inputCount * upFactor + downFactor - 1) / downFactor) + 1;
+    }
+
+    /**
+     * Forget the history, for starting a new stream.
+     */
+    public void reset() {
+        for (int i = 0; i < taps - 1; i++) {
+            work[i] = 0;
+        }
+
+        nextInputIndex = 0;
+        nextPhase = 0;
+    }
+
+    /**
+     * Convert a chunk of samples.
+     *
+     * @param input  the samples at the input rate.
+     * @param inPos  the position of the first sample to convert.
+     * @param count  the number of samples to convert.
+     * @param output the samples at the output rate. Must hold at least {@link #getMaxOutputSamples(int)} samples
+     *               after outPos.
+     * @param outPos the position of the first sample to write.
+     * @return the number of samples written.
+     */
+    public int process(final @NotNull short[] input, final int inPos, final int count, final @NotNull short[] output, final int outPos) {
+        if (inPos < 0 || count < 0 || inPos + count > input.length) {
+            final String msg = String.format(Locale.getDefault(), "Unable to convert %d samples from index %d as source is only %d len", count, inPos, input.length);
+            throw new IndexOutOfBoundsException(msg);
+        }
+
+        // Nothing to do
+        if (upFactor == downFactor) {
+            System.arraycopy(input, inPos, output, outPos, count);
+            return count;
+        }
+
+        final int history = taps - 1;
+
+        // Append the chunk after the history
+        if (work.length < history + count) {
+            final float[] larger = new float[history + count];
+            System.arraycopy(work, 0, larger, 0, history);
+            work = larger;
+        }
+        for (int i = 0; i < count; i++) {
+            work[history + i] = input[inPos + i];
+        }
+
+        final float[] x = work;
+        final float[] h = coefficients;
+
+        int written = 0;
+        int inputIndex = nextInputIndex;
+        int phase = nextPhase;
+
+        while (inputIndex < count) {
+            // y = sum(h[phase][j] * x[inputIndex - j]), with x[inputIndex] at work[history + inputIndex]
+            final int coefficientStart = phase * taps;
+            final int sampleStart = history + inputIndex;
+
+            float sum = 0;
+            for (int j = 0; j < taps; j++) {
+                sum += h[coefficientStart + j] * x[sampleStart - j];
+            }
+
+            output[outPos + written++] = clip(sum);
+
+            phase += downFactor;
+            inputIndex += phase / upFactor;
+            phase = phase % upFactor;
+        }
+
+        // Keep the end of the chunk as history for the next one
+        System.arraycopy(work, count, work, 0, history);
+
+        nextInputIndex = inputIndex - count;
+        nextPhase = phase;
+
+        return written;
+    }
+
+    /* ---------------------------------------------------------- */
+    /*                                                            */
+    /*                INTERNAL FUNCTIONS                          */
+    /*                                                            */
+    /* ---------------------------------------------------------- */
+
+    private float[] computeCoefficients(final @NotNull Quality quality) {
+        // The prototype filter works at the upsampled rate (L * inputRate), and its cutoff is below the lowest of the
+        // two Nyquist frequencies, relatively to the upsampled rate.
+        final int length = taps * upFactor;
+        final double cutoff = quality.cutoffRatio * 0.5 * Math.min(1.0, (double) upFactor / downFactor) / upFactor;
+        final double center = (length - 1) / 2.0;
+        final double besselOfBeta = besselI0(quality.kaiserBeta);
+
+        final double[] prototype = new double[length];
+        for (int k = 0; k < length; k++) {
+            final double t = k - center;
+            final double sinc = t == 0 ? 2 * cutoff : Math.sin(2 * Math.PI * cutoff * t) / (Math.PI * t);
+            final double ratio = 2.0 * k / (length - 1) - 1.0;
+            final double window = besselI0(quality.kaiserBeta * Math.sqrt(Math.max(0, 1 - ratio * ratio))) / besselOfBeta;
+            prototype[k] = sinc * window;
+        }
+
+        // Split the prototype by phase, and normalize each phase to a unit gain so that there is no ripple
+        final float[] result = new float[length];
+        for (int phase = 0; phase < upFactor; phase++) {
+            double sum = 0;
+            for (int j = 0; j < taps; j++) {
+                sum += prototype[phase + j * upFactor];
+            }
+            for (int j = 0; j < taps; j++) {
+                result[phase * taps + j] = (float) (prototype[phase + j * upFactor] / sum);
+            }
+        }
+
+        return result;
+    }
+
+    private static double besselI0(final double x) {
+        double sum = 1;
+        double term = 1;
+        final double halfX = x / 2;
+        for (int k = 1; k < 50; k++) {
+            term *= (halfX / k) * (halfX / k);
+            sum += term;
+            if (term < sum * 1e-12) {
+                break;
+            }
+        }
+        return sum;
+    }
+
+    private static short clip(final float value) {
+        if (value >= Short.MAX_VALUE) {
+            return Short.MAX_VALUE;
+        } else if (value <= Short.MIN_VALUE) {
+            return Short.MIN_VALUE;
+        }
+        return (short) Math.round(value);
+    }
+
+    private static int gcd(int a, int b) {
+        while (b != 0) {
+            final int t = a % b;
+            a = b;
+            b = t;
+        }
+        return a;
+    }
+}
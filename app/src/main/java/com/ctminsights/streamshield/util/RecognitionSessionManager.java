@@ -0,0 +1,245 @@
+package com.ctminsights.streamshield.util;
+
+import android.content.Context;
+import android.util.Log;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Run several recognition sessions at once in the process, for example one per participant of a conference call, or
+ * one per recording replayed. Each session has its own recognizer, with its own buffers, and its own chain of
+ * {@link WordReceiver} stages, while the sessions share the model, through the {@link ModelRegistry}, and the decoder
+ * threads.
+ * <p>
+ * The number of decoders running at once is limited, usually to the number of cores. A decoder holds a permit only
+ * while decoding a chunk, and the permits are given in arrival order, so the sessions take turns chunk after chunk
+ * instead of a busy session keeping the cores to itself.
+ */
+public final class RecognitionSessionManager {
+
+    private static final String TAG = RecognitionSessionManager.class.getSimpleName();
+
+    private final Context context;
+    private final int maxConcurrentDecoders;
+
+    // The decode loops of all the sessions. A loop keeps its thread while waiting for audio, so the pool grows with
+    // the sessions, while the permits bound the threads actually decoding.
+    private final ExecutorService decoderExecutor;
+    private final Semaphore decoderPermits;
+
+    private final Object mutex = new Object();
+
+    // The open sessions, by name
+    private final Map<String, Session> sessions = new LinkedHashMap<>();
+
+    private boolean shutdown = false;
+
+    /**
+     * Create a manager limiting the number of decoders running at once to the number of cores.
+     *
+     * @param context the context, for accessing the model.
+     */
+    public RecognitionSessionManager(final @NotNull Context context) {
+        this(context, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Create a manager.
+     *
+     * @param context               the context, for accessing the model.
+     * @param maxConcurrentDecoders the number of decoders that can run at once, for all the sessions.
+     */
+    public RecognitionSessionManager(final @NotNull Context context, final int maxConcurrentDecoders) {
+        if (maxConcurrentDecoders <= 0) {
+            final String msg = String.format(Locale.getDefault(), "Invalid number of concurrent decoders: %d", maxConcurrentDecoders);
+            throw new IllegalArgumentException(msg);
+        }
+
+        this.context = context;
+        this.maxConcurrentDecoders = maxConcurrentDecoders;
+        this.decoderPermits = new Semaphore(maxConcurrentDecoders, true);
+
+        final AtomicInteger decoderCount = new AtomicInteger();
+        this.decoderExecutor = Executors.newCachedThreadPool(runnable -> {
+            final Thread thread = new Thread(runnable, "RecognitionSessionManager Decoder " + decoderCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Open a session. It is started and stopped with {@link Session#start()} and {@link Session#stop()}, and can be
+     * configured through its recognizer before being started.
+     *
+     * @param name             the name of the session, unique among the open sessions.
+     * @param firstStage       the first stage receiving the texts of the session. It and its next stages are started
+     *                         and stopped with the session.
+     * @param audioSource      the audio of the session, or null if given through the addBytes functions of the
+     *                         recognizer.
+     * @param sampleRate       the sample rate of the audio.
+     * @param numberOfChannels the number of channels of the audio, 1 or 2.
+     * @return the session.
+     */
+    public @NotNull Session openSession(
+            final @NotNull String name,
+            final @NotNull WordReceiver firstStage,
+            final @Nullable AudioBroadcastBuffer audioSource,
+            final int sampleRate,
+            final int numberOfChannels
+    ) {
+        synchronized (mutex) {
+            if (shutdown) {
+                throw new RuntimeException("The RecognitionSessionManager has been shut down");
+            }
+            if (sessions.containsKey(name)) {
+                throw new IllegalArgumentException("A session named " + name + " is already open");
+            }
+
+            final SpeechRecognizer recognizer = new SpeechRecognizer(context, firstStage, audioSource, sampleRate, numberOfChannels, decoderExecutor, decoderPermits);
+            final Session session = new Session(name, recognizer, firstStage);
+            sessions.put(name, session);
+
+            Log.i(TAG, "Session " + name + " opened (" + sessions.size() + " open)");
+            return session;
+        }
+    }
+
+    /**
+     * Get an open session.
+     *
+     * @param name the name of the session.
+     * @return the session, or null if there is no open session with this name.
+     */
+    public @Nullable Session getSession(final @NotNull String name) {
+        synchronized (mutex) {
+            return sessions.get(name);
+        }
+    }
+
+    /**
+     * Stop a session if it is running, and forget it.
+     *
+     * @param name the name of the session.
+     */
+    public void closeSession(final @NotNull String name) {
+        final Session session;
+        synchronized (mutex) {
+            session = sessions.remove(name);
+        }
+
+        if (session == null) {
+            Log.e(TAG, "Close of the unknown session " + name);
+            return;
+        }
+
+        session.stop();
+        Log.i(TAG, "Session " + name + " closed");
+    }
+
+    /**
+     * Close all the sessions and release the decoder threads. No session can be opened afterwards.
+     */
+    public void shutdown() {
+        final List<Session> closed;
+        synchronized (mutex) {
+            shutdown = true;
+            closed = new ArrayList<>(sessions.values());
+            sessions.clear();
+        }
+
+        for (final Session session : closed) {
+            session.stop();
+        }
+
+        decoderExecutor.shutdown();
+    }
+
+    public int getSessionCount() {
+        synchronized (mutex) {
+            return sessions.size();
+        }
+    }
+
+    public int getMaxConcurrentDecoders() {
+        return maxConcurrentDecoders;
+    }
+
+    /**
+     * Get the number of decoders currently decoding a chunk, for all the sessions.
+     *
+     * @return the number of active decoders.
+     */
+    public int getActiveDecoders() {
+        return maxConcurrentDecoders - decoderPermits.availablePermits();
+    }
+
+    /**
+     * A recognition session: a recognizer and the chain of stages receiving its texts.
+     */
+    public static final class Session {
+
+        private final String name;
+        private final SpeechRecognizer recognizer;
+        private final WordReceiver firstStage;
+
+        private Session(final @NotNull String name, final @NotNull SpeechRecognizer recognizer, final @NotNull WordReceiver firstStage) {
+            this.name = name;
+            this.recognizer = recognizer;
+            this.firstStage = firstStage;
+        }
+
+        public @NotNull String getName() {
+            return name;
+        }
+
+        public @NotNull SpeechRecognizer getRecognizer() {
+            return recognizer;
+        }
+
+        public @NotNull WordReceiver getFirstStage() {
+            return firstStage;
+        }
+
+        /**
+         * Start the stages, from the last one, then the recognizer.
+         */
+        public synchronized void start() {
+            startStages(firstStage);
+            recognizer.start();
+        }
+
+        /**
+         * Stop the recognizer, then the stages from the first one, each one once it has processed its events, so that
+         * the last texts go through the chain.
+         */
+        public synchronized void stop() {
+            if (recognizer.isStarted()) {
+                recognizer.stop();
+            }
+
+            for (WordReceiver stage = firstStage; stage != null; stage = stage.nextStage) {
+                stage.drainAndStop();
+            }
+        }
+
+        private static void startStages(final @Nullable WordReceiver stage) {
+            if (stage == null) {
+                return;
+            }
+
+            startStages(stage.nextStage);
+            stage.start();
+        }
+    }
+}
@@ -0,0 +1,789 @@
+package com.ctminsights.streamshield.util;
+
+import android.util.Log;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Fixed capacity buffer between a single producer (calling {@link #addBytes(byte[])}) and a single consumer (reading
+ * the stream), without any lock. The data is never moved once written, the reading and writing positions are
+ * ever-growing sequences, and a bulk read copies the data with at most two
+ * {@link System#arraycopy(Object, int, Object, int, int)} calls.
+ * <p>
+ * When the buffer is full, the {@link BufferOverflowPolicy} defines whether the producer is parked until the consumer
+ * has freed enough space, or whether the oldest or the newest audio is dropped. Dropped data is always a multiple of
+ * the frame size, so that the consumer never gets misaligned samples.
+ * <p>
+ * The buffer also keeps the position of the stream: the number of frames (samples) written and read since the last
+ * {@link #restart()}, and the capture time of the most recent chunks, so that any read position can be matched with
+ * the time it was captured. When the producer leaves some captured frames out, or inserts frames that were not
+ * captured, it gives the capture position of the frames it adds, and any read position can be matched with the
+ * position of the frame in the captured stream as well.
+ */
+@SuppressWarnings("unused")
+public class RingBufferedInputStream extends InputStream {
+
+    private static final String TAG = RingBufferedInputStream.class.getSimpleName();
+
+    // The buffer, its size is a power of two so that positions can be computed with a mask
+    private final byte[] buffer;
+    private final int mask;
+
+    // The reading and writing sequences. They are never reset, the position in the buffer is (sequence & mask).
+    private final AtomicLong readSequence = new AtomicLong(0);
+    private final AtomicLong writeSequence = new AtomicLong(0);
+
+    // The sequence of the first byte of the current stream, the sample positions are relative to it
+    private volatile long startSequence = 0;
+
+    // The starting sequence and the capture time of the last chunks added. Only written by the producer.
+    private static final int CHUNK_LOG_SIZE = 1024;
+    private final AtomicLongArray chunkSequences = new AtomicLongArray(CHUNK_LOG_SIZE);
+    private final AtomicLongArray chunkCaptureTimes = new AtomicLongArray(CHUNK_LOG_SIZE);
+    private volatile long chunkCount = 0;
+
+    // The sequence and the capture position of the frames following the last gaps in the captured stream, where the
+    // frames written stop following the captured ones. Only written by the producer.
+    private static final int GAP_LOG_SIZE = 1024;
+    private final AtomicLongArray gapSequences = new AtomicLongArray(GAP_LOG_SIZE);
+    private final AtomicLongArray gapCapturePositions = new AtomicLongArray(GAP_LOG_SIZE);
+    private volatile long gapCount = 0;
+
+    // The frames dropped by the policy DROP_NEWEST since the last write, the next frames follow them in the captured
+    // stream. Only used by the producer.
+    private long droppedNewestFrames = 0;
+
+    // Capture position of the frames following the previous ones
+    private static final long NEXT_CAPTURE_POSITION = -1;
+
+    // The threads parked while waiting for data (reader) or for space (writer)
+    private volatile Thread waitingReader = null;
+    private volatile Thread waitingWriter = null;
+
+    // What to do when the buffer is full
+    private final BufferOverflowPolicy overflowPolicy;
+    private final int frameSize;
+
+    // The statistics. Only updated by the producer.
+    private volatile long droppedBytes = 0;
+    private volatile int peakFillLevel = 0;
+
+    // The notification of the fill level crossing a threshold. Only used by the producer.
+    private volatile FillLevelListener fillLevelListener = null;
+    private volatile int fillLevelThreshold = Integer.MAX_VALUE;
+    private boolean aboveFillLevelThreshold = false;
+
+    // Indicate that the stream is finished
+    private volatile boolean endOfStreamReached = false;
+
+    // Indicate that the stream is closed
+    private volatile boolean closed = false;
+
+    // Temporary array for the single byte read
+    private final byte[] singleByte = new byte[1];
+
+    /**
+     * Create a new buffer, blocking the producer when full.
+     *
+     * @param capacity the minimal capacity of the buffer. It is rounded up to the next power of two.
+     */
+    public RingBufferedInputStream(final int capacity) {
+        this(capacity, BufferOverflowPolicy.BLOCK, 1);
+    }
+
+    /**
+     * Create a new buffer.
+     *
+     * @param capacity       the minimal capacity of the buffer. It is rounded up to the next power of two.
+     * @param overflowPolicy what to do when the producer adds more data than the buffer can hold.
+     * @param frameSize      the size in bytes of an audio frame. Dropped data is always a multiple of this size.
+     */
+    public RingBufferedInputStream(final int capacity, final @NotNull BufferOverflowPolicy overflowPolicy, final int frameSize) {
+        if (capacity <= 0 || capacity > (1 << 30)) {
+            final String msg = String.format(Locale.getDefault(), "Unable to create a ring buffer with a capacity of %d bytes", capacity);
+            throw new IllegalArgumentException(msg);
+        }
+
+        final int size = Integer.highestOneBit(capacity) == capacity ? capacity : Integer.highestOneBit(capacity) << 1;
+
+        if (frameSize <= 0 || frameSize > size) {
+            final String msg = String.format(Locale.getDefault(), "Unable to use a frame size of %d bytes with a capacity of %d bytes", frameSize, size);
+            throw new IllegalArgumentException(msg);
+        }
+
+        this.buffer = new byte[size];
+        this.mask = size - 1;
+        this.overflowPolicy = overflowPolicy;
+        this.frameSize = frameSize;
+    }
+
+    /**
+     * Add a bytes array to the buffer.
+     *
+     * @param bytes the bytes to add.
+     * @implNote This function must only be called by a single producer thread.
+     */
+    public void addBytes(final @NotNull byte[] bytes) {
+        addBytes(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Add a bytes array to the buffer, captured now.
+     *
+     * @param bytes  the bytes to add.
+     * @param srcPos the starting position in the bytes to  add.
+     * @param length the number of bytes to add.
+     * @implNote This function must only be called by a single producer thread.
+     */
+    public void addBytes(final @NotNull byte[] bytes, int srcPos, int length) {
+        addBytes(bytes, srcPos, length, System.nanoTime());
+    }
+
+    /**
+     * Add a bytes array to the buffer. If there is not enough free space in the buffer, the overflow policy is applied:
+     * the call blocks until the consumer has read enough data or the stream is closed, or some data is dropped.
+     *
+     * @param bytes            the bytes to add.
+     * @param srcPos           the starting position in the bytes to  add.
+     * @param length           the number of bytes to add.
+     * @param captureTimeNanos the time the first byte was captured, from {@link System#nanoTime()}.
+     * @implNote This function must only be called by a single producer thread.
+     */
+    public void addBytes(final @NotNull byte[] bytes, int srcPos, int length, final long captureTimeNanos) {
+        if (srcPos < 0 || length < 0 || srcPos + length > bytes.length) {
+            final String msg = String.format(Locale.getDefault(), "Unable to add %d bytes from index %d as source is only %d len", length, srcPos, bytes.length);
+            throw new IndexOutOfBoundsException(msg);
+        }
+
+        addData(bytes, null, srcPos, length, captureTimeNanos, NEXT_CAPTURE_POSITION);
+    }
+
+    /**
+     * Add 16 bits samples to the buffer, stored as little-endian bytes. This avoids converting the samples to a
+     * temporary bytes array. The overflow policy is applied in the same way as when adding bytes.
+     *
+     * @param samples          the samples to add.
+     * @param srcPos           the position of the first sample to add.
+     * @param count            the number of samples to add.
+     * @param captureTimeNanos the time the first sample was captured, from {@link System#nanoTime()}.
+     * @implNote This function must only be called by a single producer thread.
+     */
+    public void addSamples(final @NotNull short[] samples, final int srcPos, final int count, final long captureTimeNanos) {
+        addSamples(samples, srcPos, count, captureTimeNanos, NEXT_CAPTURE_POSITION);
+    }
+
+    /**
+     * Add 16 bits samples that do not follow the previous ones in the captured stream, because some captured samples
+     * were left out before them, or because they were not captured at all, such as inserted silence.
+     *
+     * @param samples          the samples to add.
+     * @param srcPos           the position of the first sample to add.
+     * @param count            the number of samples to add.
+     * @param captureTimeNanos the time the first sample was captured, from {@link System#nanoTime()}.
+     * @param capturePosition  the position of the first sample in the captured stream, in frames since the last
+     *                         {@link #restart()}. Inserted samples have the position of the next captured sample.
+     * @implNote This function must only be called by a single producer thread.
+     */
+    public void addSamples(final @NotNull short[] samples, final int srcPos, final int count, final long captureTimeNanos, final long capturePosition) {
+        if (srcPos < 0 || count < 0 || srcPos + count > samples.length) {
+            final String msg = String.format(Locale.getDefault(), "Unable to add %d samples from index %d as source is only %d len", count, srcPos, samples.length);
+            throw new IndexOutOfBoundsException(msg);
+        }
+
+        addData(null, samples, srcPos * 2, count * 2, captureTimeNanos, capturePosition);
+    }
+
+    /**
+     * Reads the next byte of data from the input stream. The value byte is returned as an <code>int</code> in the
+     * range <code>0</code> to <code>255</code>. If no byte is available because the end of the stream has been reached,
+     * the value <code>-1</code> is returned. This method blocks until input data is available, the end of the stream
+     * is detected, or the stream is closed.
+     *
+     * @return the next byte of data, or <code>-1</code> if the end of the stream is reached.
+     * @implNote This function must only be called by a single consumer thread.
+     */
+    @Override
+    public int read() {
+        final int bytesRead = readAvailable(singleByte, 0, 1);
+        return bytesRead <= 0 ? -1 : singleByte[0] & 0xff;
+    }
+
+    /**
+     * Reads up to <code>len</code> bytes of data from the input stream into an array of bytes. This method blocks
+     * until at least one byte is available, the end of the stream is detected or the stream is closed. Then all the
+     * bytes available, up to <code>len</code>, are copied at once.
+     *
+     * @param b   the buffer into which the data is read.
+     * @param off the start offset in array <code>b</code> at which the data is written.
+     * @param len the maximum number of bytes to read.
+     * @return the total number of bytes read into the buffer, or <code>-1</code> if there is no more data because the
+     * end of the stream has been reached.
+     * @throws IOException               If the stream has been closed.
+     * @throws IndexOutOfBoundsException If <code>off</code> is negative, <code>len</code> is negative, or
+     *                                   <code>len</code> is greater than <code>b.length - off</code>
+     * @implNote This function must only be called by a single consumer thread.
+     */
+    @Override
+    public int read(final @NotNull byte[] b, int off, int len) throws IOException {
+        if (closed) {
+            throw new IOException("Stream is closed");
+        }
+
+        if (off < 0 || len < 0 || off + len > b.length) {
+            final String msg = String.format(Locale.getDefault(), "Unable to read %d bytes at index %d as target is only %d len", len, off, b.length);
+            throw new IndexOutOfBoundsException(msg);
+        }
+
+        if (len == 0) {
+            return 0;
+        }
+
+        return readAvailable(b, off, len);
+    }
+
+    /**
+     * Reads 16 bits little-endian samples, without going through a bytes array. This method blocks until
+     * <code>count</code> samples are available (or the whole buffer if it is smaller), the end of the stream is
+     * detected or the stream is closed. In the last two cases, the remaining samples are returned.
+     * The data must only be read by whole samples, so that the samples stay aligned.
+     *
+     * @param samples the buffer into which the samples are read.
+     * @param off     the start offset in array <code>samples</code> at which the samples are written.
+     * @param count   the number of samples to read.
+     * @return the number of samples read, or <code>-1</code> if there is no more data because the end of the stream
+     * has been reached.
+     * @throws IOException If the stream has been closed.
+     * @implNote This function must only be called by a single consumer thread.
+     */
+    public int readSamples(final @NotNull short[] samples, final int off, final int count) throws IOException {
+        if (closed) {
+            throw new IOException("Stream is closed");
+        }
+
+        if (off < 0 || count < 0 || off + count > samples.length) {
+            final String msg = String.format(Locale.getDefault(), "Unable to read %d samples at index %d as target is only %d len", count, off, samples.length);
+            throw new IndexOutOfBoundsException(msg);
+        }
+
+        if (count == 0) {
+            return 0;
+        }
+
+        final int len = Math.min(count * 2, buffer.length);
+
+        int toCopy;
+        while (true) {
+            final long read = readSequence.get();
+            final int available = (int) (writeSequence.get() - read);
+
+            if (available < len && !endOfStreamReached && !closed) {
+                waitForData(len);
+                continue;
+            }
+
+            // Whole samples only, a trailing odd byte is left
+            toCopy = Math.min(available, len) & ~1;
+            if (toCopy == 0) {
+                return -1;
+            }
+
+            copyOutSamples(read, samples, off, toCopy / 2);
+
+            // Release the space to the writer. If the writer has dropped the data being copied, it may have been
+            // overwritten, so just read again.
+            if (readSequence.compareAndSet(read, read + toCopy)) {
+                break;
+            }
+        }
+
+        unparkWriter();
+
+        return toCopy / 2;
+    }
+
+    @Override
+    public void close() {
+        Log.d(TAG, "Closing the input stream");
+
+        // When stream is finished, inform all the waiting threads that are blocked.
+        this.closed = true;
+
+        unparkReader();
+        unparkWriter();
+    }
+
+    @Override
+    public int available() {
+        return (int) (writeSequence.get() - readSequence.get());
+    }
+
+    /**
+     * Allows to define that the end of stream has been reached without actually closing the stream.
+     * This allows client to receive a proper -1 instead of an exception
+     */
+    public void setEndOfStreamReached() {
+        // When stream is finished, inform all the waiting threads that are blocked.
+        this.endOfStreamReached = true;
+
+        unparkReader();
+    }
+
+    /**
+     * Get the size of the allocated underlying buffer.
+     *
+     * @return the actual size of the allocated buffer.
+     */
+    public int getBufferSize() {
+        return buffer.length;
+    }
+
+    /**
+     * Get the policy applied when the buffer is full.
+     *
+     * @return the overflow policy.
+     */
+    public @NotNull BufferOverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    /**
+     * Get the number of bytes dropped because of the overflow policy since the creation of the buffer.
+     *
+     * @return the number of dropped bytes.
+     */
+    public long getDroppedBytes() {
+        return droppedBytes;
+    }
+
+    /**
+     * Get the highest number of bytes waiting in the buffer since the creation of the buffer (or the last call to
+     * {@link #resetPeakFillLevel()}).
+     *
+     * @return the high-water mark of the buffer, in bytes.
+     */
+    public int getPeakFillLevel() {
+        return peakFillLevel;
+    }
+
+    /**
+     * Reset the high-water mark to the current fill level.
+     */
+    public void resetPeakFillLevel() {
+        peakFillLevel = available();
+    }
+
+    /**
+     * Define a listener called when the number of buffered bytes goes above or back below a threshold. The listener
+     * is called from the producer thread, once per crossing, and so should return quickly.
+     *
+     * @param threshold the threshold, in bytes.
+     * @param listener  the listener, or null to remove the current one.
+     */
+    public void setFillLevelListener(final int threshold, final @Nullable FillLevelListener listener) {
+        this.fillLevelThreshold = threshold;
+        this.fillLevelListener = listener;
+    }
+
+    /**
+     * Get the size in bytes of a frame, ie the unit of the sample positions.
+     *
+     * @return the size of a frame.
+     */
+    public int getFrameSize() {
+        return frameSize;
+    }
+
+    /**
+     * Get the number of frames written in the buffer since the last {@link #restart()}, including the ones dropped by
+     * the policy {@link BufferOverflowPolicy#DROP_OLDEST} after having been written. The frames dropped by the policy
+     * {@link BufferOverflowPolicy#DROP_NEWEST} are never written, they only move the capture positions.
+     *
+     * @return the writing position, in frames.
+     */
+    public long getWrittenSamples() {
+        return (writeSequence.get() - startSequence) / frameSize;
+    }
+
+    /**
+     * Get the number of frames read from the buffer since the last {@link #restart()}, including the ones dropped
+     * before being read.
+     *
+     * @return the reading position, in frames.
+     */
+    public long getReadSamples() {
+        return (readSequence.get() - startSequence) / frameSize;
+    }
+
+    /**
+     * Get the time a frame of the current stream was captured. The time is computed from the capture time of the chunk
+     * holding the frame, so only the most recent chunks are known.
+     *
+     * @param samplePosition the position of the frame, as returned by {@link #getReadSamples()}.
+     * @param sampleRate     the number of frames per second.
+     * @return the capture time of the frame, from {@link System#nanoTime()}, or -1 if the frame is not known.
+     */
+    public long getCaptureTimeNanos(final long samplePosition, final int sampleRate) {
+        final long sequence = startSequence + samplePosition * frameSize;
+
+        // The last chunk starting before the sequence
+        final long found = findLastBefore(chunkSequences, chunkCount, sequence);
+        if (found < 0) {
+            return -1;
+        }
+
+        final int index = (int) (found % CHUNK_LOG_SIZE);
+        final long framesInChunk = (sequence - chunkSequences.get(index)) / frameSize;
+
+        return chunkCaptureTimes.get(index) + framesInChunk * 1_000_000_000L / sampleRate;
+    }
+
+    /**
+     * Get the position in the captured stream of a frame of the current stream. The position of a frame inserted by the
+     * producer is the one of the next captured frame. Only the positions following the most recent gaps are known.
+     *
+     * @param samplePosition the position of the frame, as returned by {@link #getReadSamples()}.
+     * @return the capture position of the frame, in frames since the last {@link #restart()}, or -1 if it is not known.
+     */
+    public long getCapturePosition(final long samplePosition) {
+        final long sequence = startSequence + samplePosition * frameSize;
+
+        // The last gap before the sequence, the frames following it are contiguous until the next gap
+        final long count = gapCount;
+        final long found = findLastBefore(gapSequences, count, sequence);
+        if (found < 0) {
+            return -1;
+        }
+
+        final int index = (int) (found % GAP_LOG_SIZE);
+        final long capturePosition = gapCapturePositions.get(index) + (sequence - gapSequences.get(index)) / frameSize;
+
+        // Inserted frames do not move the position past the next captured frame
+        if (found + 1 < count) {
+            return Math.min(capturePosition, gapCapturePositions.get((int) ((found + 1) % GAP_LOG_SIZE)));
+        }
+        return capturePosition;
+    }
+
+    /**
+     * Return a copy of the available data. The buffer is not modified.
+     *
+     * @return a copy of the available data.
+     * @implNote This function must only be called by the consumer thread. With the policy
+     * {@link BufferOverflowPolicy#DROP_OLDEST}, the copy may be mixed with newer data if the producer drops data
+     * while copying.
+     */
+    public @NotNull byte[] getBufferedData() {
+        final long read = readSequence.get();
+        final byte[] copy = new byte[(int) (writeSequence.get() - read)];
+
+        copyOut(read, copy, 0, copy.length);
+
+        return copy;
+    }
+
+    /**
+     * Set the buffer in its initial state. Any buffered data is discarded, the buffer is marked as non closed or ended
+     * and can then be re-used immediately.
+     *
+     * @implNote This function must only be called by the consumer thread, or when no producer is running.
+     */
+    public void restart() {
+        final long write = writeSequence.get();
+        startSequence = write;
+        readSequence.set(write);
+        logGap(write, 0);
+        droppedNewestFrames = 0;
+        closed = false;
+        endOfStreamReached = false;
+
+        unparkWriter();
+    }
+
+    /* ---------------------------------------------------------- */
+    /*                                                            */
+    /*                INTERNAL FUNCTIONS                          */
+    /*                                                            */
+    /* ---------------------------------------------------------- */
+
+    /**
+     * Wait for some data and copy all the available data, up to len.
+     *
+     * @return the number of bytes copied or -1 if the stream is finished.
+     */
+    private int readAvailable(final @NotNull byte[] b, int off, int len) {
+        int toCopy;
+        while (true) {
+            final long read = readSequence.get();
+            final int available = (int) (writeSequence.get() - read);
+
+            if (available == 0) {
+                // If the there is no data and the stream is finished, fine
+                if (endOfStreamReached || closed) {
+                    return -1;
+                }
+
+                waitForData(1);
+                continue;
+            }
+
+            toCopy = Math.min(available, len);
+            copyOut(read, b, off, toCopy);
+
+            // Release the space to the writer. If the writer has dropped the data being copied, it may have been
+            // overwritten, so just read again.
+            if (readSequence.compareAndSet(read, read + toCopy)) {
+                break;
+            }
+        }
+
+        unparkWriter();
+
+        return toCopy;
+    }
+
+    /**
+     * Search the last entry of a log whose sequence is before the given one.
+     *
+     * @return the index of the entry, or -1 if it is not in the log anymore.
+     */
+    private static long findLastBefore(final @NotNull AtomicLongArray sequences, final long count, final long sequence) {
+        final int logSize = sequences.length();
+
+        long low = Math.max(0, count - logSize + 1);
+        long high = count - 1;
+        long found = -1;
+        while (low <= high) {
+            final long middle = (low + high) >>> 1;
+            if (sequences.get((int) (middle % logSize)) <= sequence) {
+                found = middle;
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return found;
+    }
+
+    private void logGap(final long sequence, final long capturePosition) {
+        final long gap = gapCount;
+        gapSequences.set((int) (gap % GAP_LOG_SIZE), sequence);
+        gapCapturePositions.set((int) (gap % GAP_LOG_SIZE), capturePosition);
+        gapCount = gap + 1;
+    }
+
+    private int roundUpToFrame(final int length) {
+        final int remainder = length % frameSize;
+        return remainder == 0 ? length : length + frameSize - remainder;
+    }
+
+    private void updateFillLevel(final int fillLevel) {
+        if (fillLevel > peakFillLevel) {
+            peakFillLevel = fillLevel;
+        }
+
+        final FillLevelListener listener = fillLevelListener;
+        if (listener == null) {
+            return;
+        }
+
+        final boolean above = fillLevel >= fillLevelThreshold;
+        if (above != aboveFillLevelThreshold) {
+            aboveFillLevelThreshold = above;
+            listener.onFillLevelThresholdCrossed(above, fillLevel, buffer.length);
+        }
+    }
+
+    /**
+     * Add either bytes or samples, applying the overflow policy.
+     *
+     * @param srcPos the position of the first byte to add. For samples, it counts 2 bytes per sample.
+     * @param length the number of bytes to add.
+     */
+    private void addData(final @Nullable byte[] bytes, final @Nullable short[] samples, int srcPos, int length, final long captureTimeNanos, long capturePosition) {
+        if (length == 0) {
+            return;
+        }
+
+        // Keep the capture time of the chunk, before publishing its data
+        final long chunk = chunkCount;
+        chunkSequences.set((int) (chunk % CHUNK_LOG_SIZE), writeSequence.get());
+        chunkCaptureTimes.set((int) (chunk % CHUNK_LOG_SIZE), captureTimeNanos);
+        chunkCount = chunk + 1;
+
+        // The capture position following the frames written before, the frames dropped since then come after it
+        final long firstWrite = writeSequence.get();
+        final long gap = gapCount - 1;
+        final int gapIndex = (int) (gap % GAP_LOG_SIZE);
+        final long writtenPosition = gap < 0
+                ? (firstWrite - startSequence) / frameSize
+                : gapCapturePositions.get(gapIndex) + (firstWrite - gapSequences.get(gapIndex)) / frameSize;
+        if (capturePosition == NEXT_CAPTURE_POSITION) {
+            capturePosition = writtenPosition + droppedNewestFrames;
+        }
+        droppedNewestFrames = 0;
+
+        // When dropping the oldest data, only the end of data larger than the buffer can be kept
+        final int largestWrite = buffer.length - buffer.length % frameSize;
+        if (overflowPolicy == BufferOverflowPolicy.DROP_OLDEST && length > largestWrite) {
+            final int skipped = length - largestWrite;
+            droppedBytes += skipped;
+            srcPos += skipped;
+            length = largestWrite;
+            capturePosition += skipped / frameSize;
+        }
+
+        // Log a gap when the frames do not follow the ones written before in the captured stream: captured frames were
+        // left out or dropped by the overflow policy, or the frames were not captured
+        if (gap < 0 || capturePosition != writtenPosition) {
+            logGap(firstWrite, capturePosition);
+        }
+
+        // Data larger than the free space are written in several passes
+        while (length > 0 && !closed) {
+            final long write = writeSequence.get();
+            final long read = readSequence.get();
+            final int used = (int) (write - read);
+            final int free = buffer.length - used;
+
+            int toCopy = Math.min(free, length);
+
+            if (toCopy < length) {
+                if (overflowPolicy == BufferOverflowPolicy.DROP_OLDEST) {
+                    // Release the oldest frames. If the reader moved in the meantime, just try again.
+                    final int toDrop = Math.min(used, roundUpToFrame(length - free));
+                    if (!readSequence.compareAndSet(read, read + toDrop)) {
+                        continue;
+                    }
+
+                    droppedBytes += toDrop;
+                    toCopy = Math.min(free + toDrop, length);
+
+                } else if (overflowPolicy == BufferOverflowPolicy.DROP_NEWEST) {
+                    // Keep the frames that fit, forget about the others. They still count in the capture positions.
+                    toCopy -= toCopy % frameSize;
+                    droppedBytes += length - toCopy;
+                    droppedNewestFrames += (length - toCopy) / frameSize;
+                    length = toCopy;
+
+                } else if (free == 0) {
+                    // Wait for the reader to free some space
+                    waitForSpace();
+                    continue;
+                }
+            }
+
+            if (toCopy > 0) {
+                copyIn(bytes, samples, srcPos, write, toCopy);
+
+                // Publish the data
+                writeSequence.set(write + toCopy);
+                srcPos += toCopy;
+                length -= toCopy;
+
+                unparkReader();
+                updateFillLevel((int) (write + toCopy - readSequence.get()));
+            }
+        }
+    }
+
+    private void copyIn(final @Nullable byte[] src, final @Nullable short[] samples, final int srcPos, final long sequence, final int length) {
+        final int position = (int) (sequence & mask);
+
+        if (src == null && samples != null) {
+            // Write the samples as little-endian. The copy may start or end in the middle of a sample.
+            for (int i = 0; i < length; i++) {
+                final int sourceByte = srcPos + i;
+                final short sample = samples[sourceByte >> 1];
+                buffer[(position + i) & mask] = (byte) ((sourceByte & 1) == 0 ? sample : sample >> 8);
+            }
+            return;
+        }
+
+        final int firstPart = Math.min(length, buffer.length - position);
+
+        System.arraycopy(src, srcPos, buffer, position, firstPart);
+        if (firstPart < length) {
+            System.arraycopy(src, srcPos + firstPart, buffer, 0, length - firstPart);
+        }
+    }
+
+    private void copyOut(final long sequence, final @NotNull byte[] dst, final int dstPos, final int length) {
+        final int position = (int) (sequence & mask);
+        final int firstPart = Math.min(length, buffer.length - position);
+
+        System.arraycopy(buffer, position, dst, dstPos, firstPart);
+        if (firstPart < length) {
+            System.arraycopy(buffer, 0, dst, dstPos + firstPart, length - firstPart);
+        }
+    }
+
+    private void copyOutSamples(final long sequence, final @NotNull short[] dst, final int dstPos, final int count) {
+        int position = (int) (sequence & mask);
+        for (int i = 0; i < count; i++) {
+            dst[dstPos + i] = (short) ((buffer[position] & 0xff) | (buffer[(position + 1) & mask] << 8));
+            position = (position + 2) & mask;
+        }
+    }
+
+    /**
+     * Wait until at least minLength bytes are available, or the stream is finished.
+     */
+    private void waitForData(final int minLength) {
+        waitingReader = Thread.currentThread();
+
+        // Check again after having published the waiting thread, so that no wake-up can be lost
+        if (writeSequence.get() - readSequence.get() < minLength && !endOfStreamReached && !closed) {
+            LockSupport.park(this);
+        }
+
+        waitingReader = null;
+    }
+
+    private void waitForSpace() {
+        waitingWriter = Thread.currentThread();
+
+        // Check again after having published the waiting thread, so that no wake-up can be lost
+        if (writeSequence.get() - readSequence.get() == buffer.length && !closed) {
+            LockSupport.park(this);
+        }
+
+        waitingWriter = null;
+    }
+
+    private void unparkReader() {
+        final Thread reader = waitingReader;
+        if (reader != null) {
+            LockSupport.unpark(reader);
+        }
+    }
+
+    private void unparkWriter() {
+        final Thread writer = waitingWriter;
+        if (writer != null) {
+            LockSupport.unpark(writer);
+        }
+    }
+
+    /**
+     * Receive the notifications of the fill level of the buffer.
+     */
+    public interface FillLevelListener {
+
+        /**
+         * Called when the fill level of the buffer crosses the threshold.
+         *
+         * @param above     true if the fill level went above the threshold, false if it went back below.
+         * @param fillLevel the number of bytes in the buffer.
+         * @param capacity  the capacity of the buffer.
+         */
+        void onFillLevelThresholdCrossed(boolean above, int fillLevel, int capacity);
+    }
+}
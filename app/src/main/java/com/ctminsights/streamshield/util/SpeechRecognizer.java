@@ -5,243 +5,1679 @@ import android.util.Log;
 
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
-import org.json.JSONException;
-import org.json.JSONObject;
 import org.vosk.LibVosk;
 import org.vosk.LogLevel;
 import org.vosk.Model;
 import org.vosk.Recognizer;
-import org.vosk.android.RecognitionListener;
-import org.vosk.android.SpeechStreamService;
-import org.vosk.android.StorageService;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
-public class SpeechRecognizer implements RecognitionListener {
+public class SpeechRecognizer {
 
     private static final String TAG = SpeechRecognizer.class.getSimpleName();
 
-    private Model model;
-    private SpeechStreamService speechStreamService;
+    /**
+     * How the channels of a stereo stream are recognized.
+     */
+    public enum ChannelMode {
+        /**
+         * The channels are mixed to mono, following the downmix mode, and recognized once.
+         */
+        DOWNMIX,
+        /**
+         * The channels are recognized separately, each by its own recognizer, and the texts are tagged with
+         * {@link WordReceiver#CHANNEL_LEFT} or {@link WordReceiver#CHANNEL_RIGHT}.
+         */
+        SPLIT
+    }
+
+    /**
+     * A switch of decoder profile done by the adaptation, with the load that triggered it.
+     */
+    public static final class ProfileSwitch {
+
+        private final long timeMillis;
+        private final int channel;
+        private final long decodePosition;
+        private final DecoderProfile from;
+        private final DecoderProfile to;
+        private final double realTimeFactor;
+        private final int backlogBytes;
+
+        ProfileSwitch(
+                final long timeMillis,
+                final int channel,
+                final long decodePosition,
+                final @NotNull DecoderProfile from,
+                final @NotNull DecoderProfile to,
+                final double realTimeFactor,
+                final int backlogBytes
+        ) {
+            this.timeMillis = timeMillis;
+            this.channel = channel;
+            this.decodePosition = decodePosition;
+            this.from = from;
+            this.to = to;
+            this.realTimeFactor = realTimeFactor;
+            this.backlogBytes = backlogBytes;
+        }
+
+        public long getTimeMillis() {
+            return timeMillis;
+        }
+
+        public int getChannel() {
+            return channel;
+        }
+
+        /**
+         * Get the position of the switch in the captured audio, including the audio skipped by the voice activity
+         * detection.
+         *
+         * @return the position of the first sample decoded with the new profile, at the recognition sample rate.
+         */
+        public long getDecodePosition() {
+            return decodePosition;
+        }
+
+        public @NotNull DecoderProfile getFrom() {
+            return from;
+        }
+
+        public @NotNull DecoderProfile getTo() {
+            return to;
+        }
+
+        public double getRealTimeFactor() {
+            return realTimeFactor;
+        }
+
+        public int getBacklogBytes() {
+            return backlogBytes;
+        }
+
+        @Override
+        public @NotNull String toString() {
+            return String.format(Locale.getDefault(), "channel %d, %s -> %s at sample %d (real-time factor: %.2f, backlog: %d bytes)", channel, from, to, decodePosition, realTimeFactor, backlogBytes);
+        }
+    }
+
+    // Maximum audio waiting for the recognition. Older audio is dropped so that the recognition stays near real time.
+    private static final int MAX_BACKLOG_MS = 5000;
+
+    // Proportion of the buffer from which the backlog is reported
+    private static final float BACKLOG_WARNING_RATIO = 0.5f;
+
+    // Number of bytes of the audio source converted at once
+    private static final int SOURCE_READ_SIZE = 8192;
+
+    // Name of the recognition model, in the assets
+    static final String MODEL_NAME = "model-en-us";
+
+    // Interval between the checks for a stop while the model is loading
+    private static final int MODEL_WAIT_INTERVAL_MS = 100;
+
+    // Sample rate of the model (sample-frequency of model-en-us/conf/mfcc.conf). Higher rates are converted before
+    // being buffered, instead of being downsampled by the decoder.
+    static final int MODEL_SAMPLE_RATE = 16000;
+
+    // Default duration of the audio given at once to the decoder
+    private static final int DEFAULT_DECODE_CHUNK_MS = 100;
+
+    // Default minimum time between two revisions of a partial result forwarded to the stages
+    private static final int DEFAULT_PARTIAL_MIN_INTERVAL_MS = 200;
+
+    // Time given to the decoders for finishing the stream when stopping
+    private static final int DECODE_STOP_TIMEOUT_MS = 2000;
+
+    // The session number while the recognition is stopped
+    private static final int NO_SESSION = 0;
+
+    // Duration of the decoded audio over which the real-time factor is averaged
+    private static final int RTF_WINDOW_MS = 10000;
+
+    // Real-time factor above which the decoder switches to a faster profile, and below which it can switch to a more
+    // accurate one
+    private static final double RTF_SLOW_THRESHOLD = 0.8;
+    private static final double RTF_FAST_THRESHOLD = 0.35;
+
+    // Proportion of the buffer under which the backlog is low enough for a more accurate profile
+    private static final float BACKLOG_LOW_RATIO = 0.1f;
+
+    // Duration of the audio decoded with a profile before another switch, so that the average reflects the profile
+    private static final int PROFILE_MIN_DWELL_MS = 20000;
+
+    // Default settings of the voice activity detection
+    private static final int DEFAULT_VAD_HANGOVER_MS = 300;
+    private static final int DEFAULT_VAD_PRE_ROLL_MS = 200;
+
+    // Number of jumps of the decoded audio kept for placing the words of a recognizer in the buffer
+    private static final int FEED_LOG_SIZE = 256;
+
+    private final Context context;
     private final WordReceiver wordReceiver;
-    private final ByteBufferedInputStream buffer;
     private final float sampleRate;
     private final float numberOfChannels;
 
-    // For the stereo to mono conversion
-    private long stereoToMonoByteCount = 0;
-    private byte[] stereoToMonoTemp = null;
+    // Sample rate of the audio given to the decoder
+    private final int recognitionSampleRate;
+
+    // The recognition of each channel: only the first one is used unless the stereo channels are split
+    private final ChannelPipeline[] pipelines;
+    private volatile ChannelMode channelMode = ChannelMode.DOWNMIX;
+    private volatile int activePipelines = 1;
+
+    // The decode loops, one per recognized channel, on a pool bounded by the number of channels or on the pool shared
+    // by the sessions of a RecognitionSessionManager
+    private final ExecutorService decoderExecutor;
+
+    // Permits shared by the sessions for limiting the number of decoders running at once, null when not limited
+    private final Semaphore decoderPermits;
+
+    // The number of the session being decoded, the decode loops of another session stop at their next chunk, even if
+    // they outlive the stop
+    private final AtomicInteger decodingSession = new AtomicInteger(NO_SESSION);
+    private int sessionCount = NO_SESSION;
+    private volatile int decodeChunkMillis = DEFAULT_DECODE_CHUNK_MS;
+    private volatile int partialResultInterval = 1;
+    private volatile int partialMinIntervalMillis = DEFAULT_PARTIAL_MIN_INTERVAL_MS;
+
+    // The partial results forwarded to the stages, and the ones suppressed: repeated, or replaced by a later revision
+    // before their turn came
+    private final AtomicLong forwardedPartials = new AtomicLong();
+    private final AtomicLong duplicatePartials = new AtomicLong();
+    private final AtomicLong throttledPartials = new AtomicLong();
+
+    // The shared audio source, read in place by the decode loops, each through its own cursor
+    private final AudioBroadcastBuffer audioSource;
+
+    // How stereo audio is converted to mono, when the channels are not split
+    private volatile StereoDownmixer.Mode downmixMode = StereoDownmixer.Mode.LEFT;
+
+    // For the conversion to the recognition sample rate
+    private volatile PolyphaseResampler.Quality resamplingQuality = PolyphaseResampler.Quality.BALANCED;
+
+    // For skipping the audio without speech
+    private volatile boolean vadEnabled = true;
+    private volatile int vadHangoverMillis = DEFAULT_VAD_HANGOVER_MS;
+    private volatile int vadPreRollMillis = DEFAULT_VAD_PRE_ROLL_MS;
+    private volatile VoiceActivityDetector.SilenceMode vadSilenceMode = VoiceActivityDetector.SilenceMode.MARKER;
+
+    // The stages cleaning up the audio before the voice activity detection, none by default
+    private volatile List<AudioPreprocessor.StageFactory> preprocessingStages = Collections.emptyList();
+
+    // The keywords to spot instead of transcribing, null for the full dictation
+    private volatile KeywordSpotter keywordSpotter = null;
+
+    // The decoder profile at start, also the most accurate one reached by the adaptation
+    private volatile DecoderProfile decoderProfile = DecoderProfile.BALANCED;
+    private volatile boolean adaptiveProfile = true;
 
+    // The decoder profile of all the channels, which switch to it at the end of their current utterance, and the
+    // measures that decided it. Chosen by the decode loops one at a time, under the lock.
+    private final Object profileLock = new Object();
+    private volatile DecoderProfile targetProfile = null;
+    private volatile double targetRealTimeFactor;
+    private volatile int targetBacklogBytes;
+
+    // Every switch of decoder profile since the creation
+    private final List<ProfileSwitch> profileSwitches = new ArrayList<>();
+
+    /**
+     * Create a recognizer receiving its audio through {@link #addBytes(byte[])}.
+     */
     public SpeechRecognizer(
             @NotNull final Context context,
             @NotNull final WordReceiver wordReceiver,
             final int sampleRate,
             final int numberOfChannels
     ) {
+        this(context, wordReceiver, null, sampleRate, numberOfChannels);
+    }
+
+    /**
+     * Create a recognizer. If an audio source is given, each decoder registers a cursor on it when started and
+     * converts the audio directly from the shared buffer, without any other thread nor copy.
+     */
+    public SpeechRecognizer(
+            @NotNull final Context context,
+            @NotNull final WordReceiver wordReceiver,
+            @Nullable final AudioBroadcastBuffer audioSource,
+            final int sampleRate,
+            final int numberOfChannels
+    ) {
+        this(context, wordReceiver, audioSource, sampleRate, numberOfChannels, createDecoderExecutor(numberOfChannels), null);
+    }
+
+    /**
+     * Create a recognizer decoding on the given executor. It needs a thread per recognized channel while started. If
+     * permits are given, one is held by a decoder for each chunk it decodes.
+     */
+    SpeechRecognizer(
+            @NotNull final Context context,
+            @NotNull final WordReceiver wordReceiver,
+            @Nullable final AudioBroadcastBuffer audioSource,
+            final int sampleRate,
+            final int numberOfChannels,
+            @NotNull final ExecutorService decoderExecutor,
+            @Nullable final Semaphore decoderPermits
+    ) {
+        if (numberOfChannels != 1 && numberOfChannels != 2) {
+            throw new RuntimeException("Only mono or stereo data are supported");
+        }
+
+        this.context = context;
         this.wordReceiver = wordReceiver;
-        this.buffer = new ByteBufferedInputStream(1024);
+        this.audioSource = audioSource;
         this.sampleRate = (float) sampleRate;
         this.numberOfChannels = numberOfChannels;
+        this.recognitionSampleRate = Math.min(sampleRate, MODEL_SAMPLE_RATE);
+
+        this.pipelines = new ChannelPipeline[numberOfChannels];
+        for (int channel = 0; channel < numberOfChannels; channel++) {
+            pipelines[channel] = new ChannelPipeline(channel);
+        }
+
+        this.decoderExecutor = decoderExecutor;
+        this.decoderPermits = decoderPermits;
 
         LibVosk.setLogLevel(LogLevel.DEBUG);
 
-        // Init voice recognition  model();
-        StorageService.unpack(
-                context,
-                "model-en-us",
-                "model",
-                (model) -> this.model = model,
-                (exception) -> setErrorState("Failed to unpack the model: " + exception.getMessage()));
+        // Load the model in the background, it is shared with the other recognizers
+        ModelRegistry.getInstance().preload(context, MODEL_NAME).whenComplete((model, exception) -> {
+            if (exception != null) {
+                setErrorState("Failed to unpack the model: " + exception.getMessage());
+            }
+        });
     }
 
-    @Override
-    public void onPartialResult(final @Nullable String hypothesis) {
-        if (hypothesis == null) {
-            return;
+    public void addBytes(final @NotNull byte[] bytes) {
+        addBytes(bytes, 0, bytes.length);
+    }
+
+    public void addBytes(final @NotNull byte[] bytes, final int srcPos, final int length) {
+        addBytes(bytes, srcPos, length, System.nanoTime());
+    }
+
+    /**
+     * Add some audio to recognize, when the recognizer has no audio source.
+     *
+     * @param bytes            the audio data.
+     * @param srcPos           the starting position in the bytes to  add.
+     * @param length           the number of bytes to add.
+     * @param captureTimeNanos the time the first byte was captured, from {@link System#nanoTime()}.
+     * @throws IllegalStateException if the recognizer reads its audio from a source.
+     */
+    public void addBytes(final @NotNull byte[] bytes, final int srcPos, final int length, final long captureTimeNanos) {
+        // The decode loops convert the audio of the source, the conversions must only be used by a single thread
+        if (audioSource != null) {
+            throw new IllegalStateException("Unable to add audio to a recognizer reading from an audio source");
         }
 
-        try {
-            JSONObject jObject = new JSONObject(hypothesis);
-            final Object hypothesisRawValue = jObject.get("partial");
-            if (hypothesisRawValue instanceof String) {
-                final String hypothesisValue = (String) hypothesisRawValue;
-
-                if (!hypothesisValue.isBlank()) {
-                    Log.d(TAG, "Partial result received: " + hypothesis.replace('\n', ' '));
-                    wordReceiver.putText(hypothesisValue);
-                }
-            }
-        } catch (JSONException e) {
-            Log.e(TAG, "Unable to read partial result", e);
+        // Each channel takes its own samples from the data
+        for (int i = 0; i < activePipelines; i++) {
+            pipelines[i].addBytes(bytes, srcPos, length, captureTimeNanos);
         }
     }
 
-    @Override
-    public void onResult(final @Nullable String hypothesis) {
-        if (hypothesis == null) {
-            return;
+    /**
+     * Define how stereo audio is converted to the mono audio needed by the recognition. It is applied from the next
+     * chunk of audio.
+     *
+     * @param mode the conversion mode.
+     */
+    public void setDownmixMode(final @NotNull StereoDownmixer.Mode mode) {
+        downmixMode = mode;
+    }
+
+    /**
+     * Define if the channels of a stereo stream are mixed, or recognized separately. It has no effect on a mono stream,
+     * and is applied from the next start of the recognition.
+     *
+     * @param mode the channel mode.
+     */
+    public void setChannelMode(final @NotNull ChannelMode mode) {
+        channelMode = mode;
+    }
+
+    /**
+     * Define the quality of the conversion from the capture sample rate to the sample rate of the model. It is applied
+     * from the next start of the recognition.
+     *
+     * @param quality the quality of the conversion.
+     */
+    public void setResamplingQuality(final @NotNull PolyphaseResampler.Quality quality) {
+        resamplingQuality = quality;
+    }
+
+    /**
+     * Define how the audio without speech is kept away from the decoder. It is applied from the next start of the
+     * recognition.
+     *
+     * @param enabled        false to give all the audio to the decoder.
+     * @param hangoverMillis the time the audio is still given to the decoder after the end of the speech.
+     * @param preRollMillis  the time of audio preceding the speech given to the decoder when the speech starts.
+     * @param silenceMode    what is given to the decoder instead of the audio without speech.
+     */
+    public void setVoiceActivityDetection(
+            final boolean enabled,
+            final int hangoverMillis,
+            final int preRollMillis,
+            final @NotNull VoiceActivityDetector.SilenceMode silenceMode
+    ) {
+        if (hangoverMillis < 0 || preRollMillis < 0) {
+            final String msg = String.format(Locale.getDefault(), "Invalid voice activity detection settings (hangover: %d ms, pre-roll: %d ms)", hangoverMillis, preRollMillis);
+            throw new IllegalArgumentException(msg);
         }
 
-        try {
-            JSONObject jObject = new JSONObject(hypothesis);
-            final Object hypothesisRawValue = jObject.get("text");
-            if (hypothesisRawValue instanceof String) {
-                final String hypothesisValue = (String) hypothesisRawValue;
-
-                if (!hypothesisValue.isBlank()) {
-                    Log.d(TAG, "Result received: " + hypothesisValue.replace('\n', ' '));
-                    wordReceiver.signalEndOfSentence();
-                }
+        vadEnabled = enabled;
+        vadHangoverMillis = hangoverMillis;
+        vadPreRollMillis = preRollMillis;
+        vadSilenceMode = silenceMode;
+    }
+
+    /**
+     * Define the chain of filters cleaning up the audio of each channel before the voice activity detection and the
+     * decoder, at the recognition sample rate. It is applied from the next start of the recognition.
+     *
+     * @param stages the stages, in processing order, none to give the audio as it is.
+     */
+    public void setAudioPreprocessing(final @NotNull List<AudioPreprocessor.StageFactory> stages) {
+        preprocessingStages = Collections.unmodifiableList(new ArrayList<>(stages));
+    }
+
+    /**
+     * Get the average time spent on the pre-processing of a block of audio, for the slowest channel.
+     *
+     * @return the average time, in nanoseconds, or 0 without pre-processing.
+     */
+    public long getPreprocessingNanosPerBlock() {
+        long nanos = 0;
+        for (int i = 0; i < activePipelines; i++) {
+            final AudioPreprocessor preprocessor = pipelines[i].preprocessor;
+            if (preprocessor != null) {
+                nanos = Math.max(nanos, preprocessor.getAverageBlockNanos());
             }
-        } catch (JSONException e) {
-            Log.e(TAG, "Unable to read result", e);
         }
+        return nanos;
     }
 
-    @Override
-    public void onFinalResult(final @Nullable String hypothesis) {
-        if (hypothesis == null) {
-            return;
+    /**
+     * Define the width of the search of the decoder. When adaptive, the decoder switches to a faster profile when it
+     * cannot keep up with the audio, and back up to the given profile when it has time to spare, at the end of an
+     * utterance. It is applied from the next start of the recognition.
+     *
+     * @param profile  the profile at start, and the most accurate one used.
+     * @param adaptive false to always use the given profile.
+     */
+    public void setDecoderProfile(final @NotNull DecoderProfile profile, final boolean adaptive) {
+        decoderProfile = profile;
+        adaptiveProfile = adaptive;
+    }
+
+    /**
+     * Get the decoder profile currently used for the first channel.
+     *
+     * @return the decoder profile.
+     */
+    public @NotNull DecoderProfile getActiveDecoderProfile() {
+        final DecoderProfile profile = pipelines[0].activeProfile;
+        return profile == null ? decoderProfile : profile;
+    }
+
+    /**
+     * Get the ratio between the time spent decoding and the duration of the audio decoded, averaged over the last
+     * seconds of audio, for the slowest channel. Above 1, the recognition lags more and more.
+     *
+     * @return the real-time factor, or 0 before the first chunk is decoded.
+     */
+    public double getRealTimeFactor() {
+        double realTimeFactor = 0;
+        for (int i = 0; i < activePipelines; i++) {
+            realTimeFactor = Math.max(realTimeFactor, pipelines[i].realTimeFactor);
         }
+        return realTimeFactor;
+    }
 
-        try {
-            JSONObject jObject = new JSONObject(hypothesis);
-            final Object hypothesisRawValue = jObject.get("text");
-            if (hypothesisRawValue instanceof String) {
-                final String hypothesisValue = (String) hypothesisRawValue;
-                if (!hypothesisValue.isBlank()) {
-                    Log.d(TAG, "Final result received: " + hypothesisValue.replace('\n', ' '));
-                    wordReceiver.signalEndOfSentence();
-                }
-            }
-        } catch (JSONException e) {
-            Log.e(TAG, "Unable to read result", e);
+    /**
+     * Get the switches of decoder profile done by the adaptation since the creation of the recognizer.
+     *
+     * @return the switches, oldest first.
+     */
+    public @NotNull List<ProfileSwitch> getProfileSwitches() {
+        synchronized (profileSwitches) {
+            return new ArrayList<>(profileSwitches);
         }
+    }
 
-        if (speechStreamService != null) {
-            speechStreamService.stop();
-            speechStreamService = null;
+    /**
+     * Spot a list of phrases instead of transcribing the speech. The recognizer only searches among the phrases,
+     * which costs far less than the full dictation, and the matches are given to the word receiver with
+     * {@link WordReceiver#putKeyword(int, WordEvent)}. It can be changed while running: the new list is applied at the
+     * end of the current utterance.
+     *
+     * @param spotter the phrases to spot, or null to go back to the full dictation.
+     */
+    public void setKeywordSpotter(final @Nullable KeywordSpotter spotter) {
+        keywordSpotter = spotter;
+    }
+
+    /**
+     * Get the proportion of the audio of the current session classified as speech by the voice activity detection, on
+     * the first channel.
+     *
+     * @return the speech ratio between 0 and 1, or -1 if the voice activity detection is disabled.
+     */
+    public double getSpeechRatio() {
+        final VoiceActivityDetector detector = pipelines[0].voiceActivityDetector;
+        return detector == null ? -1.0 : detector.getSpeechRatio();
+    }
+
+    /**
+     * Define the duration of the audio given at once to the decoder. Short chunks lower the latency of the results,
+     * long chunks lower the cost of the calls to the decoder. It is applied from the next start of the recognition.
+     *
+     * @param chunkMillis the duration of a chunk, in milliseconds.
+     */
+    public void setDecodeChunkMillis(final int chunkMillis) {
+        if (chunkMillis <= 0 || chunkMillis > MAX_BACKLOG_MS) {
+            final String msg = String.format(Locale.getDefault(), "Invalid decode chunk duration: %d ms", chunkMillis);
+            throw new IllegalArgumentException(msg);
         }
+
+        decodeChunkMillis = chunkMillis;
     }
 
-    @Override
-    public void onError(final @Nullable Exception e) {
-        if (e == null) {
-            return;
+    /**
+     * Define how often the partial results are requested from the decoder. Requesting a partial result has a cost,
+     * so it can be done only every few chunks. It is applied from the next start of the recognition.
+     *
+     * @param chunks the number of chunks between two partial results, 1 to get one after each chunk.
+     */
+    public void setPartialResultInterval(final int chunks) {
+        if (chunks <= 0) {
+            final String msg = String.format(Locale.getDefault(), "Invalid partial result interval: %d chunks", chunks);
+            throw new IllegalArgumentException(msg);
         }
 
-        if (e.getMessage() == null) {
-            setErrorState(e.toString());
-        } else {
-            setErrorState(e.getMessage());
+        partialResultInterval = chunks;
+    }
+
+    /**
+     * Define the minimum time between two partial results forwarded to the stages. The decoder repeats the same
+     * partial result many times per second, and revises it often, while each one costs a full pass in the stages. A
+     * partial result identical to the previous one is always dropped, and one only adding words at the end is always
+     * forwarded at once. The other revisions are forwarded at most once per interval, the latest one winning, and the
+     * last one is always forwarded before the end of the sentence.
+     *
+     * @param intervalMillis the minimum time between two revisions, 0 to forward every change at once.
+     */
+    public void setPartialMinIntervalMillis(final int intervalMillis) {
+        if (intervalMillis < 0) {
+            final String msg = String.format(Locale.getDefault(), "Invalid partial result interval: %d ms", intervalMillis);
+            throw new IllegalArgumentException(msg);
         }
+
+        partialMinIntervalMillis = intervalMillis;
     }
 
-    @Override
-    public void onTimeout() {
-        wordReceiver.signalError("Timeout");
+    /**
+     * Get the number of partial results forwarded to the stages since the creation, for all the channels.
+     *
+     * @return the number of partial results forwarded.
+     */
+    public long getForwardedPartialCount() {
+        return forwardedPartials.get();
     }
 
-    public void addBytes(final @NotNull byte[] bytes) {
-        if (numberOfChannels == 1) {
-            addBytesFromMono(bytes);
-        } else if (numberOfChannels == 2) {
-            addBytesFromStereo(bytes);
-        } else {
-            throw new RuntimeException("Only mono or stereo data are supported");
-        }
+    /**
+     * Get the number of partial results dropped because they were identical to the previous one.
+     *
+     * @return the number of repeated partial results.
+     */
+    public long getDuplicatePartialCount() {
+        return duplicatePartials.get();
+    }
+
+    /**
+     * Get the number of partial results dropped because a later revision replaced them within the minimum interval.
+     *
+     * @return the number of throttled partial results.
+     */
+    public long getThrottledPartialCount() {
+        return throttledPartials.get();
     }
 
-    private void addBytesFromMono(final @NotNull byte[] bytes) {
-        buffer.addBytes(bytes);
+    /**
+     * Get the sample rate of the audio given to the decoder. It is the capture sample rate, lowered to the sample rate
+     * of the model if needed.
+     *
+     * @return the recognition sample rate, in Hz.
+     */
+    public int getRecognitionSampleRate() {
+        return recognitionSampleRate;
     }
 
-    private synchronized void addBytesFromStereo(final @NotNull byte[] bytes) {
-        // Keep the same temp array if possible to avoid allocating to frequently
-        if (stereoToMonoTemp == null || stereoToMonoTemp.length < bytes.length) {
-            stereoToMonoTemp = new byte[bytes.length];
+    /**
+     * Get the number of bytes of audio dropped because the recognition was lagging too much, for all the channels. The
+     * audio the audio source dropped before the recognition read it is counted as well, at the recognition sample rate.
+     *
+     * @return the number of dropped bytes.
+     */
+    public long getDroppedBytes() {
+        long droppedBytes = 0;
+        for (final ChannelPipeline pipeline : pipelines) {
+            droppedBytes += pipeline.buffer.getDroppedBytes() + pipeline.getSourceDroppedBytes();
         }
+        return droppedBytes;
+    }
+
+    /**
+     * Get the largest backlog of audio waiting for the recognition, on any channel.
+     *
+     * @return the high-water mark of the buffers, in bytes.
+     */
+    public int getPeakBacklogBytes() {
+        int peak = 0;
+        for (final ChannelPipeline pipeline : pipelines) {
+            peak = Math.max(peak, pipeline.buffer.getPeakFillLevel());
+        }
+        return peak;
+    }
 
-        int tempUsedSize = 0;
+    /**
+     * Get the number of mono samples captured for the first channel since the recognition was started, at the
+     * recognition sample rate. The audio skipped by the voice activity detection is counted as well.
+     *
+     * @return the capture position, in samples.
+     */
+    public long getCapturePosition() {
+        return pipelines[0].capturedSamples;
+    }
 
-        for (byte aByte : bytes) {
-            if (stereoToMonoByteCount % 4 == 0 || (stereoToMonoByteCount - 1) % 4 == 0) {
-                stereoToMonoTemp[tempUsedSize] = aByte;
-                tempUsedSize++;
-            }
-            stereoToMonoByteCount++;
+    /**
+     * Get the position in the captured audio of the first channel up to which the decoder has been given the audio,
+     * at the recognition sample rate. The audio skipped by the voice activity detection, and the samples dropped
+     * because the recognition was lagging, are counted as well, so that the position matches
+     * {@link #getCapturePosition()}.
+     *
+     * @return the decode position, in samples.
+     */
+    public long getDecodePosition() {
+        return pipelines[0].getDecodePosition();
+    }
+
+    /**
+     * Get the time between the capture of the audio currently being decoded and now, for the most lagging channel.
+     *
+     * @return the lag of the recognition, in milliseconds.
+     */
+    public long getDecodeLagMillis() {
+        long lag = 0;
+        for (int i = 0; i < activePipelines; i++) {
+            lag = Math.max(lag, pipelines[i].getDecodeLagMillis());
         }
+        return lag;
+    }
 
-        buffer.addBytes(stereoToMonoTemp, 0, tempUsedSize);
+    /**
+     * Check if the recognition is running, between {@link #start()} and {@link #stop()}.
+     *
+     * @return true if started.
+     */
+    public boolean isStarted() {
+        return pipelines[0].decodeTask != null;
     }
 
     public void stop() {
         Log.i(TAG, "Stop recognizing a stream");
 
-        final SpeechStreamService currentService = speechStreamService;
-
         // Do not stop an already stopped process
-        if (currentService == null) {
+        if (pipelines[0].decodeTask == null) {
             Log.e(TAG, "Stop has been called on an already stopped instance");
 
             return;
         }
 
-        // Finish the stream before stopping the service
-        buffer.setEndOfStreamReached();
+        final int pipelineCount = activePipelines;
 
-        // Stop the voice recognition services
-        currentService.stop();
-        speechStreamService = null;
+        // Let the decoders finish the buffered audio and give their final result
+        for (int i = 0; i < pipelineCount; i++) {
+            pipelines[i].logSessionStatistics();
+            pipelines[i].setEndOfStreamReached();
+        }
 
-        // Close the stream before stopping the service
-        buffer.close();
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(DECODE_STOP_TIMEOUT_MS);
+        for (int i = 0; i < pipelineCount; i++) {
+            pipelines[i].waitForDecoder(deadline);
+        }
 
+        // Stop the decoders still running, they close their recognizer themselves, and are awaited by the next start
+        decodingSession.set(NO_SESSION);
+        for (int i = 0; i < pipelineCount; i++) {
+            pipelines[i].close();
+            pipelines[i].stoppedDecodeTask = pipelines[i].decodeTask;
+            pipelines[i].decodeTask = null;
+        }
+
+        Log.i(TAG, String.format(Locale.getDefault(), "Partial results: %d forwarded, %d repeated, %d throttled", forwardedPartials.get(), duplicatePartials.get(), throttledPartials.get()));
         Log.i(TAG, "Stream recognizing has stopped properly");
     }
 
     public void start() {
-        Log.i(TAG, "Start to recognize a Stream (sample rate: " + sampleRate + ")");
+        Log.i(TAG, "Start to recognize a Stream (sample rate: " + sampleRate + ", recognition sample rate: " + recognitionSampleRate + ")");
 
-        if (speechStreamService != null) {
+        if (pipelines[0].decodeTask != null) {
             Log.e(TAG, "start was called on an already running speech recognizer");
             throw new RuntimeException("The SpeechRecognizer instance has already been started");
         }
 
+        // The pipelines are reused, the decoders of the previous session must be done with them
+        for (final ChannelPipeline pipeline : pipelines) {
+            pipeline.awaitStoppedDecoder();
+        }
+
         wordReceiver.reset();
 
-        if (this.model == null) {
-            wordReceiver.signalError("Recognition model is not loaded already");
-            return;
+        activePipelines = numberOfChannels == 2 && channelMode == ChannelMode.SPLIT ? 2 : 1;
+
+        final int chunkSamples = recognitionSampleRate * decodeChunkMillis / 1000;
+        final int partialInterval = partialResultInterval;
+        final DecoderProfile preferredProfile = decoderProfile;
+        final boolean adaptive = adaptiveProfile;
+
+        // Start with the faster profile of the previous session, the device is unlikely to be faster now
+        final DecoderProfile previousProfile = targetProfile;
+        final DecoderProfile profile = adaptive && previousProfile != null && previousProfile.ordinal() < preferredProfile.ordinal()
+                ? previousProfile
+                : preferredProfile;
+        targetProfile = profile;
+
+        final int session = ++sessionCount;
+        decodingSession.set(session);
+        for (int i = 0; i < activePipelines; i++) {
+            pipelines[i].restart();
+            pipelines[i].startDecoder(session, chunkSamples, partialInterval, profile, adaptive ? preferredProfile : null);
+        }
+        Log.i(TAG, "Decoders started for " + activePipelines + " channel(s)");
+    }
+
+    /**
+     * Wait until the model is loaded, or the session is stopped.
+     *
+     * @param session the session waiting.
+     * @return the model, or null if it cannot be used.
+     */
+    private @Nullable Model waitForModel(final @NotNull CompletableFuture<Model> modelFuture, final int session) {
+        if (!modelFuture.isDone()) {
+            Log.i(TAG, "Waiting for the model to be loaded");
+        }
+
+        while (isDecoding(session)) {
+            try {
+                return modelFuture.get(MODEL_WAIT_INTERVAL_MS, TimeUnit.MILLISECONDS);
+            } catch (final TimeoutException e) {
+                // Check for a stop, then wait again
+            } catch (final ExecutionException e) {
+                setErrorState("Failed to unpack the model: " + e.getCause().getMessage(), session);
+                return null;
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Wait for a permit to decode a chunk, when the number of decoders running at once is limited.
+     *
+     * @return false if the wait was interrupted.
+     */
+    private boolean acquireDecoderPermit() {
+        if (decoderPermits == null) {
+            return true;
         }
 
         try {
-            // Restart the buffer
-            buffer.restart();
+            decoderPermits.acquire();
+            return true;
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
 
-            // Re-initialize the byte counter
-            stereoToMonoByteCount = 0;
+    private void releaseDecoderPermit() {
+        if (decoderPermits != null) {
+            decoderPermits.release();
+        }
+    }
 
-            final Recognizer recognizer = new Recognizer(model, sampleRate);
-            Log.i(TAG, "Recognizer created");
+    private static @NotNull ExecutorService createDecoderExecutor(final int numberOfChannels) {
+        final AtomicInteger decoderCount = new AtomicInteger();
+        return Executors.newFixedThreadPool(numberOfChannels, runnable -> {
+            final Thread thread = new Thread(runnable, "SpeechRecognizer Decoder " + decoderCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
 
-            speechStreamService = new SpeechStreamService(recognizer, buffer, sampleRate);
-            Log.i(TAG, "SpeechStreamService created");
+    /**
+     * Choose another profile for all the channels if the slowest decoder is too slow, or if all of them have time to
+     * spare, and start loading its model. Each channel switches to it at the end of its current utterance.
+     * <p>
+     * Nothing is chosen while a channel is still switching, has not decoded enough audio with the current profile, or
+     * has a backlog above the warning level: loading a model takes a core for seconds, and the memory of a second copy
+     * of the model, which the decoders catching up cannot spare.
+     *
+     * @param maxProfile the most accurate profile allowed.
+     */
+    private void considerProfileSwitch(final @NotNull DecoderProfile maxProfile) {
+        synchronized (profileLock) {
+            final DecoderProfile profile = targetProfile;
+            if (profile == null) {
+                return;
+            }
 
-            speechStreamService.start(this);
-            Log.i(TAG, "SpeechStreamService started");
-        } catch (final IOException e) {
-            setErrorState(e.toString());
-            speechStreamService = null;
+            double rtf = 0;
+            int backlogBytes = 0;
+            for (int i = 0; i < activePipelines; i++) {
+                final ChannelPipeline pipeline = pipelines[i];
+                if (pipeline.activeProfile != profile || pipeline.samplesSinceSwitch * 1000 / recognitionSampleRate < PROFILE_MIN_DWELL_MS) {
+                    return;
+                }
+
+                final int pipelineBacklogBytes = pipeline.buffer.available();
+                if (pipelineBacklogBytes > pipeline.buffer.getBufferSize() * BACKLOG_WARNING_RATIO) {
+                    return;
+                }
+
+                rtf = Math.max(rtf, pipeline.realTimeFactor);
+                backlogBytes = Math.max(backlogBytes, pipelineBacklogBytes);
+            }
+
+            final DecoderProfile target;
+            if (rtf > RTF_SLOW_THRESHOLD) {
+                target = profile.faster();
+            } else if (rtf < RTF_FAST_THRESHOLD && backlogBytes < pipelines[0].buffer.getBufferSize() * BACKLOG_LOW_RATIO && profile.ordinal() < maxProfile.ordinal()) {
+                target = profile.moreAccurate();
+            } else {
+                target = profile;
+            }
+
+            if (target == profile) {
+                return;
+            }
+
+            Log.i(TAG, String.format(Locale.getDefault(), "Loading the %s profile for %d channel(s) (real-time factor: %.2f, backlog: %d bytes)", target, activePipelines, rtf, backlogBytes));
+            targetRealTimeFactor = rtf;
+            targetBacklogBytes = backlogBytes;
+            targetProfile = target;
+            ModelRegistry.getInstance().preload(context, MODEL_NAME, target);
         }
     }
 
+    private boolean isDecoding(final int session) {
+        return decodingSession.get() == session;
+    }
+
     private void setErrorState(final @NotNull String message) {
+        setErrorState(message, decodingSession.get());
+    }
+
+    /**
+     * Report an error of a session, and stop its decode loops at their next chunk. The errors of a session already
+     * stopped are only logged.
+     *
+     * @param message the error.
+     * @param session the session failing.
+     */
+    private void setErrorState(final @NotNull String message, final int session) {
+        if (!decodingSession.compareAndSet(session, NO_SESSION)) {
+            Log.e(TAG, "Error of a stopped session: " + message);
+            return;
+        }
+
         wordReceiver.signalError(message);
+    }
+
+    /* ---------------------------------------------------------- */
+    /*                                                            */
+    /*                CHANNEL PIPELINE                            */
+    /*                                                            */
+    /* ---------------------------------------------------------- */
+
+    /**
+     * The recognition of one channel: conversion to mono, resampling, voice activity detection, buffering and
+     * decoding. The audio is given through {@link #addBytes(byte[], int, int, long)}, or read in place from the audio
+     * source by the decode loop, on a thread of the decoder pool.
+     */
+    private final class ChannelPipeline {
+
+        private final int channel;
+        private final RingBufferedInputStream buffer;
+
+        // The cursor of the decode loop on the audio source, null when the audio is given through addBytes, and what its
+        // previous cursors missed
+        private volatile AudioBroadcastBuffer.Cursor sourceCursor = null;
+        private volatile long sourceDroppedBytes = 0;
+
+        // For reading the audio source in place: the bytes already given by the current read, and the number of bytes of
+        // the source per nanosecond, for estimating the capture time of the data
+        private final AudioBroadcastBuffer.DataConsumer sourceConsumer = this::onSourceData;
+        private int sourceBytesConsumed = 0;
+        private final double sourceBytesPerNano = sampleRate * numberOfChannels * 2 / 1_000_000_000.0;
+
+        // For the conversion from bytes to the samples of the channel: the stereo frames, or the first byte of a mono
+        // sample split between two chunks
+        private final StereoDownmixer downmixer = new StereoDownmixer(StereoDownmixer.Mode.LEFT);
+        private byte pendingByte;
+        private boolean hasPendingByte = false;
+        private short[] samplesTemp = null;
+
+        // For the conversion to the recognition sample rate
+        private PolyphaseResampler resampler;
+        private short[] resampledTemp = null;
+
+        // For cleaning up the audio, null when disabled
+        private volatile AudioPreprocessor preprocessor;
+
+        // For skipping the audio without speech, null when disabled
+        private volatile VoiceActivityDetector voiceActivityDetector;
+
+        // The capture time and the position of the chunk being given to the voice activity detection
+        private long gatedCaptureTimeNanos;
+        private long gatedChunkPosition;
+
+        // The number of samples captured since the start, including the ones kept away from the decoder. Only written
+        // by the thread adding the audio.
+        private volatile long capturedSamples = 0;
+
+        // Extract the text from the hypotheses, reused from one result to the next
+        private final HypothesisParser hypothesisParser = new HypothesisParser();
+
+        // The keywords the current recognizer looks for, null for the full dictation. Only used by the decode loop.
+        private KeywordSpotter appliedSpotter = null;
+
+        // The number of samples given to the current recognizer, which times its words from them, and the position in
+        // the buffer of the samples following each jump of the reading, when the buffer has dropped the audio between
+        // two chunks. Only used by the decode loop.
+        private long fedSamples = 0;
+        private final long[] feedLogSamples = new long[FEED_LOG_SIZE];
+        private final long[] feedLogPositions = new long[FEED_LOG_SIZE];
+        private int feedLogCount = 0;
+
+        // The decoder profile of the current model
+        private volatile DecoderProfile activeProfile = null;
+
+        // The model of the profile chosen for all the channels, used from the end of the current utterance once
+        // loaded. Only used by the decode loop.
+        private DecoderProfile pendingProfile = null;
+        private CompletableFuture<Model> pendingModel = null;
+
+        // The text of the last partial result forwarded, and when. Only used by the decode loop.
+        private String forwardedPartialText = null;
+        private long forwardedPartialTimeNanos = 0;
+
+        // The latest revision waiting for the minimum interval to elapse, and the capture time of its audio
+        private WordEvent[] pendingPartial = null;
+        private String pendingPartialText = null;
+        private long pendingPartialCaptureTimeNanos = WordReceiver.UNKNOWN_CAPTURE_TIME;
+
+        // The average real-time factor, and the samples decoded with the current profile
+        private volatile double realTimeFactor = 0;
+        private volatile long samplesSinceSwitch = 0;
+
+        private volatile Future<?> decodeTask;
+
+        // The decode loop of the previous session, which may still be running if the stop did not wait for it
+        private Future<?> stoppedDecodeTask;
+
+        // The session of the decode loop
+        private int session = NO_SESSION;
+
+        ChannelPipeline(final int channel) {
+            this.channel = channel;
+            this.resampler = new PolyphaseResampler((int) sampleRate, recognitionSampleRate, resamplingQuality);
+            this.buffer = new RingBufferedInputStream(recognitionSampleRate * 2 * MAX_BACKLOG_MS / 1000, BufferOverflowPolicy.DROP_OLDEST, 2);
+
+            this.buffer.setFillLevelListener(
+                    (int) (buffer.getBufferSize() * BACKLOG_WARNING_RATIO),
+                    (above, fillLevel, capacity) -> {
+                        if (above) {
+                            Log.w(TAG, "Recognition of channel " + channel + " is lagging, " + fillLevel + " bytes are waiting (dropped so far: " + buffer.getDroppedBytes() + ")");
+                        } else {
+                            Log.i(TAG, "Recognition of channel " + channel + " is catching up, " + fillLevel + " bytes are waiting");
+                        }
+                    });
+        }
+
+        /**
+         * Prepare a new stream, with the latest settings.
+         */
+        void restart() {
+            buffer.restart();
+            capturedSamples = 0;
+
+            // Forget any frame left by the previous stream
+            downmixer.reset();
+            hasPendingByte = false;
+
+            // Read the audio source from now
+            sourceCursor = audioSource == null ? null : audioSource.register();
+
+            // Forget the history of the previous stream, and apply the latest quality
+            if (resampler.getQuality() == resamplingQuality) {
+                resampler.reset();
+            } else {
+                resampler = new PolyphaseResampler((int) sampleRate, recognitionSampleRate, resamplingQuality);
+            }
+
+            // New filters, with the latest settings
+            final List<AudioPreprocessor.StageFactory> stages = preprocessingStages;
+            preprocessor = stages.isEmpty() ? null : new AudioPreprocessor(recognitionSampleRate, stages);
+
+            // Start a new session of the voice activity detection
+            voiceActivityDetector = vadEnabled
+                    ? new VoiceActivityDetector(recognitionSampleRate, vadHangoverMillis, vadPreRollMillis, vadSilenceMode, this::onGatedSamples)
+                    : null;
+        }
+
+        /**
+         * Let the decoder finish the audio buffered, and the audio waiting in the source.
+         */
+        void setEndOfStreamReached() {
+            final AudioBroadcastBuffer.Cursor cursor = sourceCursor;
+            if (cursor != null) {
+                // The buffer ends once the decode loop has read the end of the source
+                cursor.setEndOfStreamReached();
+            } else {
+                buffer.setEndOfStreamReached();
+            }
+        }
+
+        /**
+         * Stop the decode loop if still running, dropping the remaining audio.
+         */
+        void close() {
+            final AudioBroadcastBuffer.Cursor cursor = sourceCursor;
+            if (cursor != null) {
+                sourceDroppedBytes += cursor.getDroppedBytes();
+                sourceCursor = null;
+                cursor.close();
+            }
+
+            buffer.close();
+        }
+
+        /**
+         * Get the number of bytes the audio source dropped before they were read, at the recognition sample rate.
+         *
+         * @return the number of dropped bytes.
+         */
+        long getSourceDroppedBytes() {
+            final AudioBroadcastBuffer.Cursor cursor = sourceCursor;
+            final long dropped = sourceDroppedBytes + (cursor == null ? 0 : cursor.getDroppedBytes());
+
+            // From frames of the source to mono samples at the recognition sample rate
+            return (long) (dropped / (numberOfChannels * 2) * 2 * (recognitionSampleRate / sampleRate));
+        }
+
+        /**
+         * Convert some audio of the stream to the samples of this channel, and add them.
+         */
+        void addBytes(final @NotNull byte[] bytes, int srcPos, int length, final long captureTimeNanos) {
+            // Keep the same temp array if possible to avoid allocating to frequently
+            final int maxSamples = numberOfChannels == 1 ? (length + 1) / 2 : StereoDownmixer.getMaxOutputSamples(length);
+            if (samplesTemp == null || samplesTemp.length < maxSamples) {
+                samplesTemp = new short[maxSamples];
+            }
+
+            if (numberOfChannels == 2) {
+                // The split channels keep their own side, the mixed one follows the downmix mode
+                if (activePipelines == 2) {
+                    downmixer.setMode(channel == WordReceiver.CHANNEL_LEFT ? StereoDownmixer.Mode.LEFT : StereoDownmixer.Mode.RIGHT);
+                } else {
+                    downmixer.setMode(downmixMode);
+                }
+
+                addSamples(samplesTemp, downmixer.downmix(bytes, srcPos, length, samplesTemp, 0), captureTimeNanos);
+                return;
+            }
+
+            int samples = 0;
+
+            // Complete the sample started by the previous chunk
+            if (hasPendingByte && length > 0) {
+                samplesTemp[samples++] = (short) ((pendingByte & 0xff) | (bytes[srcPos] << 8));
+                hasPendingByte = false;
+                srcPos++;
+                length--;
+            }
+
+            final int end = srcPos + (length & ~1);
+            for (int i = srcPos; i < end; i += 2) {
+                samplesTemp[samples++] = (short) ((bytes[i] & 0xff) | (bytes[i + 1] << 8));
+            }
+
+            // Keep the first byte of the last sample for the next chunk
+            if ((length & 1) != 0) {
+                pendingByte = bytes[end];
+                hasPendingByte = true;
+            }
+
+            addSamples(samplesTemp, samples, captureTimeNanos);
+        }
+
+        void addSamples(final @NotNull short[] samples, final int count, final long captureTimeNanos) {
+            if (recognitionSampleRate == (int) sampleRate) {
+                addSamplesToBuffer(samples, count, captureTimeNanos);
+                return;
+            }
+
+            final int maxSamples = resampler.getMaxOutputSamples(count);
+            if (resampledTemp == null || resampledTemp.length < maxSamples) {
+                resampledTemp = new short[maxSamples];
+            }
+
+            final int resampled = resampler.process(samples, 0, count, resampledTemp, 0);
+
+            addSamplesToBuffer(resampledTemp, resampled, captureTimeNanos);
+        }
+
+        private void addSamplesToBuffer(final @NotNull short[] samples, final int count, final long captureTimeNanos) {
+            // The samples are in a block of the recognizer, filtered in place
+            final AudioPreprocessor filters = preprocessor;
+            if (filters != null) {
+                filters.process(samples, 0, count);
+            }
+
+            final long chunkPosition = capturedSamples;
+
+            final VoiceActivityDetector detector = voiceActivityDetector;
+            if (detector == null) {
+                buffer.addSamples(samples, 0, count, captureTimeNanos);
+            } else {
+                // Only the speech reaches the buffer, through onGatedSamples
+                gatedCaptureTimeNanos = captureTimeNanos;
+                gatedChunkPosition = chunkPosition;
+                detector.process(samples, 0, count);
+            }
+
+            capturedSamples = chunkPosition + count;
+        }
+
+        private void onGatedSamples(final @NotNull short[] samples, final int srcPos, final int count, final long streamPosition) {
+            // The pre-roll and the end of a frame started in the previous chunk were captured before the current chunk
+            final long captureTime = gatedCaptureTimeNanos + (streamPosition - gatedChunkPosition) * 1_000_000_000L / recognitionSampleRate;
+
+            // The position in the captured audio keeps counting the audio skipped
+            buffer.addSamples(samples, srcPos, count, captureTime, streamPosition);
+        }
+
+        /**
+         * Get the position in the captured audio of the next sample to decode.
+         *
+         * @return the position, in samples at the recognition sample rate.
+         */
+        long getDecodePosition() {
+            final long decodePosition = buffer.getReadSamples();
+            final long capturePosition = buffer.getCapturePosition(decodePosition);
+            final long captured = capturedSamples;
+
+            if (capturePosition < 0) {
+                // Too old to be known, use the amount of audio waiting
+                return Math.max(0, captured - (buffer.getWrittenSamples() - decodePosition));
+            }
+            return Math.min(capturePosition, captured);
+        }
+
+        /**
+         * Move the positions of words recognized by the current recognizer into the captured audio.
+         *
+         * @param words the words, with their positions in the samples given to the recognizer, replaced by the moved
+         *              words.
+         * @return the words.
+         */
+        private @NotNull WordEvent[] toCapturePositions(final @NotNull WordEvent[] words) {
+            for (int i = 0; i < words.length; i++) {
+                final WordEvent word = words[i];
+                if (!word.hasTiming()) {
+                    continue;
+                }
+
+                final long startSample = buffer.getCapturePosition(toBufferPosition(word.getStartSample()));
+                final long endSample = buffer.getCapturePosition(toBufferPosition(word.getEndSample()));
+                if (startSample >= 0 && endSample >= 0) {
+                    words[i] = new WordEvent(word.getWord(), startSample, endSample, word.getConfidence());
+                }
+            }
+            return words;
+        }
+
+        /**
+         * Keep the position in the buffer of the next chunk given to the recognizer, when it does not follow the
+         * previous chunk.
+         */
+        private void logFeedPosition(final long chunkPosition) {
+            if (feedLogCount > 0) {
+                final int last = (feedLogCount - 1) % FEED_LOG_SIZE;
+                if (feedLogPositions[last] + (fedSamples - feedLogSamples[last]) == chunkPosition) {
+                    return;
+                }
+            }
+
+            final int index = feedLogCount % FEED_LOG_SIZE;
+            feedLogSamples[index] = fedSamples;
+            feedLogPositions[index] = chunkPosition;
+            feedLogCount++;
+        }
+
+        /**
+         * Get the position in the buffer of a sample given to the current recognizer.
+         *
+         * @param fedSample the position of the sample in the audio given to the recognizer.
+         * @return the position in the buffer, or -1 if the recognizer has not been given any audio.
+         */
+        private long toBufferPosition(final long fedSample) {
+            if (feedLogCount == 0) {
+                return -1;
+            }
+
+            // The last jump before the sample, the words being recent. The oldest jump known is used for older words.
+            final int oldest = Math.max(0, feedLogCount - FEED_LOG_SIZE);
+            int found = feedLogCount - 1;
+            while (found > oldest && feedLogSamples[found % FEED_LOG_SIZE] > fedSample) {
+                found--;
+            }
+
+            final int index = found % FEED_LOG_SIZE;
+            return feedLogPositions[index] + (fedSample - feedLogSamples[index]);
+        }
+
+        long getDecodeLagMillis() {
+            final long decodePosition = buffer.getReadSamples();
+            final long capturePosition = buffer.getWrittenSamples();
+
+            // Everything has been decoded
+            if (decodePosition >= capturePosition) {
+                return 0;
+            }
+
+            final long captureTime = buffer.getCaptureTimeNanos(decodePosition, recognitionSampleRate);
+            if (captureTime < 0) {
+                // Too old to be known, use the amount of audio waiting
+                return (capturePosition - decodePosition) * 1000 / recognitionSampleRate;
+            }
+
+            return Math.max(0, (System.nanoTime() - captureTime) / 1_000_000);
+        }
+
+        /**
+         * Get the capture time of the last sample decoded, the audio the latest results come from.
+         *
+         * @return the capture time, from {@link System#nanoTime()}, or {@link WordReceiver#UNKNOWN_CAPTURE_TIME} if
+         * it is not known.
+         */
+        private long getDecodedCaptureTimeNanos() {
+            final long decodePosition = buffer.getReadSamples();
+            if (decodePosition == 0) {
+                return WordReceiver.UNKNOWN_CAPTURE_TIME;
+            }
+
+            final long captureTime = buffer.getCaptureTimeNanos(decodePosition - 1, recognitionSampleRate);
+            return captureTime < 0 ? WordReceiver.UNKNOWN_CAPTURE_TIME : captureTime;
+        }
+
+        void logSessionStatistics() {
+            final AudioPreprocessor filters = preprocessor;
+            if (filters != null) {
+                Log.i(TAG, String.format(Locale.getDefault(), "Pre-processing of channel %d: %d stages, %d ns per block, real-time factor %.4f", channel, filters.getStageCount(), filters.getAverageBlockNanos(), filters.getRealTimeFactor()));
+            }
+
+            final VoiceActivityDetector detector = voiceActivityDetector;
+            if (detector != null) {
+                Log.i(TAG, String.format(Locale.getDefault(), "Speech ratio of channel %d: %.2f (%d samples skipped)", channel, detector.getSpeechRatio(), detector.getSkippedSamples()));
+            }
+        }
+
+        void startDecoder(final int session, final int chunkSamples, final int partialInterval, final @NotNull DecoderProfile profile, final @Nullable DecoderProfile maxProfile) {
+            this.session = session;
+            activeProfile = profile;
+            realTimeFactor = 0;
+            samplesSinceSwitch = 0;
+            forwardedPartialText = null;
+            pendingPartial = null;
+            pendingPartialText = null;
+
+            // The audio is buffered while the model is loading, if it is not already
+            final CompletableFuture<Model> modelFuture = ModelRegistry.getInstance().acquire(context, MODEL_NAME, profile);
+
+            decodeTask = decoderExecutor.submit(() -> {
+                try {
+                    decode(modelFuture, chunkSamples, partialInterval, maxProfile);
+                } finally {
+                    ModelRegistry.getInstance().release(MODEL_NAME, activeProfile);
+                    if (pendingModel != null) {
+                        ModelRegistry.getInstance().release(MODEL_NAME, pendingProfile);
+                        pendingModel = null;
+                        pendingProfile = null;
+                    }
+                }
+            });
+        }
+
+        void waitForDecoder(final long deadline) {
+            final Future<?> task = decodeTask;
+            if (task == null) {
+                return;
+            }
+
+            try {
+                task.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            } catch (final TimeoutException e) {
+                Log.w(TAG, "The decoder of channel " + channel + " did not finish the stream in time, the remaining audio is dropped");
+            } catch (final ExecutionException e) {
+                Log.e(TAG, "The decoder of channel " + channel + " failed", e.getCause());
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        /**
+         * Wait for the decode loop of the previous session to finish, if the stop gave up waiting for it.
+         */
+        void awaitStoppedDecoder() {
+            final Future<?> task = stoppedDecodeTask;
+            stoppedDecodeTask = null;
+            if (task == null || task.isDone()) {
+                return;
+            }
+
+            Log.w(TAG, "Waiting for the decoder of channel " + channel + " of the previous session to finish");
+            try {
+                task.get();
+            } catch (final ExecutionException e) {
+                Log.e(TAG, "The decoder of channel " + channel + " failed", e.getCause());
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted while waiting for the decoder of channel " + channel + " of the previous session");
+            }
+        }
+
+        /**
+         * Wait for the model, then give the buffered audio to the recognizer, chunk by chunk, until the end of the
+         * stream.
+         */
+        private void decode(final @NotNull CompletableFuture<Model> modelFuture, final int chunkSamples, final int partialInterval, final @Nullable DecoderProfile maxProfile) {
+            Model model = waitForModel(modelFuture, session);
+            if (model == null) {
+                return;
+            }
+
+            Recognizer recognizer = createRecognizer(model);
+            if (recognizer == null) {
+                return;
+            }
+
+            final short[] chunk = new short[chunkSamples];
+            int chunksWithoutPartial = 0;
+            final long partialIntervalNanos = partialMinIntervalMillis * 1_000_000L;
+
+            // If the recognizer is between two utterances
+            boolean betweenUtterances = true;
+
+            try {
+                int samplesRead;
+                while (isDecoding(session) && (samplesRead = readChunk(chunk)) >= 0) {
+                    // The position of the chunk in the buffer, counting the audio dropped before it
+                    final long chunkPosition = buffer.getReadSamples() - samplesRead;
+
+                    // A new profile or a new list of keywords is applied between two utterances, so that no word is cut
+                    if (betweenUtterances) {
+                        final DecoderProfile previousProfile = activeProfile;
+                        final Model switchedModel = takePendingModel(buffer.getCapturePosition(chunkPosition));
+
+                        if (switchedModel != null || keywordSpotter != appliedSpotter) {
+                            recognizer.close();
+                            recognizer = null;
+
+                            if (switchedModel != null) {
+                                ModelRegistry.getInstance().release(MODEL_NAME, previousProfile);
+                                model = switchedModel;
+                            }
+
+                            recognizer = createRecognizer(model);
+                            if (recognizer == null) {
+                                return;
+                            }
+                        }
+                    }
+
+                    // The recognizer times the words from the samples it was given, which skip the audio dropped
+                    logFeedPosition(chunkPosition);
+
+                    // The permit is taken for each chunk, so that the sessions take turns when they are limited
+                    if (!acquireDecoderPermit()) {
+                        return;
+                    }
+
+                    final long decodeStartTime = System.nanoTime();
+                    try {
+                        betweenUtterances = recognizer.acceptWaveForm(chunk, samplesRead);
+                        fedSamples += samplesRead;
+
+                        if (betweenUtterances) {
+                            // End of an utterance
+                            onResult(recognizer.getResult(), "Result");
+                            chunksWithoutPartial = 0;
+                        } else if (appliedSpotter == null && ++chunksWithoutPartial >= partialInterval) {
+                            // The partial results are not needed for spotting the keywords
+                            onPartialResult(recognizer.getPartialResult(), partialIntervalNanos);
+                            chunksWithoutPartial = 0;
+                        }
+
+                        // A revision held back is forwarded once the interval has elapsed, even while the next partial
+                        // results repeat it
+                        if (pendingPartial != null && System.nanoTime() - forwardedPartialTimeNanos >= partialIntervalNanos) {
+                            forwardPendingPartial();
+                        }
+                    } finally {
+                        releaseDecoderPermit();
+                    }
+
+                    updateRealTimeFactor(System.nanoTime() - decodeStartTime, samplesRead);
+                    if (maxProfile != null && samplesSinceSwitch * 1000 / recognitionSampleRate >= PROFILE_MIN_DWELL_MS) {
+                        considerProfileSwitch(maxProfile);
+                    }
+                }
+
+                if (isDecoding(session) && acquireDecoderPermit()) {
+                    try {
+                        onResult(recognizer.getFinalResult(), "Final result");
+                    } finally {
+                        releaseDecoderPermit();
+                    }
+                }
+            } catch (final IOException e) {
+                // The buffer was closed by stop
+                Log.i(TAG, "The decoder input of channel " + channel + " has been closed");
+            } finally {
+                if (recognizer != null) {
+                    recognizer.close();
+                }
+            }
+        }
+
+        /**
+         * Read the next chunk to decode. With an audio source, the audio waiting in the source is converted first, and
+         * more is awaited until a whole chunk is buffered.
+         *
+         * @return the number of samples read, or -1 at the end of the stream.
+         */
+        private int readChunk(final @NotNull short[] chunk) throws IOException {
+            final AudioBroadcastBuffer.Cursor cursor = sourceCursor;
+            if (cursor != null) {
+                while (true) {
+                    // Everything the source has, without waiting
+                    while (cursor.available() > 0) {
+                        readSource(cursor);
+                    }
+
+                    if (buffer.available() >= chunk.length * 2) {
+                        break;
+                    }
+
+                    // The end of the source is the end of the buffered stream
+                    if (readSource(cursor) < 0) {
+                        buffer.setEndOfStreamReached();
+                        break;
+                    }
+                }
+            }
+
+            return buffer.readSamples(chunk, 0, chunk.length);
+        }
+
+        private int readSource(final @NotNull AudioBroadcastBuffer.Cursor cursor) throws IOException {
+            sourceBytesConsumed = 0;
+            return cursor.read(sourceConsumer, SOURCE_READ_SIZE);
+        }
+
+        private void onSourceData(final @NotNull byte[] data, final int offset, final int length) {
+            final AudioBroadcastBuffer.Cursor cursor = sourceCursor;
+            if (cursor == null) {
+                return;
+            }
+
+            // The data was captured before the data still waiting in the source, which includes it until the read ends
+            final long captureTime = System.nanoTime() - (long) ((cursor.available() - sourceBytesConsumed) / sourceBytesPerNano);
+            sourceBytesConsumed += length;
+
+            addBytes(data, offset, length, captureTime);
+        }
+
+        private void updateRealTimeFactor(final long decodeNanos, final int samples) {
+            if (samples == 0) {
+                return;
+            }
+
+            final double chunkRealTimeFactor = decodeNanos / 1_000_000_000.0 * recognitionSampleRate / samples;
+            final double weight = Math.min(1.0, (double) samples * 1000 / recognitionSampleRate / RTF_WINDOW_MS);
+
+            realTimeFactor = realTimeFactor == 0 ? chunkRealTimeFactor : realTimeFactor + (chunkRealTimeFactor - realTimeFactor) * weight;
+            samplesSinceSwitch += samples;
+        }
+
+        /**
+         * Take the model of the profile of all the channels if this channel does not use it yet and it is loaded, and
+         * record the switch.
+         *
+         * @param capturePosition the position of the switch in the captured audio.
+         * @return the model, or null if there is no model ready.
+         */
+        private @Nullable Model takePendingModel(final long capturePosition) {
+            if (pendingModel == null) {
+                final DecoderProfile target = targetProfile;
+                if (target == null || target == activeProfile) {
+                    return null;
+                }
+
+                // The model is loaded once for all the channels
+                pendingProfile = target;
+                pendingModel = ModelRegistry.getInstance().acquire(context, MODEL_NAME, target);
+            }
+
+            final CompletableFuture<Model> future = pendingModel;
+            if (!future.isDone()) {
+                return null;
+            }
+
+            final DecoderProfile profile = pendingProfile;
+            pendingModel = null;
+            pendingProfile = null;
+
+            final Model model;
+            try {
+                model = future.join();
+            } catch (final CompletionException e) {
+                Log.e(TAG, "Unable to load the " + profile + " profile, keeping the " + activeProfile + " profile", e.getCause());
+                ModelRegistry.getInstance().release(MODEL_NAME, profile);
 
-        if (speechStreamService != null) {
-            speechStreamService.stop();
-            speechStreamService = null;
+                // The channels that already switched come back to the profile kept
+                synchronized (profileLock) {
+                    if (targetProfile == profile) {
+                        targetProfile = activeProfile;
+                    }
+                }
+
+                // Do not try again before a while
+                samplesSinceSwitch = 0;
+                return null;
+            }
+
+            final ProfileSwitch profileSwitch = new ProfileSwitch(System.currentTimeMillis(), channel, capturePosition, activeProfile, profile, targetRealTimeFactor, targetBacklogBytes);
+            synchronized (profileSwitches) {
+                profileSwitches.add(profileSwitch);
+            }
+            Log.i(TAG, "Decoder profile switched: " + profileSwitch);
+
+            activeProfile = profile;
+            samplesSinceSwitch = 0;
+            return model;
+        }
+
+        /**
+         * Create a recognizer for the current mode: with the grammar of the keywords, or for the full dictation. Its
+         * position in the stream is taken from the first chunk it is given.
+         *
+         * @return the recognizer, or null if it cannot be created.
+         */
+        private @Nullable Recognizer createRecognizer(final @NotNull Model model) {
+            final KeywordSpotter spotter = keywordSpotter;
+
+            try {
+                final Recognizer recognizer = spotter == null
+                        ? new Recognizer(model, recognitionSampleRate)
+                        : new Recognizer(model, recognitionSampleRate, spotter.getGrammar());
+
+                // Get the timing and the confidence of the words
+                recognizer.setWords(true);
+                recognizer.setPartialWords(true);
+
+                appliedSpotter = spotter;
+                fedSamples = 0;
+                feedLogCount = 0;
+
+                if (spotter == null) {
+                    Log.i(TAG, "Recognizer created for channel " + channel);
+                } else {
+                    Log.i(TAG, "Recognizer created for channel " + channel + ", spotting " + spotter.getPhraseCount() + " phrases");
+                }
+                return recognizer;
+            } catch (final IOException e) {
+                setErrorState(e.toString(), session);
+                return null;
+            }
+        }
+
+        private void onPartialResult(final @Nullable String hypothesis, final long minIntervalNanos) {
+            if (!hypothesisParser.parse(hypothesis)) {
+                logInvalidHypothesis(hypothesis);
+                return;
+            }
+
+            if (hypothesisParser.isTextBlank()) {
+                return;
+            }
+
+            final String text = hypothesisParser.getText();
+            final String latestText = pendingPartialText != null ? pendingPartialText : forwardedPartialText;
+            if (text.equals(latestText)) {
+                duplicatePartials.incrementAndGet();
+                return;
+            }
+
+            if (Log.isLoggable(TAG, Log.DEBUG)) {
+                Log.d(TAG, "Partial result received on channel " + channel + ": " + text);
+            }
+
+            // A revision replaced before being forwarded
+            if (pendingPartial != null) {
+                throttledPartials.incrementAndGet();
+            }
+            pendingPartial = toCapturePositions(hypothesisParser.getWordEvents(recognitionSampleRate, 0));
+            pendingPartialText = text;
+            pendingPartialCaptureTimeNanos = getDecodedCaptureTimeNanos();
+
+            // New words at the end are forwarded at once, the other revisions once the interval has elapsed
+            final long now = System.nanoTime();
+            if (isExtension(forwardedPartialText, text) || now - forwardedPartialTimeNanos >= minIntervalNanos) {
+                forwardPendingPartial();
+            }
+        }
+
+        private void forwardPendingPartial() {
+            final WordEvent[] words = pendingPartial;
+            forwardedPartialText = pendingPartialText;
+            forwardedPartialTimeNanos = System.nanoTime();
+            pendingPartial = null;
+            pendingPartialText = null;
+
+            forwardedPartials.incrementAndGet();
+            wordReceiver.putText(channel, pendingPartialCaptureTimeNanos, words);
+        }
+
+        /**
+         * Forward the revision waiting, if any, and forget the partial results of the utterance.
+         */
+        private void endPartialResults() {
+            if (pendingPartial != null) {
+                forwardPendingPartial();
+            }
+            forwardedPartialText = null;
+        }
+
+        /**
+         * Check if a text only adds words at the end of another one.
+         */
+        private boolean isExtension(final @Nullable String previousText, final @NotNull String text) {
+            return previousText != null
+                    && text.length() > previousText.length()
+                    && text.startsWith(previousText)
+                    && text.charAt(previousText.length()) == ' ';
+        }
+
+        private void onResult(final @Nullable String hypothesis, final @NotNull String kind) {
+            // The words of the sentence are sent through the partial results, the last revision must not be lost
+            endPartialResults();
+
+            if (!hypothesisParser.parse(hypothesis)) {
+                logInvalidHypothesis(hypothesis);
+                return;
+            }
+
+            if (hypothesisParser.isTextBlank()) {
+                return;
+            }
+
+            if (Log.isLoggable(TAG, Log.DEBUG)) {
+                Log.d(TAG, kind + " received on channel " + channel + ": " + hypothesisParser.getText().replace('\n', ' '));
+            }
+
+            final KeywordSpotter spotter = appliedSpotter;
+            if (spotter == null) {
+                wordReceiver.signalEndOfSentence(channel, getDecodedCaptureTimeNanos());
+                return;
+            }
+
+            final long captureTime = getDecodedCaptureTimeNanos();
+            for (final WordEvent keyword : spotter.match(toCapturePositions(hypothesisParser.getWordEvents(recognitionSampleRate, 0)))) {
+                wordReceiver.putKeyword(channel, keyword, captureTime);
+            }
+        }
+
+        private void logInvalidHypothesis(final @Nullable String hypothesis) {
+            if (hypothesis != null) {
+                Log.e(TAG, "Unable to read the hypothesis of channel " + channel + ": " + hypothesis);
+            }
         }
     }
 }
@@ -0,0 +1,253 @@
+package com.ctminsights.streamshield.util;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Locale;
+
+/**
+ * Convert interleaved 16 bits little-endian stereo data to mono samples, or split it into two mono streams. The
+ * conversion works on whole frames (one left and one right sample); a frame split between two chunks is kept until the
+ * next chunk arrives. The instance does
+ * not allocate anything after its creation, but must only be used by a single thread.
+ */
+public class StereoDownmixer {
+
+    /**
+     * How the mono sample is computed from the two channels.
+     */
+    public enum Mode {
+        /**
+         * Keep the left channel.
+         */
+        LEFT,
+        /**
+         * Keep the right channel.
+         */
+        RIGHT,
+        /**
+         * Average the two channels.
+         */
+        AVERAGE,
+        /**
+         * Keep the channel with the most energy. The choice is done for each chunk, and the selected channel only
+         * changes when the other one is clearly louder, so that the output does not flip between the two.
+         */
+        LOUDER
+    }
+
+    // Size of a stereo frame
+    private static final int FRAME_SIZE = 4;
+
+    // Ratio of energy for switching channel in LOUDER mode (about 3 dB)
+    private static final long LOUDER_HYSTERESIS_RATIO = 2;
+
+    private volatile Mode mode;
+
+    // The start of a frame split between two chunks
+    private final byte[] pendingBytes = new byte[FRAME_SIZE];
+    private int pendingCount = 0;
+
+    // The channel selected by the LOUDER mode
+    private boolean louderIsRight = false;
+
+    public StereoDownmixer(final @NotNull Mode mode) {
+        this.mode = mode;
+    }
+
+    /**
+     * Change the conversion mode. It is applied from the next chunk.
+     *
+     * @param mode the new mode.
+     */
+    public void setMode(final @NotNull Mode mode) {
+        this.mode = mode;
+    }
+
+    public @NotNull Mode getMode() {
+        return mode;
+    }
+
+    /**
+     * Get the number of samples that can be produced from a chunk, including a frame left by the previous chunk.
+     *
+     * @param length the size of the chunk, in bytes.
+     * @return the maximum number of mono samples.
+     */
+    public static int getMaxOutputSamples(final int length) {
+        return (length + FRAME_SIZE - 1) / FRAME_SIZE;
+    }
+
+    /**
+     * Forget the frame split by the previous chunk, for starting a new stream.
+     */
+    public void reset() {
+        pendingCount = 0;
+        louderIsRight = false;
+    }
+
+    /**
+     * Convert a chunk of stereo data.
+     *
+     * @param bytes  the stereo data.
+     * @param srcPos the position of the first byte to convert.
+     * @param length the number of bytes to convert. It does not need to be a whole number of frames.
+     * @param output the mono samples. Must hold at least {@link #getMaxOutputSamples(int)} samples after outPos.
+     * @param outPos the position of the first sample to write.
+     * @return the number of samples written.
+     */
+    public int downmix(final @NotNull byte[] bytes, int srcPos, int length, final @NotNull short[] output, final int outPos) {
+        if (srcPos < 0 || length < 0 || srcPos + length > bytes.length) {
+            final String msg = String.format(Locale.getDefault(), "Unable to convert %d bytes from index %d as source is only %d len", length, srcPos, bytes.length);
+            throw new IndexOutOfBoundsException(msg);
+        }
+
+        final Mode currentMode = mode;
+        int written = 0;
+
+        // Complete the frame started by the previous chunk
+        if (pendingCount > 0) {
+            while (pendingCount < FRAME_SIZE && length > 0) {
+                pendingBytes[pendingCount++] = bytes[srcPos++];
+                length--;
+            }
+
+            if (pendingCount < FRAME_SIZE) {
+                return 0;
+            }
+
+            final int left = (short) ((pendingBytes[0] & 0xff) | (pendingBytes[1] << 8));
+            final int right = (short) ((pendingBytes[2] & 0xff) | (pendingBytes[3] << 8));
+            output[outPos] = mixFrame(currentMode, left, right);
+            written++;
+            pendingCount = 0;
+        }
+
+        final int frames = length / FRAME_SIZE;
+        final int end = srcPos + frames * FRAME_SIZE;
+
+        if (currentMode == Mode.LOUDER) {
+            updateLouderChannel(bytes, srcPos, end);
+        }
+
+        switch (currentMode) {
+            case LEFT: {
+                for (int i = srcPos; i < end; i += FRAME_SIZE) {
+                    output[outPos + written++] = (short) ((bytes[i] & 0xff) | (bytes[i + 1] << 8));
+                }
+                break;
+            }
+            case RIGHT: {
+                for (int i = srcPos; i < end; i += FRAME_SIZE) {
+                    output[outPos + written++] = (short) ((bytes[i + 2] & 0xff) | (bytes[i + 3] << 8));
+                }
+                break;
+            }
+            case AVERAGE: {
+                for (int i = srcPos; i < end; i += FRAME_SIZE) {
+                    final int left = (short) ((bytes[i] & 0xff) | (bytes[i + 1] << 8));
+                    final int right = (short) ((bytes[i + 2] & 0xff) | (bytes[i + 3] << 8));
+                    output[outPos + written++] = (short) ((left + right) >> 1);
+                }
+                break;
+            }
+            case LOUDER: {
+                final int offset = louderIsRight ? 2 : 0;
+                for (int i = srcPos + offset; i < end; i += FRAME_SIZE) {
+                    output[outPos + written++] = (short) ((bytes[i] & 0xff) | (bytes[i + 1] << 8));
+                }
+                break;
+            }
+        }
+
+        // Keep the start of the last frame for the next chunk
+        for (int i = end; i < srcPos + length; i++) {
+            pendingBytes[pendingCount++] = bytes[i];
+        }
+
+        return written;
+    }
+
+    /**
+     * Split a chunk of stereo data into the samples of the left channel and the samples of the right channel. The mode
+     * is not used.
+     *
+     * @param bytes  the stereo data.
+     * @param srcPos the position of the first byte to convert.
+     * @param length the number of bytes to convert. It does not need to be a whole number of frames.
+     * @param left   the samples of the left channel. Must hold at least {@link #getMaxOutputSamples(int)} samples
+     *               after outPos.
+     * @param right  the samples of the right channel, with the same size constraint.
+     * @param outPos the position of the first sample to write in both arrays.
+     * @return the number of samples written in each array.
+     */
+    public int split(final @NotNull byte[] bytes, int srcPos, int length, final @NotNull short[] left, final @NotNull short[] right, final int outPos) {
+        if (srcPos < 0 || length < 0 || srcPos + length > bytes.length) {
+            final String msg = String.format(Locale.getDefault(), "Unable to split %d bytes from index %d as source is only %d len", length, srcPos, bytes.length);
+            throw new IndexOutOfBoundsException(msg);
+        }
+
+        int written = 0;
+
+        // Complete the frame started by the previous chunk
+        if (pendingCount > 0) {
+            while (pendingCount < FRAME_SIZE && length > 0) {
+                pendingBytes[pendingCount++] = bytes[srcPos++];
+                length--;
+            }
+
+            if (pendingCount < FRAME_SIZE) {
+                return 0;
+            }
+
+            left[outPos] = (short) ((pendingBytes[0] & 0xff) | (pendingBytes[1] << 8));
+            right[outPos] = (short) ((pendingBytes[2] & 0xff) | (pendingBytes[3] << 8));
+            written++;
+            pendingCount = 0;
+        }
+
+        final int end = srcPos + (length / FRAME_SIZE) * FRAME_SIZE;
+        for (int i = srcPos; i < end; i += FRAME_SIZE) {
+            left[outPos + written] = (short) ((bytes[i] & 0xff) | (bytes[i + 1] << 8));
+            right[outPos + written] = (short) ((bytes[i + 2] & 0xff) | (bytes[i + 3] << 8));
+            written++;
+        }
+
+        // Keep the start of the last frame for the next chunk
+        for (int i = end; i < srcPos + length; i++) {
+            pendingBytes[pendingCount++] = bytes[i];
+        }
+
+        return written;
+    }
+
+    private short mixFrame(final @NotNull Mode currentMode, final int left, final int right) {
+        switch (currentMode) {
+            case RIGHT:
+                return (short) right;
+            case AVERAGE:
+                return (short) ((left + right) >> 1);
+            case LOUDER:
+                return (short) (louderIsRight ? right : left);
+            default:
+                return (short) left;
+        }
+    }
+
+    private void updateLouderChannel(final @NotNull byte[] bytes, final int start, final int end) {
+        long leftEnergy = 0;
+        long rightEnergy = 0;
+
+        for (int i = start; i < end; i += FRAME_SIZE) {
+            final int left = (short) ((bytes[i] & 0xff) | (bytes[i + 1] << 8));
+            final int right = (short) ((bytes[i + 2] & 0xff) | (bytes[i + 3] << 8));
+            leftEnergy += (long) left * left;
+            rightEnergy += (long) right * right;
+        }
+
+        if (louderIsRight && leftEnergy > rightEnergy * LOUDER_HYSTERESIS_RATIO) {
+            louderIsRight = false;
+        } else if (!louderIsRight && rightEnergy > leftEnergy * LOUDER_HYSTERESIS_RATIO) {
+            louderIsRight = true;
+        }
+    }
+}
@@ -0,0 +1,354 @@
+package com.ctminsights.streamshield.util;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Locale;
+
+/**
+ * Gate letting through only the parts of a 16 bits mono stream that contain speech. The audio is classified by frames
+ * of 10 ms, from their energy compared to an adaptive noise floor and from their zero-crossing rate (for the quiet
+ * fricatives). The gate stays open for a hangover after the last speech frame, and re-opens with the pre-roll, the few
+ * frames preceding the first speech frame, so that the start and the end of the words are not clipped.
+ * <p>
+ * The chunks can have any size: a frame split between two chunks is kept until the next chunk arrives. The instance
+ * does not allocate anything after its creation, but must only be used by a single thread.
+ */
+public class VoiceActivityDetector {
+
+    /**
+     * What is done with the audio that does not contain speech.
+     */
+    public enum SilenceMode {
+        /**
+         * The audio is dropped.
+         */
+        SKIP,
+        /**
+         * The audio is dropped, but a short block of digital silence is emitted when the gate closes, so that the
+         * decoder still detects the end of the utterance.
+         */
+        MARKER
+    }
+
+    /**
+     * Receive the audio let through by the gate.
+     */
+    public interface SampleSink {
+
+        /**
+         * Called with a block of audio let through by the gate.
+         *
+         * @param samples        the samples, only valid during the call.
+         * @param srcPos         the position of the first sample.
+         * @param count          the number of samples.
+         * @param streamPosition the position of the first sample in the classified audio, since the start of the
+         *                       session. The silence marker, which is not part of the audio, has the position of the
+         *                       audio following it.
+         */
+        void onSamples(@NotNull short[] samples, int srcPos, int count, long streamPosition);
+    }
+
+    // Duration of a frame
+    private static final int FRAME_MS = 10;
+
+    // Duration of the silence marker. It is above the longest trailing silence of the endpoint rules of the model
+    // (rule4.min-trailing-silence in model-en-us/conf/model.conf).
+    private static final int SILENCE_MARKER_MS = 1000;
+
+    // Ratio between the energy of a voiced frame and the noise floor (about 8 dB)
+    private static final double VOICED_ENERGY_RATIO = 6.0;
+
+    // Ratio between the energy of an unvoiced frame (fricatives) and the noise floor (about 5 dB), and the proportion
+    // of zero crossings it needs
+    private static final double UNVOICED_ENERGY_RATIO = 3.0;
+    private static final double UNVOICED_MIN_ZERO_CROSSING_RATE = 0.25;
+
+    // Energy (mean square) below which a frame is never speech, about -50 dBFS
+    private static final double MIN_SPEECH_ENERGY = 10000.0;
+
+    // Lowest noise floor, so that the ratios stay meaningful on digital silence
+    private static final double MIN_NOISE_FLOOR = 100.0;
+
+    // Adaptation speed of the noise floor: fast when the noise decreases, slow when it increases, very slow during
+    // speech so that a lasting change of the background is eventually followed
+    private static final double NOISE_FLOOR_FALL_RATE = 0.3;
+    private static final double NOISE_FLOOR_RISE_RATE = 0.02;
+    private static final double NOISE_FLOOR_SPEECH_RISE_RATE = 0.001;
+
+    private final int sampleRate;
+    private final int frameSamples;
+    private final int hangoverFrames;
+    private final SilenceMode silenceMode;
+    private final SampleSink sink;
+
+    // The current frame, filled chunk after chunk
+    private final short[] frame;
+    private int frameFill = 0;
+
+    // The last frames without speech, in a circular buffer of frames
+    private final short[] preRoll;
+    private final int preRollFrames;
+    private int preRollStart = 0;
+    private int preRollCount = 0;
+
+    // Digital silence emitted when the gate closes
+    private final short[] silenceMarker;
+
+    private double noiseFloor = 0;
+    private boolean noiseFloorKnown = false;
+    private boolean gateOpen = false;
+    private int hangoverLeft = 0;
+
+    // Statistics of the session
+    private long speechFrames = 0;
+    private long nonSpeechFrames = 0;
+    private long skippedSamples = 0;
+
+    /**
+     * Create a gate.
+     *
+     * @param sampleRate     the sample rate of the audio.
+     * @param hangoverMillis the time the gate stays open after the last speech frame.
+     * @param preRollMillis  the time of audio preceding the speech let through when the gate opens.
+     * @param silenceMode    what is done with the audio that does not contain speech.
+     * @param sink           the receiver of the audio let through.
+     */
+    public VoiceActivityDetector(
+            final int sampleRate,
+            final int hangoverMillis,
+            final int preRollMillis,
+            final @NotNull SilenceMode silenceMode,
+            final @NotNull SampleSink sink
+    ) {
+        if (sampleRate < 1000 / FRAME_MS || hangoverMillis < 0 || preRollMillis < 0) {
+            final String msg = String.format(Locale.getDefault(), "Invalid voice activity detection settings (sample rate: %d Hz, hangover: %d ms, pre-roll: %d ms)", sampleRate, hangoverMillis, preRollMillis);
+            throw new IllegalArgumentException(msg);
+        }
+
+        this.sampleRate = sampleRate;
+        this.frameSamples = sampleRate * FRAME_MS / 1000;
+        this.hangoverFrames = hangoverMillis / FRAME_MS;
+        this.silenceMode = silenceMode;
+        this.sink = sink;
+
+        this.frame = new short[frameSamples];
+        this.preRollFrames = preRollMillis / FRAME_MS;
+        this.preRoll = new short[preRollFrames * frameSamples];
+        this.silenceMarker = new short[silenceMode == SilenceMode.MARKER ? sampleRate * SILENCE_MARKER_MS / 1000 : 0];
+    }
+
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    public @NotNull SilenceMode getSilenceMode() {
+        return silenceMode;
+    }
+
+    /**
+     * Forget the state and the statistics, for starting a new session.
+     */
+    public void reset() {
+        frameFill = 0;
+        preRollStart = 0;
+        preRollCount = 0;
+        noiseFloor = 0;
+        noiseFloorKnown = false;
+        gateOpen = false;
+        hangoverLeft = 0;
+
+        speechFrames = 0;
+        nonSpeechFrames = 0;
+        skippedSamples = 0;
+    }
+
+    /**
+     * Classify a chunk of audio, and give the parts containing speech to the sink.
+     *
+     * @param samples the audio.
+     * @param srcPos  the position of the first sample.
+     * @param count   the number of samples. It does not need to be a whole number of frames.
+     */
+    public void process(final @NotNull short[] samples, int srcPos, int count) {
+        if (srcPos < 0 || count < 0 || srcPos + count > samples.length) {
+            final String msg = String.format(Locale.getDefault(), "Unable to classify %d samples from index %d as source is only %d len", count, srcPos, samples.length);
+            throw new IndexOutOfBoundsException(msg);
+        }
+
+        while (count > 0) {
+            final int toCopy = Math.min(count, frameSamples - frameFill);
+            System.arraycopy(samples, srcPos, frame, frameFill, toCopy);
+            frameFill += toCopy;
+            srcPos += toCopy;
+            count -= toCopy;
+
+            if (frameFill == frameSamples) {
+                processFrame();
+                frameFill = 0;
+            }
+        }
+    }
+
+    /**
+     * Check if the gate is currently letting the audio through.
+     *
+     * @return true during speech and its hangover.
+     */
+    public boolean isSpeaking() {
+        return gateOpen;
+    }
+
+    public long getSpeechFrames() {
+        return speechFrames;
+    }
+
+    public long getNonSpeechFrames() {
+        return nonSpeechFrames;
+    }
+
+    /**
+     * Get the proportion of the frames classified as speech since the start of the session.
+     *
+     * @return the speech ratio, between 0 and 1.
+     */
+    public double getSpeechRatio() {
+        final long total = speechFrames + nonSpeechFrames;
+        return total == 0 ? 0.0 : (double) speechFrames / total;
+    }
+
+    /**
+     * Get the number of samples that were not given to the sink since the start of the session.
+     *
+     * @return the number of skipped samples.
+     */
+    public long getSkippedSamples() {
+        return skippedSamples;
+    }
+
+    /* ---------------------------------------------------------- */
+    /*                                                            */
+    /*                INTERNAL FUNCTIONS                          */
+    /*                                                            */
+    /* ---------------------------------------------------------- */
+
+    private void processFrame() {
+        long sumOfSquares = 0;
+        int zeroCrossings = 0;
+        int previous = frame[0];
+        for (int i = 0; i < frameSamples; i++) {
+            final int sample = frame[i];
+            sumOfSquares += (long) sample * sample;
+            if ((sample ^ previous) < 0) {
+                zeroCrossings++;
+            }
+            previous = sample;
+        }
+
+        final double energy = (double) sumOfSquares / frameSamples;
+        final double zeroCrossingRate = (double) zeroCrossings / frameSamples;
+
+        if (!noiseFloorKnown) {
+            noiseFloor = Math.max(MIN_NOISE_FLOOR, energy);
+            noiseFloorKnown = true;
+        }
+
+        final boolean speech = isSpeech(energy, zeroCrossingRate);
+        updateNoiseFloor(energy, speech);
+
+        // Position of the frame in the audio classified
+        final long framePosition = (speechFrames + nonSpeechFrames) * frameSamples;
+
+        if (speech) {
+            speechFrames++;
+            hangoverLeft = hangoverFrames;
+
+            if (!gateOpen) {
+                gateOpen = true;
+                flushPreRoll(framePosition);
+            }
+
+            sink.onSamples(frame, 0, frameSamples, framePosition);
+            return;
+        }
+
+        nonSpeechFrames++;
+
+        if (gateOpen && hangoverLeft > 0) {
+            hangoverLeft--;
+            sink.onSamples(frame, 0, frameSamples, framePosition);
+            return;
+        }
+
+        if (gateOpen) {
+            gateOpen = false;
+            if (silenceMarker.length > 0) {
+                sink.onSamples(silenceMarker, 0, silenceMarker.length, framePosition);
+            }
+        }
+
+        keepInPreRoll();
+    }
+
+    private boolean isSpeech(final double energy, final double zeroCrossingRate) {
+        if (energy < MIN_SPEECH_ENERGY) {
+            return false;
+        }
+
+        if (energy > noiseFloor * VOICED_ENERGY_RATIO) {
+            return true;
+        }
+
+        return energy > noiseFloor * UNVOICED_ENERGY_RATIO && zeroCrossingRate >= UNVOICED_MIN_ZERO_CROSSING_RATE;
+    }
+
+    private void updateNoiseFloor(final double energy, final boolean speech) {
+        final double rate;
+        if (energy < noiseFloor) {
+            rate = NOISE_FLOOR_FALL_RATE;
+        } else if (speech) {
+            rate = NOISE_FLOOR_SPEECH_RISE_RATE;
+        } else {
+            rate = NOISE_FLOOR_RISE_RATE;
+        }
+
+        noiseFloor = Math.max(MIN_NOISE_FLOOR, noiseFloor + (energy - noiseFloor) * rate);
+    }
+
+    private void keepInPreRoll() {
+        if (preRollFrames == 0) {
+            skippedSamples += frameSamples;
+            return;
+        }
+
+        // The oldest frame leaves the pre-roll
+        if (preRollCount == preRollFrames) {
+            skippedSamples += frameSamples;
+            preRollStart = (preRollStart + 1) % preRollFrames;
+            preRollCount--;
+        }
+
+        final int index = (preRollStart + preRollCount) % preRollFrames;
+        System.arraycopy(frame, 0, preRoll, index * frameSamples, frameSamples);
+        preRollCount++;
+    }
+
+    /**
+     * Give the pre-roll to the sink, the frames just before the given one.
+     */
+    private void flushPreRoll(final long framePosition) {
+        if (preRollCount == 0) {
+            return;
+        }
+
+        // At most two blocks, before and after the end of the circular buffer
+        final long preRollPosition = framePosition - (long) preRollCount * frameSamples;
+        final int firstFrames = Math.min(preRollCount, preRollFrames - preRollStart);
+        sink.onSamples(preRoll, preRollStart * frameSamples, firstFrames * frameSamples, preRollPosition);
+        if (preRollCount > firstFrames) {
+            sink.onSamples(preRoll, 0, (preRollCount - firstFrames) * frameSamples, preRollPosition + (long) firstFrames * frameSamples);
+        }
+
+        preRollStart = 0;
+        preRollCount = 0;
+    }
+}
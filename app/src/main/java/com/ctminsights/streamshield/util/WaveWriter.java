@@ -14,17 +14,25 @@ import java.io.OutputStream;
 public class WaveWriter {
     private static final String TAG = WaveWriter.class.getSimpleName();
 
+    // Number of frames read from the buffer at once
+    private static final int FRAMES_PER_READ = 1024;
+
     private final Context context;
     private final long sampleRate;
     private final int bitsPerSample;
     private final int numberOfChannels;
-    private final ByteBufferedInputStream buffer;
+    private final AudioBroadcastBuffer audioSource;
+    private AudioBroadcastBuffer.Cursor buffer;
+
+    // The bytes missing in the last recording
+    private volatile long droppedBytes = 0;
 
     private boolean isRunning;
     private Thread readerThread;
 
     public WaveWriter(
             final @NotNull Context context,
+            final @NotNull AudioBroadcastBuffer audioSource,
             final int sampleRate,
             final int bitsPerSample,
             final int numberOfChannels) {
@@ -33,21 +41,25 @@ public class WaveWriter {
         this.bitsPerSample = bitsPerSample;
         this.numberOfChannels = numberOfChannels;
 
-        this.buffer = new ByteBufferedInputStream(1024);
+        this.audioSource = audioSource;
 
         isRunning = false;
     }
 
-    public void addBytes(final @NotNull byte[] bytes) {
-        buffer.addBytes(bytes);
+    /**
+     * Get the number of bytes of audio missing in the file being written, or in the last one written. The audio is only
+     * lost if the writing has not caught up with the capture when the stop times out.
+     *
+     * @return the number of dropped bytes.
+     */
+    public long getDroppedBytes() {
+        final AudioBroadcastBuffer.Cursor currentBuffer = this.buffer;
+        return currentBuffer == null ? droppedBytes : currentBuffer.getDroppedBytes();
     }
 
     public void stop() {
         Log.i(TAG, "Stop to record a wave file");
 
-        // Stop the writing
-        isRunning = false;
-
         final Thread currentThread = this.readerThread;
 
         // Do not stop an already stopped process
@@ -57,8 +69,9 @@ public class WaveWriter {
             return;
         }
 
-        // Finish the stream before stopping the service
-        buffer.setEndOfStreamReached();
+        // Finish the stream: the writing goes on until the audio captured before is written
+        final AudioBroadcastBuffer.Cursor currentBuffer = this.buffer;
+        currentBuffer.setEndOfStreamReached();
 
         // Remove the current thread from the instance
         this.readerThread = null;
@@ -67,11 +80,25 @@ public class WaveWriter {
             // Wait for the thread to finish
             currentThread.join(1000);
         } catch (final Exception e) {
+            Log.e(TAG, "The writing thread has been interrupted while waiting for it");
+        }
+
+        // Stop the writing if it is still lagging, the audio not written yet is then missing in the file
+        isRunning = false;
+        long unreadBytes = 0;
+        if (currentThread.isAlive()) {
             Log.e(TAG, "The writing thread did not finished in the expected time");
+            unreadBytes = currentBuffer.available();
         }
 
-        // Close the buffer
-        buffer.close();
+        // Stop reading the audio source
+        droppedBytes = currentBuffer.getDroppedBytes() + unreadBytes;
+        currentBuffer.close();
+        this.buffer = null;
+
+        if (droppedBytes > 0) {
+            Log.w(TAG, "The wave file misses " + droppedBytes + " bytes of audio");
+        }
 
         Log.i(TAG, "Wave file recording has stopped properly");
     }
@@ -89,22 +116,25 @@ public class WaveWriter {
         // Set running mode
         isRunning = true;
 
+        // Start reading the audio source from now. The file must not have any gap, so the capture waits for the
+        // writing rather than dropping audio.
+        final AudioBroadcastBuffer.Cursor currentBuffer = audioSource.register(BufferOverflowPolicy.BLOCK);
+        this.buffer = currentBuffer;
+        droppedBytes = 0;
+
         final Runnable readerRunnable = () -> {
 
             try (final OutputStream tempFile = context.openFileOutput("call.temp.wav", MODE_PRIVATE)) {
                 // Write the header with an empty size (for now)
                 writeWaveFileHeader(tempFile, 0);
 
-                // Clear the buffer if it still holds previous data
-                buffer.restart();
-
-                final byte[] bytes = new byte[frameSize];
+                final byte[] bytes = new byte[frameSize * FRAMES_PER_READ];
 
                 long totalBytesRead = 0;
 
                 while (isRunning) {
                     try {
-                        final int bytesRead = buffer.read(bytes);
+                        final int bytesRead = currentBuffer.read(bytes);
 
                         if (bytesRead > 0) {
                             tempFile.write(bytes, 0, bytesRead);
@@ -142,9 +172,6 @@ public class WaveWriter {
                     return;
                 }
 
-                // Let the buffer clean
-                buffer.restart();
-
             } catch (Exception e) {
                 Log.e(TAG, "Unable to open temp file for writing", e);
             }
@@ -0,0 +1,132 @@
+package com.ctminsights.streamshield.util;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * A recognized word, with its position in the recognized audio and its confidence. The positions are sample offsets
+ * from the start of the captured audio, at the recognition sample rate (see
+ * {@link SpeechRecognizer#getRecognitionSampleRate()}), the audio kept away from the decoder by the voice activity
+ * detection included. The instances are immutable, and can be shared between the stages.
+ */
+public final class WordEvent {
+
+    // Position of a word whose timing is not known
+    public static final long UNKNOWN_POSITION = -1;
+
+    // Confidence of a word whose confidence is not known
+    public static final float UNKNOWN_CONFIDENCE = -1f;
+
+    private static final WordEvent[] NO_WORDS = new WordEvent[0];
+
+    private final String word;
+    private final long startSample;
+    private final long endSample;
+    private final float confidence;
+
+    /**
+     * Create a word without timing nor confidence.
+     *
+     * @param word the word.
+     */
+    public WordEvent(final @NotNull String word) {
+        this(word, UNKNOWN_POSITION, UNKNOWN_POSITION, UNKNOWN_CONFIDENCE);
+    }
+
+    /**
+     * Create a word.
+     *
+     * @param word        the word.
+     * @param startSample the position of the start of the word, or {@link #UNKNOWN_POSITION}.
+     * @param endSample   the position of the end of the word, or {@link #UNKNOWN_POSITION}.
+     * @param confidence  the confidence, between 0 and 1, or {@link #UNKNOWN_CONFIDENCE}.
+     */
+    public WordEvent(final @NotNull String word, final long startSample, final long endSample, final float confidence) {
+        this.word = word;
+        this.startSample = startSample;
+        this.endSample = endSample;
+        this.confidence = confidence;
+    }
+
+    /**
+     * Split a text into words without timing nor confidence.
+     *
+     * @param text the text, with the words separated by spaces.
+     * @return the words, possibly none.
+     */
+    public static @NotNull WordEvent[] fromText(final @NotNull String text) {
+        final String trimmed = text.trim();
+        if (trimmed.isEmpty()) {
+            return NO_WORDS;
+        }
+
+        final String[] parts = trimmed.split("\\s+");
+        final WordEvent[] words = new WordEvent[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            words[i] = new WordEvent(parts[i]);
+        }
+        return words;
+    }
+
+    /**
+     * Join words into a text.
+     *
+     * @param words the words.
+     * @return the words separated by spaces.
+     */
+    public static @NotNull String toText(final @NotNull WordEvent[] words) {
+        if (words.length == 1) {
+            return words[0].word;
+        }
+
+        final StringBuilder builder = new StringBuilder();
+        for (final WordEvent word : words) {
+            if (builder.length() > 0) {
+                builder.append(' ');
+            }
+            builder.append(word.word);
+        }
+        return builder.toString();
+    }
+
+    public @NotNull String getWord() {
+        return word;
+    }
+
+    public long getStartSample() {
+        return startSample;
+    }
+
+    public long getEndSample() {
+        return endSample;
+    }
+
+    public float getConfidence() {
+        return confidence;
+    }
+
+    public boolean hasTiming() {
+        return startSample != UNKNOWN_POSITION && endSample != UNKNOWN_POSITION;
+    }
+
+    public boolean hasConfidence() {
+        return confidence != UNKNOWN_CONFIDENCE;
+    }
+
+    /**
+     * Create a copy of the word moved in the audio, for the words recognized in a part of a longer audio.
+     *
+     * @param offset the number of samples to add to the positions.
+     * @return the moved word, or this word if it has no timing.
+     */
+    public @NotNull WordEvent withOffset(final long offset) {
+        if (!hasTiming() || offset == 0) {
+            return this;
+        }
+        return new WordEvent(word, startSample + offset, endSample + offset, confidence);
+    }
+
+    @Override
+    public @NotNull String toString() {
+        return word;
+    }
+}
@@ -0,0 +1,229 @@
+package com.ctminsights.streamshield.util;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * A batch of events for the {@link WordReceiver} stages: the events taken by a stage in one wake-up, given to
+ * {@link WordReceiver#processBatch(WordEventBatch)}, or the events a stage emits at once with
+ * {@link WordReceiver#putBatch(WordEventBatch)}.
+ * <p>
+ * A batch is meant to be reused: the events are copied when put into a stage, so the batch can be cleared and filled
+ * again right after, and its arrays only grow. The instance must only be used by a single thread.
+ * <p>
+ * Each event also keeps the capture time of the audio it comes from, for measuring the delay from the microphone to
+ * each stage. A stage deriving its events from the ones it receives gives them the capture time of their source with
+ * {@link #setCaptureTimeNanos(long)}.
+ */
+public final class WordEventBatch {
+
+    // The types of the events
+    public static final int TEXT = 1;
+    public static final int END_OF_SENTENCE = 2;
+    public static final int ERROR = 3;
+    public static final int RESET = 4;
+    public static final int KEYWORD = 5;
+
+    // Initial number of events that can be kept without growing the arrays
+    private static final int INITIAL_CAPACITY = 16;
+
+    private int[] types = new int[INITIAL_CAPACITY];
+    private int[] channels = new int[INITIAL_CAPACITY];
+    private Object[] payloads = new Object[INITIAL_CAPACITY];
+    private long[] captureTimes = new long[INITIAL_CAPACITY];
+    private int size = 0;
+
+    // The capture time given to the events added next
+    private long captureTimeNanos = WordReceiver.UNKNOWN_CAPTURE_TIME;
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Forget the events, and release their payloads.
+     */
+    public void clear() {
+        Arrays.fill(payloads, 0, size, null);
+        size = 0;
+        captureTimeNanos = WordReceiver.UNKNOWN_CAPTURE_TIME;
+    }
+
+    /**
+     * Define the capture time of the audio of the events added next, until the batch is cleared.
+     *
+     * @param captureTimeNanos the capture time, from {@link System#nanoTime()}, or
+     *                         {@link WordReceiver#UNKNOWN_CAPTURE_TIME}.
+     */
+    public void setCaptureTimeNanos(final long captureTimeNanos) {
+        this.captureTimeNanos = captureTimeNanos;
+    }
+
+    /**
+     * Add words recognized on a channel.
+     *
+     * @param channel the channel of the audio the words come from.
+     * @param words   the words, in the order they were spoken. Nothing is added if there is none.
+     */
+    public void addText(final int channel, final @NotNull WordEvent... words) {
+        if (words.length > 0) {
+            add(TEXT, channel, words);
+        }
+    }
+
+    public void addEndOfSentence(final int channel) {
+        add(END_OF_SENTENCE, channel, null);
+    }
+
+    public void addKeyword(final int channel, final @NotNull WordEvent keyword) {
+        add(KEYWORD, channel, keyword);
+    }
+
+    public void addError(final @NotNull String error) {
+        add(ERROR, WordReceiver.CHANNEL_DEFAULT, error);
+    }
+
+    public void addReset() {
+        add(RESET, WordReceiver.CHANNEL_DEFAULT, null);
+    }
+
+    /**
+     * Get the type of an event.
+     *
+     * @param index the index of the event.
+     * @return {@link #TEXT}, {@link #END_OF_SENTENCE}, {@link #ERROR}, {@link #RESET} or {@link #KEYWORD}.
+     */
+    public int getType(final int index) {
+        checkIndex(index);
+        return types[index];
+    }
+
+    public int getChannel(final int index) {
+        checkIndex(index);
+        return channels[index];
+    }
+
+    /**
+     * Get the capture time of the audio of an event.
+     *
+     * @param index the index of the event.
+     * @return the capture time, from {@link System#nanoTime()}, or {@link WordReceiver#UNKNOWN_CAPTURE_TIME}.
+     */
+    public long getCaptureTimeNanos(final int index) {
+        checkIndex(index);
+        return captureTimes[index];
+    }
+
+    /**
+     * Get the words of a {@link #TEXT} event.
+     *
+     * @param index the index of the event.
+     * @return the words.
+     */
+    public @NotNull WordEvent[] getWords(final int index) {
+        return (WordEvent[]) getPayload(index, TEXT);
+    }
+
+    /**
+     * Get the phrase of a {@link #KEYWORD} event.
+     *
+     * @param index the index of the event.
+     * @return the phrase.
+     */
+    public @NotNull WordEvent getKeyword(final int index) {
+        return (WordEvent) getPayload(index, KEYWORD);
+    }
+
+    /**
+     * Get the message of an {@link #ERROR} event.
+     *
+     * @param index the index of the event.
+     * @return the message.
+     */
+    public @NotNull String getError(final int index) {
+        return (String) getPayload(index, ERROR);
+    }
+
+    /* ---------------------------------------------------------- */
+    /*                                                            */
+    /*                INTERNAL FUNCTIONS                          */
+    /*                                                            */
+    /* ---------------------------------------------------------- */
+
+    void add(final int type, final int channel, final @Nullable Object payload) {
+        add(type, channel, payload, captureTimeNanos);
+    }
+
+    void add(final int type, final int channel, final @Nullable Object payload, final long captureTime) {
+        if (size == types.length) {
+            final int capacity = types.length * 2;
+            types = Arrays.copyOf(types, capacity);
+            channels = Arrays.copyOf(channels, capacity);
+            payloads = Arrays.copyOf(payloads, capacity);
+            captureTimes = Arrays.copyOf(captureTimes, capacity);
+        }
+
+        types[size] = type;
+        channels[size] = channel;
+        payloads[size] = payload;
+        captureTimes[size] = captureTime;
+        size++;
+    }
+
+    @Nullable Object getPayload(final int index) {
+        checkIndex(index);
+        return payloads[index];
+    }
+
+    /**
+     * Replace the last text of a channel by a newer one, for the texts holding all the words recognized so far, such as
+     * the partial results of the recognizer. Only the texts following the last event of another type are looked at, and
+     * the event keeps its place and its capture time, the oldest one.
+     *
+     * @param channel the channel of the text.
+     * @param words   the words of the newer text.
+     * @return true if the text has been replaced, false if the words must be added as a new event.
+     */
+    boolean coalesceText(final int channel, final @NotNull WordEvent[] words) {
+        for (int i = size - 1; i >= 0 && types[i] == TEXT; i--) {
+            if (channels[i] == channel) {
+                payloads[i] = words;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Forget the events after the first ones.
+     *
+     * @param size the number of events kept, at most the current size.
+     */
+    void truncate(final int size) {
+        Arrays.fill(payloads, size, this.size, null);
+        this.size = size;
+    }
+
+    private @NotNull Object getPayload(final int index, final int type) {
+        checkIndex(index);
+        if (types[index] != type) {
+            final String msg = String.format(Locale.getDefault(), "The event %d is of type %d, not %d", index, types[index], type);
+            throw new IllegalArgumentException(msg);
+        }
+        return payloads[index];
+    }
+
+    private void checkIndex(final int index) {
+        if (index < 0 || index >= size) {
+            final String msg = String.format(Locale.getDefault(), "Invalid event index %d in a batch of %d events", index, size);
+            throw new IndexOutOfBoundsException(msg);
+        }
+    }
+}
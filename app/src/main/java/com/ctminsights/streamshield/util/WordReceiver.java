@@ -1,27 +1,163 @@
 package com.ctminsights.streamshield.util;
 
+import android.util.Log;
+
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
-import java.util.Queue;
-import java.util.concurrent.ConcurrentLinkedQueue;
-
-import kotlin.Pair;
+import java.util.Locale;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 public abstract class WordReceiver {
-    private static final int EVENT_TEXT = 1;
-    private static final int EVENT_END_OF_SENTENCE = 2;
-    private static final int EVENT_ERROR = 3;
-    private static final int EVENT_RESET = 4;
 
-    private final Queue<Pair<Integer, String>> events = new ConcurrentLinkedQueue<>();
+    /**
+     * How the thread of a stage waits for its events.
+     */
+    public enum WaitStrategy {
+        /**
+         * Busy loop: the lowest latency, but a core is kept busy while waiting.
+         */
+        SPIN,
+        /**
+         * Loop giving the core to the other threads: a low latency at the cost of some CPU while waiting.
+         */
+        YIELD,
+        /**
+         * The thread is parked until an event is published.
+         */
+        PARK
+    }
+
+    /**
+     * What is done with the texts put while the events waiting for a stage fill its capacity. The other events, such
+     * as the resets, the ends of sentence and the errors, are never dropped nor blocked.
+     * <p>
+     * A producer never waits when it runs as a task of a shared scheduler, or when the stage is processed by its
+     * callers: the stage may need the thread of the producer to free a slot. The texts that do not fit are then spilled
+     * beyond the capacity, in order, and counted by {@link #getSpilledEvents()}.
+     */
+    public enum OverflowPolicy {
+        /**
+         * The producer waits until the stage has taken enough events. Nothing is lost, but the previous stages, and
+         * the recognizer in the end, are slowed down to the pace of the stage.
+         */
+        BLOCK,
+        /**
+         * The oldest text waiting is discarded to make room for the new one, so that the stage stays close to real
+         * time.
+         */
+        DROP_OLDEST_TEXT,
+        /**
+         * The producer waits as with {@link #BLOCK}, but only the latest of the texts of a channel waiting is taken,
+         * so that a stage falling behind catches up in a few calls. Only for the stages receiving texts holding all
+         * the words so far, such as the partial results of the recognizer, not for the stages receiving new words.
+         */
+        COALESCE_TEXT
+    }
+
+    private static final String TAG = WordReceiver.class.getSimpleName();
+
+    // The channel of the texts of a mono stream, or of a stereo stream mixed to mono
+    public static final int CHANNEL_DEFAULT = 0;
+
+    // The channels of the texts when the two sides of a stereo stream are recognized separately
+    public static final int CHANNEL_LEFT = 0;
+    public static final int CHANNEL_RIGHT = 1;
+
+    // The capture time of the events whose audio is not known
+    public static final long UNKNOWN_CAPTURE_TIME = -1;
+
+    private static final int EVENT_TEXT = WordEventBatch.TEXT;
+    private static final int EVENT_END_OF_SENTENCE = WordEventBatch.END_OF_SENTENCE;
+    private static final int EVENT_ERROR = WordEventBatch.ERROR;
+    private static final int EVENT_RESET = WordEventBatch.RESET;
+    private static final int EVENT_KEYWORD = WordEventBatch.KEYWORD;
+
+    // Maximum number of events processed by a task of a shared scheduler before giving its thread to the other stages
+    private static final int EVENTS_PER_TASK = 64;
+
+    // Maximum time for the processing in progress to finish at stop
+    private static final long STOP_TIMEOUT_MS = 1000;
+
+    // Maximum time for the events waiting to be processed at a draining stop
+    private static final long DRAIN_TIMEOUT_MS = 2000;
 
-    // The monitor to unlock thread waiting for reading when data is available
+    // Number of texts that can wait for the stage by default
+    private static final int EVENT_RING_CAPACITY = 1024;
+
+    // The events dropped, because the ring was full while the stage was stopped or with DROP_OLDEST_TEXT
+    private final AtomicLong droppedEvents = new AtomicLong();
+
+    // The texts replaced by a newer one with COALESCE_TEXT
+    private final AtomicLong coalescedEvents = new AtomicLong();
+
+    // The texts kept beyond the capacity, because their producer could not wait
+    private final AtomicLong spilledEvents = new AtomicLong();
+
+    // Set on the threads running the task of a stage, whose puts must not wait for a stage that may need the thread
+    private static final ThreadLocal<Boolean> RUNNING_TASK = new ThreadLocal<>();
+
+    // Replaced at start when the capacity or the policy has changed
+    private volatile WordReceiverRing events = new WordReceiverRing(EVENT_RING_CAPACITY, OverflowPolicy.BLOCK, droppedEvents, coalescedEvents, spilledEvents);
+
+    // The capacity and the policy of the ring, applied at start
+    private volatile int capacity = EVENT_RING_CAPACITY;
+    private volatile OverflowPolicy overflowPolicy = OverflowPolicy.BLOCK;
+
+    // The events taken in one wake-up. Only used by the thread or the task processing the events.
+    private final WordEventBatch receivedBatch = new WordEventBatch();
+
+    // The monitor to wait for the end of the task in progress at stop
     private final Object monitor = new Object();
 
     // The flag to exit the thread
-    private boolean processResults = true;
+    private volatile boolean processResults = true;
     private Thread processorThread = null;
+    private volatile WaitStrategy waitStrategy = WaitStrategy.PARK;
+
+    // Whether the thread of the stage is taking or processing events, and whether a draining stop waits for it to be
+    // idle
+    private volatile boolean processingEvents = false;
+    private volatile boolean draining = false;
+
+    // Whether the events are taken, by a thread or by the tasks of a scheduler
+    private volatile boolean consuming = false;
+
+    // Whether the events are processed by the threads putting them, which then cannot wait for a free slot
+    private volatile boolean processedByCallers = false;
+
+    private final WordReceiverRing.ConsumerState consumerState = new WordReceiverRing.ConsumerState() {
+        @Override
+        public boolean isActive() {
+            return consuming;
+        }
+
+        @Override
+        public boolean canWait() {
+            return !processedByCallers && RUNNING_TASK.get() == null;
+        }
+    };
+
+    // Where the events are processed, applied at start
+    private volatile WordReceiverScheduler scheduler = WordReceiverScheduler.dedicated();
+
+    // The executor of a shared scheduler while started, null with a dedicated thread or when stopped
+    private volatile Executor executor = null;
+    private volatile int eventsPerTask = EVENTS_PER_TASK;
+
+    // The instrumentation of the stage, recorded while enabled
+    private final WordReceiverMetrics metrics = new WordReceiverMetrics(getClass().getSimpleName());
+    private volatile boolean metricsEnabled = true;
+
+    // The capture time of the event being processed. Only used by the thread or the task processing the events.
+    private long processedCaptureTimeNanos = UNKNOWN_CAPTURE_TIME;
+
+    // Whether a task processing the events is submitted or running, so that there is only one at a time
+    private final AtomicBoolean taskScheduled = new AtomicBoolean(false);
+    private final Runnable processingTask = this::runTask;
 
     protected final WordReceiver nextStage;
 
@@ -38,93 +174,327 @@ public abstract class WordReceiver {
     /* ---------------------------------------------------------- */
 
     public void putText(@NotNull String text) {
-        if (text.isBlank()) {
+        putText(CHANNEL_DEFAULT, text);
+    }
+
+    /**
+     * Receive a text recognized on a channel, without timing nor confidence. The channels are processed
+     * independently.
+     *
+     * @param channel the channel of the audio the text comes from.
+     * @param text    the text.
+     */
+    public void putText(final int channel, @NotNull String text) {
+        putText(channel, WordEvent.fromText(text));
+    }
+
+    /**
+     * Receive words recognized on a channel. The channels are processed independently.
+     *
+     * @param channel the channel of the audio the words come from.
+     * @param words   the words, in the order they were spoken.
+     */
+    public void putText(final int channel, @NotNull WordEvent... words) {
+        putText(channel, UNKNOWN_CAPTURE_TIME, words);
+    }
+
+    /**
+     * Receive words recognized on a channel, with the capture time of their audio for measuring the delay until each
+     * stage.
+     *
+     * @param channel          the channel of the audio the words come from.
+     * @param captureTimeNanos the capture time of the audio, from {@link System#nanoTime()}, or
+     *                         {@link #UNKNOWN_CAPTURE_TIME}.
+     * @param words            the words, in the order they were spoken.
+     */
+    public void putText(final int channel, final long captureTimeNanos, @NotNull WordEvent... words) {
+        if (words.length == 0) {
             return;
         }
 
-        events.add(new Pair<>(EVENT_TEXT, text));
-        synchronized (monitor) {
-            monitor.notifyAll();
-        }
+        putEvent(EVENT_TEXT, channel, words, captureTimeNanos);
     }
 
     public void signalEndOfSentence() {
-        events.add(new Pair<>(EVENT_END_OF_SENTENCE, ""));
-        synchronized (monitor) {
-            monitor.notifyAll();
-        }
+        signalEndOfSentence(CHANNEL_DEFAULT);
+    }
+
+    public void signalEndOfSentence(final int channel) {
+        signalEndOfSentence(channel, UNKNOWN_CAPTURE_TIME);
+    }
+
+    public void signalEndOfSentence(final int channel, final long captureTimeNanos) {
+        putEvent(EVENT_END_OF_SENTENCE, channel, null, captureTimeNanos);
+    }
+
+    /**
+     * Receive a phrase spotted on a channel, when the recognizer looks for keywords instead of transcribing.
+     *
+     * @param channel the channel of the audio the phrase comes from.
+     * @param keyword the phrase, covering the audio of its words.
+     */
+    public void putKeyword(final int channel, @NotNull WordEvent keyword) {
+        putKeyword(channel, keyword, UNKNOWN_CAPTURE_TIME);
+    }
+
+    public void putKeyword(final int channel, @NotNull WordEvent keyword, final long captureTimeNanos) {
+        putEvent(EVENT_KEYWORD, channel, keyword, captureTimeNanos);
     }
 
     public void signalError(@NotNull String error) {
-        events.add(new Pair<>(EVENT_ERROR, error));
-        synchronized (monitor) {
-            monitor.notifyAll();
-        }
+        putEvent(EVENT_ERROR, CHANNEL_DEFAULT, error, UNKNOWN_CAPTURE_TIME);
     }
 
+    /**
+     * Forget the state of all the channels.
+     */
     public void reset() {
-        events.add(new Pair<>(EVENT_RESET, ""));
-        synchronized (monitor) {
-            monitor.notifyAll();
+        putEvent(EVENT_RESET, CHANNEL_DEFAULT, null, UNKNOWN_CAPTURE_TIME);
+    }
+
+    /**
+     * Receive several events at once, for example emitted by a previous stage processing a batch. They are published
+     * together, with a single wake-up of the stage. The batch can be reused as soon as the call returns.
+     *
+     * @param batch the events, in order.
+     */
+    public void putBatch(final @NotNull WordEventBatch batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+
+        final int put = events.putAll(batch, consumerState);
+        if (put > 0) {
+            if (metricsEnabled) {
+                metrics.recordPut(put);
+            }
+            scheduleProcessing();
+        }
+    }
+
+    /**
+     * Define where the events are processed: on a thread of the stage, or as tasks on threads shared with other
+     * stages. It is applied from the next start.
+     *
+     * @param scheduler the scheduler.
+     */
+    public void setScheduler(final @NotNull WordReceiverScheduler scheduler) {
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * Define where the events of this stage and of all its next stages are processed. It is applied from the next
+     * start.
+     *
+     * @param scheduler the scheduler.
+     */
+    public void setChainScheduler(final @NotNull WordReceiverScheduler scheduler) {
+        for (WordReceiver stage = this; stage != null; stage = stage.nextStage) {
+            stage.setScheduler(scheduler);
+        }
+    }
+
+    /**
+     * Define how the thread of the stage waits for its events, when it has its own thread. It is applied from the
+     * next start.
+     *
+     * @param strategy the wait strategy.
+     */
+    public void setWaitStrategy(final @NotNull WaitStrategy strategy) {
+        this.waitStrategy = strategy;
+    }
+
+    /**
+     * Define how many texts can wait for the stage, and what is done with the next ones. It is applied from the next
+     * start, the events waiting then being dropped.
+     *
+     * @param capacity the number of texts, rounded up to the next power of two.
+     * @param policy   the overflow policy.
+     */
+    public void setCapacity(final int capacity, final @NotNull OverflowPolicy policy) {
+        if (capacity <= 0) {
+            final String msg = String.format(Locale.getDefault(), "Invalid stage capacity: %d", capacity);
+            throw new IllegalArgumentException(msg);
+        }
+
+        this.capacity = capacity;
+        this.overflowPolicy = policy;
+    }
+
+    /**
+     * Get the number of events dropped, because too many were waiting while the stage was stopped, or to make room
+     * with {@link OverflowPolicy#DROP_OLDEST_TEXT}.
+     *
+     * @return the number of events dropped.
+     */
+    public long getDroppedEvents() {
+        return droppedEvents.get();
+    }
+
+    /**
+     * Get the number of texts replaced by a newer one with {@link OverflowPolicy#COALESCE_TEXT}.
+     *
+     * @return the number of texts replaced.
+     */
+    public long getCoalescedEvents() {
+        return coalescedEvents.get();
+    }
+
+    /**
+     * Get the number of texts kept beyond the capacity, because they were put by a task of a shared scheduler or
+     * to a stage processed by the callers, which cannot wait for the stage.
+     *
+     * @return the number of texts spilled.
+     */
+    public long getSpilledEvents() {
+        return spilledEvents.get();
+    }
+
+    /**
+     * Enable or disable the recording of the metrics of the stage. They are enabled by default. When disabled, nothing
+     * is measured, and the values recorded so far are kept for when they are enabled again.
+     *
+     * @param enabled true to record the metrics.
+     */
+    public void setMetricsEnabled(final boolean enabled) {
+        this.metricsEnabled = enabled;
+    }
+
+    /**
+     * Enable or disable the recording of the metrics of this stage and of all its next stages.
+     *
+     * @param enabled true to record the metrics.
+     */
+    public void setChainMetricsEnabled(final boolean enabled) {
+        for (WordReceiver stage = this; stage != null; stage = stage.nextStage) {
+            stage.setMetricsEnabled(enabled);
         }
     }
 
+    /**
+     * Get the metrics of the stage recorded so far.
+     *
+     * @return a snapshot of the metrics, or null if they are disabled.
+     */
+    public @Nullable WordReceiverMetrics.Snapshot getMetrics() {
+        if (!metricsEnabled) {
+            return null;
+        }
+
+        return metrics.snapshot(events.size(), droppedEvents.get(), coalescedEvents.get(), spilledEvents.get());
+    }
+
     public void start() {
-        if (processorThread != null && processorThread.isAlive()) {
+        if ((processorThread != null && processorThread.isAlive()) || executor != null) {
             return;
         }
 
-        // Ensure no remaining events
-        this.events.clear();
+        // Ensure no remaining events, in a new ring if its configuration has changed
+        final WordReceiverRing ring = events;
+        if (ring.getCapacity() < capacity || ring.getCapacity() >= 2 * capacity || ring.getOverflowPolicy() != overflowPolicy) {
+            this.events = new WordReceiverRing(capacity, overflowPolicy, droppedEvents, coalescedEvents, spilledEvents);
+        } else {
+            ring.clear();
+        }
+        processResults = true;
+        consuming = true;
+
+        final WordReceiverScheduler stageScheduler = scheduler;
+        final Executor sharedExecutor = stageScheduler.getExecutor();
+        if (sharedExecutor != null) {
+            // A task processing the events of the caller runs until there is no event left
+            processedByCallers = stageScheduler.getMode() == WordReceiverScheduler.Mode.CALLER;
+            eventsPerTask = processedByCallers ? Integer.MAX_VALUE : EVENTS_PER_TASK;
+            executor = sharedExecutor;
+            return;
+        }
 
+        final WaitStrategy strategy = waitStrategy;
+        final WordReceiverRing threadEvents = events;
         final Runnable runnable = () -> {
             while (processResults) {
-                // Wait for some results to be available
+                // Wait for some results to be available, then take all of them
+                processingEvents = true;
+                if (takeEvents(threadEvents, threadEvents.getCapacity()) == 0) {
+                    processingEvents = false;
+                    notifyIfDrained();
+                    threadEvents.awaitEvent(strategy);
+                    continue;
+                }
+
                 try {
-                    synchronized (monitor) {
-                        monitor.wait();
-                    }
-                } catch (InterruptedException e) {
-                    Thread.currentThread().interrupt();
+                    processTakenEvents();
+                } finally {
+                    receivedBatch.clear();
+                    processingEvents = false;
                 }
+            }
+        };
 
-                while (!events.isEmpty() && processResults) {
-                    final Pair<Integer, String> event = events.remove();
+        processorThread = new Thread(runnable, getClass().getSimpleName());
+        processorThread.setPriority(stageScheduler.getPriority());
+        processorThread.start();
+    }
 
-                    switch (event.component1()) {
-                        case EVENT_TEXT: {
-                            processTextReceived(event.component2());
-                            break;
-                        }
-                        case EVENT_END_OF_SENTENCE: {
-                            processEndOfSentence();
-                            break;
-                        }
-                        case EVENT_ERROR: {
-                            processError(event.component2());
-                            break;
-                        }
-                        case EVENT_RESET: {
-                            processReset();
-                            break;
+    /**
+     * Stop the stage once the events waiting have been processed, so that the last events put before go through it.
+     * The producers must have been stopped before, and the wait is bounded: the events still waiting after it are
+     * counted as dropped, and discarded at the next start.
+     */
+    public void drainAndStop() {
+        if (consuming) {
+            draining = true;
+            try {
+                final long deadline = System.currentTimeMillis() + DRAIN_TIMEOUT_MS;
+                synchronized (monitor) {
+                    long remaining;
+                    while (!isDrained() && (remaining = deadline - System.currentTimeMillis()) > 0) {
+                        try {
+                            monitor.wait(remaining);
+                        } catch (InterruptedException e) {
+                            throw new RuntimeException(e);
                         }
                     }
                 }
+            } finally {
+                draining = false;
             }
-        };
+        }
 
-        processResults = true;
-        processorThread = new Thread(runnable);
-        processorThread.start();
+        stop();
+
+        final int remaining = events.size();
+        if (remaining > 0) {
+            Log.w(TAG, getClass().getSimpleName() + " stopped with " + remaining + " events waiting");
+            droppedEvents.addAndGet(remaining);
+        }
     }
 
     public void stop() {
-        if (processorThread != null) {
+        consuming = false;
+        processedByCallers = false;
+
+        if (executor != null) {
             this.processResults = false;
+            this.executor = null;
 
+            // Let the task in progress finish its event
+            final long deadline = System.currentTimeMillis() + STOP_TIMEOUT_MS;
             synchronized (monitor) {
-                monitor.notifyAll();
+                long remaining;
+                while (taskScheduled.get() && (remaining = deadline - System.currentTimeMillis()) > 0) {
+                    try {
+                        monitor.wait(remaining);
+                    } catch (InterruptedException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
             }
+        }
+
+        if (processorThread != null) {
+            this.processResults = false;
+            events.wakeUp();
 
             try {
                 this.processorThread.join(1000);
@@ -136,12 +506,229 @@ public abstract class WordReceiver {
         }
     }
 
-    public abstract void processTextReceived(@NotNull String text);
+    /**
+     * Process the events taken in one wake-up. By default, each event is given to its own function, such as
+     * {@link #processTextReceived(int, WordEvent[])}, then {@link #onBatchProcessed()} is called. A stage can override
+     * it for handling a burst of events at once.
+     *
+     * @param batch the events, in order, only valid during the call.
+     */
+    protected void processBatch(final @NotNull WordEventBatch batch) {
+        int i = 0;
+        for (; i < batch.size() && processResults; i++) {
+            processedCaptureTimeNanos = batch.getCaptureTimeNanos(i);
+            processEvent(batch.getType(i), batch.getChannel(i), batch.getPayload(i));
+        }
+        processedCaptureTimeNanos = UNKNOWN_CAPTURE_TIME;
+
+        // The events left by a stop are lost
+        if (i < batch.size()) {
+            droppedEvents.addAndGet(batch.size() - i);
+        }
+
+        onBatchProcessed();
+    }
+
+    /**
+     * Called once the events taken in one wake-up have been processed. A stage can override it for emitting the events
+     * derived from them with a single {@link #putBatch(WordEventBatch)} to the next stage, instead of one call per
+     * event processed.
+     */
+    protected void onBatchProcessed() {
+    }
+
+    /**
+     * Get the capture time of the audio of the event being processed, for giving it to the events derived from it,
+     * with {@link WordEventBatch#setCaptureTimeNanos(long)}. Only valid in the functions processing the events.
+     *
+     * @return the capture time, from {@link System#nanoTime()}, or {@link #UNKNOWN_CAPTURE_TIME}.
+     */
+    protected long getCaptureTimeNanos() {
+        return processedCaptureTimeNanos;
+    }
+
+    /* ---------------------------------------------------------- */
+    /*                                                            */
+    /*                INTERNAL FUNCTIONS                          */
+    /*                                                            */
+    /* ---------------------------------------------------------- */
+
+    private void putEvent(final int type, final int channel, final @Nullable Object payload, final long captureTime) {
+        if (events.put(type, channel, payload, captureTime, consumerState)) {
+            if (metricsEnabled) {
+                metrics.recordPut(1);
+            }
+            scheduleProcessing();
+        }
+    }
+
+    private void scheduleProcessing() {
+        // The thread of the stage is woken up by the ring
+        final Executor sharedExecutor = executor;
+        if (sharedExecutor == null) {
+            return;
+        }
+
+        // A single task at a time, so that the events of the stage keep their order
+        if (taskScheduled.compareAndSet(false, true)) {
+            try {
+                sharedExecutor.execute(processingTask);
+            } catch (final RejectedExecutionException e) {
+                Log.e(TAG, "The scheduler of " + getClass().getSimpleName() + " has been shut down");
+                endTask();
+            }
+        }
+    }
+
+    private void runTask() {
+        // A task may run inside another one with the caller scheduler
+        final Boolean outerTask = RUNNING_TASK.get();
+        RUNNING_TASK.set(Boolean.TRUE);
+        try {
+            processScheduledEvents();
+        } finally {
+            RUNNING_TASK.set(outerTask);
+        }
+    }
+
+    /**
+     * Process the events waiting, as a task of a shared scheduler.
+     */
+    private void processScheduledEvents() {
+        final Executor sharedExecutor = executor;
+        final WordReceiverRing taskEvents = events;
+        final int maxEvents = eventsPerTask;
+        int processed = 0;
 
-    public abstract void processEndOfSentence();
+        while (true) {
+            while (processResults && processed < maxEvents) {
+                final int taken = takeEvents(taskEvents, Math.min(maxEvents - processed, taskEvents.getCapacity()));
+                if (taken == 0) {
+                    break;
+                }
+
+                try {
+                    processTakenEvents();
+                } catch (final RuntimeException e) {
+                    Log.e(TAG, "Unable to process the events in " + getClass().getSimpleName(), e);
+                } finally {
+                    receivedBatch.clear();
+                }
+                processed += taken;
+            }
+
+            // Give the thread to the other stages, and continue in a new task
+            if (processResults && processed >= maxEvents && sharedExecutor != null && taskEvents.hasEvent()) {
+                try {
+                    sharedExecutor.execute(processingTask);
+                    return;
+                } catch (final RejectedExecutionException e) {
+                    Log.e(TAG, "The scheduler of " + getClass().getSimpleName() + " has been shut down");
+                    endTask();
+                    return;
+                }
+            }
+
+            endTask();
+
+            // An event put after the last poll found the task still scheduled, and is processed here
+            if (!processResults || !taskEvents.hasEvent() || !taskScheduled.compareAndSet(false, true)) {
+                return;
+            }
+            processed = 0;
+        }
+    }
+
+    /**
+     * Take the events waiting into the received batch, and record them.
+     *
+     * @return the number of events taken.
+     */
+    private int takeEvents(final @NotNull WordReceiverRing ring, final int maxEvents) {
+        if (!metricsEnabled) {
+            return ring.takeAll(receivedBatch, maxEvents);
+        }
+
+        final int queueDepth = ring.size();
+        final int taken = ring.takeAll(receivedBatch, maxEvents);
+        if (taken > 0) {
+            metrics.recordTaken(receivedBatch, queueDepth, System.nanoTime());
+        }
+        return taken;
+    }
+
+    /**
+     * Process the received batch, and record the time spent.
+     */
+    private void processTakenEvents() {
+        if (!metricsEnabled) {
+            processBatch(receivedBatch);
+            return;
+        }
+
+        final long startTime = System.nanoTime();
+        try {
+            processBatch(receivedBatch);
+        } finally {
+            metrics.recordProcessed(System.nanoTime() - startTime, receivedBatch.size());
+        }
+    }
+
+    private void endTask() {
+        taskScheduled.set(false);
+        synchronized (monitor) {
+            monitor.notifyAll();
+        }
+    }
+
+    /**
+     * Check if the events put so far have all been processed. The ring is checked first, as the events are taken from
+     * it once the processing has started.
+     */
+    private boolean isDrained() {
+        return !events.hasEvent() && !processingEvents && !taskScheduled.get();
+    }
+
+    private void notifyIfDrained() {
+        if (draining) {
+            synchronized (monitor) {
+                monitor.notifyAll();
+            }
+        }
+    }
+
+    private void processEvent(final int type, final int channel, final @Nullable Object payload) {
+        switch (type) {
+            case EVENT_TEXT: {
+                processTextReceived(channel, (WordEvent[]) payload);
+                break;
+            }
+            case EVENT_END_OF_SENTENCE: {
+                processEndOfSentence(channel);
+                break;
+            }
+            case EVENT_ERROR: {
+                processError((String) payload);
+                break;
+            }
+            case EVENT_RESET: {
+                processReset();
+                break;
+            }
+            case EVENT_KEYWORD: {
+                processKeyword(channel, (WordEvent) payload);
+                break;
+            }
+        }
+    }
+
+    public abstract void processTextReceived(int channel, @NotNull WordEvent[] words);
+
+    public abstract void processEndOfSentence(int channel);
+
+    public abstract void processKeyword(int channel, @NotNull WordEvent keyword);
 
     public abstract void processError(@NotNull String text);
 
     public abstract void processReset();
-
 }
@@ -5,21 +5,24 @@ import static java.lang.Integer.min;
 import org.jetbrains.annotations.NotNull;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 import java.util.stream.Stream;
 
-import kotlin.Pair;
-
 /**
  * Receive a text, debounce it and issue individual words to the next stage.
  */
 public class WordReceiverDebouncer extends WordReceiver {
 
-    // Keep the previous words. Should only be used inside the thread.
-    private List<Pair<String, Boolean>> previousWordsAndEmitted = new ArrayList<>();
+    // Keep the previous words of each channel. Should only be used inside the thread.
+    private final Map<Integer, List<DebouncedWord>> previousWordsByChannel = new HashMap<>();
+
+    // The events for the next stage, sent at once at the end of each batch. Should only be used inside the thread.
+    private final WordEventBatch output = new WordEventBatch();
 
     public WordReceiverDebouncer(@NotNull final WordReceiver nextStage) {
         super(nextStage);
@@ -32,28 +35,40 @@ public class WordReceiverDebouncer extends WordReceiver {
     /*                                                            */
     /* ---------------------------------------------------------- */
 
-    public void processTextReceived(@NotNull String text) {
-        processNewPartialResult(text);
+    public void processTextReceived(final int channel, @NotNull WordEvent[] words) {
+        output.setCaptureTimeNanos(getCaptureTimeNanos());
+        processNewPartialResult(channel, words);
     }
 
-    public void processEndOfSentence() {
-        previousWordsAndEmitted.clear();
-        if (nextStage != null) {
-            nextStage.signalEndOfSentence();
-        }
+    public void processEndOfSentence(final int channel) {
+        output.setCaptureTimeNanos(getCaptureTimeNanos());
+        endSentence(channel);
+    }
+
+    public void processKeyword(final int channel, @NotNull WordEvent keyword) {
+        output.setCaptureTimeNanos(getCaptureTimeNanos());
+        output.addKeyword(channel, keyword);
     }
 
     public void processError(@NotNull String text) {
-        if (nextStage != null) {
-            nextStage.signalError(text);
-        }
+        output.setCaptureTimeNanos(getCaptureTimeNanos());
+        output.addError(text);
     }
 
     public void processReset() {
-        previousWordsAndEmitted.clear();
+        output.setCaptureTimeNanos(getCaptureTimeNanos());
+        resetChannels();
+    }
+
+    /**
+     * Give all the words emitted for a burst of partial results to the next stage at once.
+     */
+    @Override
+    protected void onBatchProcessed() {
         if (nextStage != null) {
-            nextStage.reset();
+            nextStage.putBatch(output);
         }
+        output.clear();
     }
 
     /* ---------------------------------------------------------- */
@@ -62,39 +77,57 @@ public class WordReceiverDebouncer extends WordReceiver {
     /*                                                            */
     /* ---------------------------------------------------------- */
 
-    private void processNewPartialResult(final @NotNull String newResult) {
-        final String[] updatedWords = newResult.split(" ");
+    private void endSentence(final int channel) {
+        // The last words may not have been seen twice, the end of the sentence confirms them
+        final List<DebouncedWord> previousWords = previousWordsByChannel.remove(channel);
+        if (previousWords != null) {
+            for (final DebouncedWord previousWord : previousWords) {
+                if (!previousWord.emitted) {
+                    output.addText(channel, previousWord.word);
+                }
+            }
+        }
 
-        final int similarSize = min(previousWordsAndEmitted.size(), updatedWords.length);
+        output.addEndOfSentence(channel);
+    }
+
+    private void resetChannels() {
+        previousWordsByChannel.clear();
+        output.addReset();
+    }
+
+    private void processNewPartialResult(final int channel, final @NotNull WordEvent[] updatedWords) {
+        final List<DebouncedWord> previousWords = previousWordsByChannel.getOrDefault(channel, new ArrayList<>());
+
+        final int similarSize = min(previousWords.size(), updatedWords.length);
 
         // Compute the common part of the new list
-        final List<Pair<String, Boolean>> updatedCommonItems = IntStream.range(0, similarSize)
+        final List<DebouncedWord> updatedCommonItems = IntStream.range(0, similarSize)
                 .mapToObj(i -> {
-                    final String previousWord = previousWordsAndEmitted.get(i).component1();
-                    final boolean isPreviousEmitted = previousWordsAndEmitted.get(i).component2();
-                    final String updatedWord = updatedWords[i];
+                    final DebouncedWord previousWord = previousWords.get(i);
+                    final WordEvent updatedWord = updatedWords[i];
 
                     // If the word was previously emitted, nothing to do.
-                    if (isPreviousEmitted) {
-                        return previousWordsAndEmitted.get(i);
+                    if (previousWord.emitted) {
+                        return previousWord;
                     } else {
-                        // The world was not emitted, second time seen, mark as emitted
-                        if (previousWord.equals(updatedWord)) {
-                            return new Pair<>(previousWord, true);
+                        // The world was not emitted, second time seen, mark as emitted with its latest timing
+                        if (previousWord.word.getWord().equals(updatedWord.getWord())) {
+                            return new DebouncedWord(updatedWord, true);
                         }
                         // Probably fixed by having more sound available, fix the current word
                         else {
-                            return new Pair<>(updatedWord, false);
+                            return new DebouncedWord(updatedWord, false);
                         }
                     }
                 })
                 .collect(Collectors.toList());
 
         // Find the word to emit
-        final List<String> toEmit = IntStream.range(0, similarSize)
+        final List<WordEvent> toEmit = IntStream.range(0, similarSize)
                 .mapToObj(i -> {
-                    if (previousWordsAndEmitted.get(i).component2() != updatedCommonItems.get(i).component2()) {
-                        return updatedCommonItems.get(i).component1();
+                    if (previousWords.get(i).emitted != updatedCommonItems.get(i).emitted) {
+                        return updatedCommonItems.get(i).word;
                     }
                     return null;
                 })
@@ -102,18 +135,29 @@ public class WordReceiverDebouncer extends WordReceiver {
                 .collect(Collectors.toList());
 
         // Items to add
-        final List<Pair<String, Boolean>> newItems = IntStream.range(similarSize, updatedWords.length)
-                .mapToObj(i -> new Pair<>(updatedWords[i], false))
+        final List<DebouncedWord> newItems = IntStream.range(similarSize, updatedWords.length)
+                .mapToObj(i -> new DebouncedWord(updatedWords[i], false))
                 .collect(Collectors.toList());
 
 
         // Make the new list
-        previousWordsAndEmitted = Stream.concat(updatedCommonItems.stream(), newItems.stream())
-                .collect(Collectors.toList());
+        previousWordsByChannel.put(channel, Stream.concat(updatedCommonItems.stream(), newItems.stream())
+                .collect(Collectors.toList()));
 
-        if (nextStage != null) {
-            // Emit the words
-            toEmit.forEach(nextStage::putText);
+        // Emit the words
+        toEmit.forEach(word -> output.addText(channel, word));
+    }
+
+    /**
+     * A word of the latest partial result, and if it was already given to the next stage.
+     */
+    private static final class DebouncedWord {
+        final WordEvent word;
+        final boolean emitted;
+
+        DebouncedWord(final @NotNull WordEvent word, final boolean emitted) {
+            this.word = word;
+            this.emitted = emitted;
         }
     }
 }
@@ -0,0 +1,355 @@
+package com.ctminsights.streamshield.util;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The instrumentation of a {@link WordReceiver} stage: the events put and processed, the events waiting, the time
+ * spent processing them and the delay since the capture of their audio.
+ * <p>
+ * The times go into histograms with fixed buckets of powers of two microseconds, so that recording is a few increments,
+ * without allocation nor lock. The events put are counted by the producers, everything else is recorded by the single
+ * thread processing the stage at a time. A {@link Snapshot} copies the values for reading them.
+ */
+public final class WordReceiverMetrics {
+
+    // Number of buckets of the histograms: the bucket 0 holds the times below 1 us, the bucket i the times from
+    // 2^(i-1) to 2^i us, and the last one the times above
+    public static final int HISTOGRAM_BUCKETS = 32;
+
+    private final String stageName;
+
+    // Updated by the producers
+    private final AtomicLong eventsIn = new AtomicLong();
+
+    // Updated by the thread processing the stage
+    private final AtomicLong eventsOut = new AtomicLong();
+    private volatile int peakQueueDepth = 0;
+    private final HistogramRecorder serviceTime = new HistogramRecorder();
+    private final HistogramRecorder captureDelay = new HistogramRecorder();
+
+    WordReceiverMetrics(final @NotNull String stageName) {
+        this.stageName = stageName;
+    }
+
+    public @NotNull String getStageName() {
+        return stageName;
+    }
+
+    /**
+     * Write the snapshots of a stage and of all its next stages into a text file, replacing it.
+     *
+     * @param file       the file.
+     * @param firstStage the first stage of the chain.
+     * @throws IOException if the file cannot be written.
+     */
+    public static void dump(final @NotNull File file, final @NotNull WordReceiver firstStage) throws IOException {
+        try (final PrintWriter writer = new PrintWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8))) {
+            for (WordReceiver stage = firstStage; stage != null; stage = stage.nextStage) {
+                final Snapshot snapshot = stage.getMetrics();
+                if (snapshot != null) {
+                    writer.println(snapshot);
+                }
+            }
+
+            if (writer.checkError()) {
+                throw new IOException("Unable to write the metrics into " + file);
+            }
+        }
+    }
+
+    /* ---------------------------------------------------------- */
+    /*                                                            */
+    /*                INTERNAL FUNCTIONS                          */
+    /*                                                            */
+    /* ---------------------------------------------------------- */
+
+    void recordPut(final int count) {
+        eventsIn.addAndGet(count);
+    }
+
+    /**
+     * Record the events taken by the stage.
+     *
+     * @param batch      the events taken.
+     * @param queueDepth the number of events waiting before they were taken.
+     * @param nowNanos   the time they were taken, from {@link System#nanoTime()}.
+     */
+    void recordTaken(final @NotNull WordEventBatch batch, final int queueDepth, final long nowNanos) {
+        if (queueDepth > peakQueueDepth) {
+            peakQueueDepth = queueDepth;
+        }
+
+        for (int i = 0; i < batch.size(); i++) {
+            final long captureTime = batch.getCaptureTimeNanos(i);
+            if (captureTime != WordReceiver.UNKNOWN_CAPTURE_TIME) {
+                captureDelay.record(nowNanos - captureTime, 1);
+            }
+        }
+    }
+
+    /**
+     * Record the processing of events taken at once.
+     *
+     * @param elapsedNanos the time spent processing all of them.
+     * @param count        the number of events.
+     */
+    void recordProcessed(final long elapsedNanos, final int count) {
+        eventsOut.addAndGet(count);
+        serviceTime.record(elapsedNanos / count, count);
+    }
+
+    @NotNull Snapshot snapshot(final int queueDepth, final long droppedEvents, final long coalescedEvents, final long spilledEvents) {
+        return new Snapshot(
+                stageName,
+                eventsIn.get(),
+                eventsOut.get(),
+                droppedEvents,
+                coalescedEvents,
+                spilledEvents,
+                queueDepth,
+                peakQueueDepth,
+                serviceTime.snapshot(),
+                captureDelay.snapshot()
+        );
+    }
+
+    private static int getBucket(final long micros) {
+        return Math.min(HISTOGRAM_BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+    }
+
+    /**
+     * A histogram being recorded, by a single thread at a time.
+     */
+    private static final class HistogramRecorder {
+        private final AtomicLongArray counts = new AtomicLongArray(HISTOGRAM_BUCKETS);
+        private final AtomicLong sumMicros = new AtomicLong();
+        private volatile long maxMicros = 0;
+
+        void record(final long nanos, final int count) {
+            final long micros = Math.max(0, nanos / 1000);
+
+            // A single writer, the increments do not need to be atomic
+            final int bucket = getBucket(micros);
+            counts.lazySet(bucket, counts.get(bucket) + count);
+            sumMicros.lazySet(sumMicros.get() + micros * count);
+            if (micros > maxMicros) {
+                maxMicros = micros;
+            }
+        }
+
+        @NotNull Histogram snapshot() {
+            final long[] bucketCounts = new long[HISTOGRAM_BUCKETS];
+            for (int i = 0; i < HISTOGRAM_BUCKETS; i++) {
+                bucketCounts[i] = counts.get(i);
+            }
+            return new Histogram(bucketCounts, sumMicros.get(), maxMicros);
+        }
+    }
+
+    /**
+     * The values of a histogram of times, in microseconds.
+     */
+    public static final class Histogram {
+        private final long[] bucketCounts;
+        private final long count;
+        private final long sumMicros;
+        private final long maxMicros;
+
+        private Histogram(final @NotNull long[] bucketCounts, final long sumMicros, final long maxMicros) {
+            long total = 0;
+            for (final long bucketCount : bucketCounts) {
+                total += bucketCount;
+            }
+
+            this.bucketCounts = bucketCounts;
+            this.count = total;
+            this.sumMicros = sumMicros;
+            this.maxMicros = maxMicros;
+        }
+
+        /**
+         * Get the highest time of a bucket.
+         *
+         * @param bucket the bucket, from 0 to {@link #HISTOGRAM_BUCKETS} - 1.
+         * @return the time, in microseconds, excluded, or {@link Long#MAX_VALUE} for the last bucket.
+         */
+        public static long getBucketUpperBoundMicros(final int bucket) {
+            checkBucket(bucket);
+            return bucket == HISTOGRAM_BUCKETS - 1 ? Long.MAX_VALUE : 1L << bucket;
+        }
+
+        public long getBucketCount(final int bucket) {
+            checkBucket(bucket);
+            return bucketCounts[bucket];
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getMeanMicros() {
+            return count == 0 ? 0 : sumMicros / count;
+        }
+
+        public long getMaxMicros() {
+            return maxMicros;
+        }
+
+        /**
+         * Get an upper bound of a percentile: the highest time of the bucket holding it, or the maximum if lower.
+         *
+         * @param percentile the percentile, from 0 to 100.
+         * @return the time, in microseconds, 0 if nothing has been recorded.
+         */
+        public long getPercentileMicros(final double percentile) {
+            if (percentile < 0 || percentile > 100) {
+                final String msg = String.format(Locale.getDefault(), "Invalid percentile: %f", percentile);
+                throw new IllegalArgumentException(msg);
+            }
+
+            final long rank = (long) Math.ceil(count * percentile / 100);
+            long cumulated = 0;
+            for (int i = 0; i < HISTOGRAM_BUCKETS; i++) {
+                cumulated += bucketCounts[i];
+                if (cumulated >= rank && cumulated > 0) {
+                    return Math.min(maxMicros, getBucketUpperBoundMicros(i));
+                }
+            }
+            return 0;
+        }
+
+        @Override
+        public @NotNull String toString() {
+            return String.format(Locale.getDefault(), "count %d, mean %d us, p50 %d us, p90 %d us, p99 %d us, max %d us",
+                    count, getMeanMicros(), getPercentileMicros(50), getPercentileMicros(90), getPercentileMicros(99), maxMicros);
+        }
+
+        private static void checkBucket(final int bucket) {
+            if (bucket < 0 || bucket >= HISTOGRAM_BUCKETS) {
+                final String msg = String.format(Locale.getDefault(), "Invalid histogram bucket: %d", bucket);
+                throw new IndexOutOfBoundsException(msg);
+            }
+        }
+    }
+
+    /**
+     * The values of the metrics of a stage at a given time.
+     */
+    public static final class Snapshot {
+        private final String stageName;
+        private final long eventsIn;
+        private final long eventsOut;
+        private final long droppedEvents;
+        private final long coalescedEvents;
+        private final long spilledEvents;
+        private final int queueDepth;
+        private final int peakQueueDepth;
+        private final Histogram serviceTime;
+        private final Histogram captureDelay;
+
+        private Snapshot(
+                final @NotNull String stageName,
+                final long eventsIn,
+                final long eventsOut,
+                final long droppedEvents,
+                final long coalescedEvents,
+                final long spilledEvents,
+                final int queueDepth,
+                final int peakQueueDepth,
+                final @NotNull Histogram serviceTime,
+                final @NotNull Histogram captureDelay
+        ) {
+            this.stageName = stageName;
+            this.eventsIn = eventsIn;
+            this.eventsOut = eventsOut;
+            this.droppedEvents = droppedEvents;
+            this.coalescedEvents = coalescedEvents;
+            this.spilledEvents = spilledEvents;
+            this.queueDepth = queueDepth;
+            this.peakQueueDepth = peakQueueDepth;
+            this.serviceTime = serviceTime;
+            this.captureDelay = captureDelay;
+        }
+
+        public @NotNull String getStageName() {
+            return stageName;
+        }
+
+        /**
+         * Get the number of events put into the stage, including the ones dropped afterwards.
+         *
+         * @return the number of events.
+         */
+        public long getEventsIn() {
+            return eventsIn;
+        }
+
+        /**
+         * Get the number of events processed by the stage, without the texts replaced by a newer one.
+         *
+         * @return the number of events.
+         */
+        public long getEventsOut() {
+            return eventsOut;
+        }
+
+        public long getDroppedEvents() {
+            return droppedEvents;
+        }
+
+        public long getCoalescedEvents() {
+            return coalescedEvents;
+        }
+
+        public long getSpilledEvents() {
+            return spilledEvents;
+        }
+
+        public int getQueueDepth() {
+            return queueDepth;
+        }
+
+        /**
+         * Get the highest number of events waiting when the stage took them.
+         *
+         * @return the number of events.
+         */
+        public int getPeakQueueDepth() {
+            return peakQueueDepth;
+        }
+
+        /**
+         * Get the time spent processing each event.
+         *
+         * @return the histogram.
+         */
+        public @NotNull Histogram getServiceTime() {
+            return serviceTime;
+        }
+
+        /**
+         * Get the delay between the capture of the audio of each event and the time the stage took it.
+         *
+         * @return the histogram.
+         */
+        public @NotNull Histogram getCaptureDelay() {
+            return captureDelay;
+        }
+
+        @Override
+        public @NotNull String toString() {
+            return String.format(Locale.getDefault(), "%s: %d in, %d out, %d dropped, %d coalesced, %d spilled, queue depth %d (peak %d)%n  service time: %s%n  capture delay: %s",
+                    stageName, eventsIn, eventsOut, droppedEvents, coalescedEvents, spilledEvents, queueDepth, peakQueueDepth, serviceTime, captureDelay);
+        }
+    }
+}
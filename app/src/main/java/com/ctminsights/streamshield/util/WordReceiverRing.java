@@ -0,0 +1,517 @@
+package com.ctminsights.streamshield.util;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Locale;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Fixed capacity ring of events between any number of producers and a single consumer, for the {@link WordReceiver}
+ * stages. The slots are allocated once: an event is an int type, an int channel, a reference payload and the capture
+ * time of its audio written in place, so putting an event allocates nothing.
+ * <p>
+ * The producers claim a sequence, write their slot, then publish it by storing the sequence in the slot. The consumer
+ * takes the slots in sequence order, once published, so a slow producer delays the events after its own but never
+ * lets them be read before it. The consumer waits for the events according to a {@link WordReceiver.WaitStrategy}:
+ * when parked, it publishes its thread before checking a last time, and the producers unpark it after each publication,
+ * so no wake-up can be lost.
+ * <p>
+ * Only the texts go through the slots, and the {@link WordReceiver.OverflowPolicy} defines what happens to them when
+ * the ring is full. The other events go through an unbounded control lane, so that they are never dropped nor
+ * blocked. A control event records the claim sequence when it is put: an end of sentence or a keyword is taken once
+ * the texts put before it are taken, so that it keeps its place among them, while a reset or an error is taken at
+ * once, ahead of the texts waiting. The texts put before a reset are dropped, they belong to the stream being reset.
+ * <p>
+ * A producer that must not wait for the consumer, because the consumer may need its thread, spills the texts that do
+ * not fit into the control lane instead. They keep their place among the other texts, and are taken as any text.
+ */
+final class WordReceiverRing {
+
+    /**
+     * Tell the producers whether the consumer still takes the events, and whether they can wait for it.
+     */
+    interface ConsumerState {
+
+        boolean isActive();
+
+        /**
+         * Check if the calling producer can wait for the consumer to free a slot.
+         *
+         * @return false if the consumer may need the thread of the producer, for example when both run on the same
+         * scheduler thread.
+         */
+        boolean canWait();
+    }
+
+    // The results of a claim failing because the ring is full
+    private static final long CLAIM_DROPPED = -1;
+    private static final long CLAIM_SPILLED = -2;
+
+    // Time a producer is parked while the ring is full, the consumer does not wake the producers up
+    private static final long FULL_WAIT_NANOS = 50_000;
+
+    // The slots, their number is a power of two so that positions can be computed with a mask
+    private final int[] types;
+    private final int[] channels;
+    private final Object[] payloads;
+    private final long[] captureTimes;
+    private final int mask;
+
+    // The sequence of the event in each slot, set when the event is published
+    private final AtomicLongArray publishedSequences;
+
+    // The next sequence to claim by the producers, and the next sequence to take by the consumer. They are never
+    // reset, the slot of a sequence is (sequence & mask). With DROP_OLDEST_TEXT, the producers move the read sequence
+    // too, so the consumer only moves it with a compare and set.
+    private final AtomicLong claimSequence = new AtomicLong(0);
+    private final AtomicLong readSequence = new AtomicLong(0);
+
+    private final WordReceiver.OverflowPolicy overflowPolicy;
+
+    // The events other than the texts, in the order they were put, and their number, as the size of the queue is not
+    // known without going through it
+    private final Queue<ControlEvent> controlEvents = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger controlEventCount = new AtomicInteger(0);
+
+    // The consumer parked while waiting for an event
+    private volatile Thread waitingConsumer = null;
+
+    // Incremented for waking the consumer up without an event
+    private volatile int wakeUpCount = 0;
+
+    // The statistics, shared with the rings replacing this one
+    private final AtomicLong droppedEvents;
+    private final AtomicLong coalescedEvents;
+    private final AtomicLong spilledEvents;
+
+    /**
+     * Create a ring.
+     *
+     * @param capacity        the minimal number of texts waiting. It is rounded up to the next power of two.
+     * @param overflowPolicy  what is done with the texts when the ring is full.
+     * @param droppedEvents   the counter of the events dropped.
+     * @param coalescedEvents the counter of the texts replaced by a newer one.
+     * @param spilledEvents   the counter of the texts put into the control lane, the ring being full.
+     */
+    WordReceiverRing(
+            final int capacity,
+            final @NotNull WordReceiver.OverflowPolicy overflowPolicy,
+            final @NotNull AtomicLong droppedEvents,
+            final @NotNull AtomicLong coalescedEvents,
+            final @NotNull AtomicLong spilledEvents
+    ) {
+        if (capacity <= 0) {
+            final String msg = String.format(Locale.getDefault(), "Invalid event ring capacity: %d", capacity);
+            throw new IllegalArgumentException(msg);
+        }
+
+        final int size = Integer.highestOneBit(capacity) == capacity ? capacity : Integer.highestOneBit(capacity) << 1;
+
+        this.types = new int[size];
+        this.channels = new int[size];
+        this.payloads = new Object[size];
+        this.captureTimes = new long[size];
+        this.mask = size - 1;
+        this.overflowPolicy = overflowPolicy;
+        this.droppedEvents = droppedEvents;
+        this.coalescedEvents = coalescedEvents;
+        this.spilledEvents = spilledEvents;
+
+        // No slot is published at first: the sequence of the slot i is i, so -1 is never one of them
+        this.publishedSequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            publishedSequences.set(i, -1);
+        }
+    }
+
+    int getCapacity() {
+        return types.length;
+    }
+
+    @NotNull WordReceiver.OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    /**
+     * Get the number of events put and not taken yet.
+     *
+     * @return the number of events waiting.
+     */
+    int size() {
+        final int texts = (int) Math.max(0, Math.min(types.length, claimSequence.get() - readSequence.get()));
+        return texts + controlEventCount.get();
+    }
+
+    /**
+     * Put an event. A text waits for a free slot while the ring is full and the consumer is running, or replaces the
+     * oldest text with DROP_OLDEST_TEXT, or is spilled if the producer cannot wait. The other events are never
+     * dropped.
+     *
+     * @param type           the type of the event.
+     * @param channel        the channel of the event.
+     * @param payload        the payload of the event.
+     * @param captureTime    the capture time of the audio of the event, from {@link System#nanoTime()}, or
+     *                       {@link WordReceiver#UNKNOWN_CAPTURE_TIME}.
+     * @param consumerActive tells whether the consumer still takes events.
+     * @return false if the event has been dropped, because the ring is full and the consumer is not running.
+     */
+    boolean put(final int type, final int channel, final @Nullable Object payload, final long captureTime, final @NotNull ConsumerState consumerActive) {
+        if (type != WordEventBatch.TEXT) {
+            putControl(type, channel, payload, captureTime);
+            return true;
+        }
+
+        final long sequence = claim(1, consumerActive);
+        if (sequence == CLAIM_DROPPED) {
+            droppedEvents.incrementAndGet();
+            return false;
+        }
+        if (sequence == CLAIM_SPILLED) {
+            spilledEvents.incrementAndGet();
+            putControl(type, channel, payload, captureTime);
+            return true;
+        }
+
+        write(sequence, type, channel, payload, captureTime);
+        unparkConsumer();
+        return true;
+    }
+
+    /**
+     * Put the events of a batch. The slots of consecutive texts are claimed at once, and the consumer is woken up once
+     * per claim.
+     *
+     * @param batch          the events, copied into the ring.
+     * @param consumerActive tells whether the consumer still takes events.
+     * @return the number of events put. The others are dropped, because the ring is full and the consumer is not
+     * running.
+     */
+    int putAll(final @NotNull WordEventBatch batch, final @NotNull ConsumerState consumerActive) {
+        final int total = batch.size();
+        int put = 0;
+        int position = 0;
+
+        while (position < total) {
+            if (batch.getType(position) != WordEventBatch.TEXT) {
+                putControl(batch.getType(position), batch.getChannel(position), batch.getPayload(position), batch.getCaptureTimeNanos(position));
+                position++;
+                put++;
+                continue;
+            }
+
+            // The consecutive texts, within the capacity
+            int end = position + 1;
+            while (end < total && end - position < types.length && batch.getType(end) == WordEventBatch.TEXT) {
+                end++;
+            }
+            final int count = end - position;
+
+            final long sequence = claim(count, consumerActive);
+            if (sequence == CLAIM_DROPPED) {
+                droppedEvents.addAndGet(count);
+            } else if (sequence == CLAIM_SPILLED) {
+                spilledEvents.addAndGet(count);
+                for (int i = position; i < end; i++) {
+                    putControl(WordEventBatch.TEXT, batch.getChannel(i), batch.getPayload(i), batch.getCaptureTimeNanos(i));
+                }
+                put += count;
+            } else {
+                for (int i = 0; i < count; i++) {
+                    write(sequence + i, WordEventBatch.TEXT, batch.getChannel(position + i), batch.getPayload(position + i), batch.getCaptureTimeNanos(position + i));
+                }
+                unparkConsumer();
+                put += count;
+            }
+            position = end;
+        }
+
+        return put;
+    }
+
+    /**
+     * Check if an event can be taken.
+     *
+     * @return true if the consumer can take an event.
+     */
+    boolean hasEvent() {
+        if (!controlEvents.isEmpty()) {
+            return true;
+        }
+
+        final long sequence = readSequence.get();
+        return publishedSequences.get((int) (sequence & mask)) == sequence;
+    }
+
+    /**
+     * Take the events, in order. With COALESCE_TEXT, the texts of a channel waiting are replaced by the latest one.
+     * Only called by the consumer.
+     *
+     * @param batch     the batch receiving the events, added after the ones it already has.
+     * @param maxEvents the maximum number of events to take.
+     * @return the number of events taken, 0 if there is none.
+     */
+    int takeAll(final @NotNull WordEventBatch batch, final int maxEvents) {
+        int taken = 0;
+
+        while (taken < maxEvents) {
+            final ControlEvent control = controlEvents.peek();
+            final long read = readSequence.get();
+
+            // A reset or an error goes ahead of the texts, the other events wait for the texts put before them
+            if (control != null && (control.isUrgent() || control.barrier <= read)) {
+                controlEvents.poll();
+                controlEventCount.decrementAndGet();
+                if (control.type == WordEventBatch.RESET) {
+                    skipTextsBefore(control.barrier);
+                }
+
+                // A spilled text replaces the previous ones as the texts of the slots
+                if (control.type == WordEventBatch.TEXT
+                        && overflowPolicy == WordReceiver.OverflowPolicy.COALESCE_TEXT
+                        && batch.coalesceText(control.channel, (WordEvent[]) control.payload)) {
+                    coalescedEvents.incrementAndGet();
+                } else {
+                    batch.add(control.type, control.channel, control.payload, control.captureTime);
+                }
+                taken++;
+                continue;
+            }
+
+            final long limit = control == null ? Long.MAX_VALUE : control.barrier;
+            final int texts = takeTexts(batch, (int) Math.min(maxEvents - taken, limit - read));
+            if (texts == 0) {
+                break;
+            }
+            taken += texts;
+        }
+
+        return taken;
+    }
+
+    /**
+     * Drop the events put. Only called by the consumer, or when there is no consumer.
+     */
+    void clear() {
+        ControlEvent control;
+        while ((control = controlEvents.poll()) != null) {
+            controlEventCount.decrementAndGet();
+        }
+        skipTextsBefore(Long.MAX_VALUE);
+    }
+
+    /**
+     * Wait until an event is put, or until {@link #wakeUp()} is called. Only called by the consumer.
+     *
+     * @param strategy how to wait.
+     */
+    void awaitEvent(final @NotNull WordReceiver.WaitStrategy strategy) {
+        final int wakeUps = wakeUpCount;
+
+        while (!hasEvent() && wakeUpCount == wakeUps) {
+            switch (strategy) {
+                case SPIN: {
+                    break;
+                }
+                case YIELD: {
+                    Thread.yield();
+                    break;
+                }
+                case PARK: {
+                    waitingConsumer = Thread.currentThread();
+
+                    // Check again after having published the waiting thread, so that no wake-up can be lost
+                    if (!hasEvent() && wakeUpCount == wakeUps) {
+                        LockSupport.park(this);
+                    }
+
+                    waitingConsumer = null;
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Release the consumer waiting in {@link #awaitEvent(WordReceiver.WaitStrategy)}, for example for stopping it.
+     */
+    void wakeUp() {
+        wakeUpCount++;
+        unparkConsumer();
+    }
+
+    /* ---------------------------------------------------------- */
+    /*                                                            */
+    /*                INTERNAL FUNCTIONS                          */
+    /*                                                            */
+    /* ---------------------------------------------------------- */
+
+    private void putControl(final int type, final int channel, final @Nullable Object payload, final long captureTime) {
+        controlEventCount.incrementAndGet();
+        controlEvents.add(new ControlEvent(type, channel, payload, captureTime, claimSequence.get()));
+        unparkConsumer();
+    }
+
+    /**
+     * Claim consecutive slots, waiting or dropping the oldest texts while the ring is full.
+     *
+     * @param count the number of slots, at most the capacity.
+     * @return the first sequence claimed, {@link #CLAIM_DROPPED} if the ring is full and the consumer is not running,
+     * or {@link #CLAIM_SPILLED} if the ring is full and the producer cannot wait.
+     */
+    private long claim(final int count, final @NotNull ConsumerState consumerActive) {
+        while (true) {
+            final long sequence = claimSequence.get();
+            final long read = readSequence.get();
+
+            if (sequence + count - read > types.length) {
+                // Make room by dropping the oldest text, once published
+                if (overflowPolicy == WordReceiver.OverflowPolicy.DROP_OLDEST_TEXT && dropOldestText(read)) {
+                    continue;
+                }
+
+                // Full: wait for the consumer, unless it is not there to free a slot or needs this thread for it
+                if (!consumerActive.isActive()) {
+                    return CLAIM_DROPPED;
+                }
+                if (!consumerActive.canWait()) {
+                    return CLAIM_SPILLED;
+                }
+                LockSupport.parkNanos(this, FULL_WAIT_NANOS);
+                continue;
+            }
+
+            if (claimSequence.compareAndSet(sequence, sequence + count)) {
+                return sequence;
+            }
+        }
+    }
+
+    private boolean dropOldestText(final long read) {
+        if (publishedSequences.get((int) (read & mask)) != read) {
+            return false;
+        }
+
+        if (readSequence.compareAndSet(read, read + 1)) {
+            droppedEvents.incrementAndGet();
+        }
+        return true;
+    }
+
+    private void write(final long sequence, final int type, final int channel, final @Nullable Object payload, final long captureTime) {
+        final int index = (int) (sequence & mask);
+        types[index] = type;
+        channels[index] = channel;
+        payloads[index] = payload;
+        captureTimes[index] = captureTime;
+
+        // The volatile store publishes the slot, and orders it before the check of the consumer
+        publishedSequences.set(index, sequence);
+    }
+
+    /**
+     * Take the texts published, in order.
+     *
+     * @return the number of texts taken.
+     */
+    private int takeTexts(final @NotNull WordEventBatch batch, final int maxTexts) {
+        final boolean coalesce = overflowPolicy == WordReceiver.OverflowPolicy.COALESCE_TEXT;
+        final boolean dropping = overflowPolicy == WordReceiver.OverflowPolicy.DROP_OLDEST_TEXT;
+
+        while (true) {
+            final long read = readSequence.get();
+            final int batchSize = batch.size();
+            int taken = 0;
+
+            while (taken < maxTexts) {
+                final long sequence = read + taken;
+                final int index = (int) (sequence & mask);
+                if (publishedSequences.get(index) != sequence) {
+                    break;
+                }
+
+                final WordEvent[] words = (WordEvent[]) payloads[index];
+                if (coalesce && batch.coalesceText(channels[index], words)) {
+                    coalescedEvents.incrementAndGet();
+                } else {
+                    batch.add(WordEventBatch.TEXT, channels[index], words, captureTimes[index]);
+                }
+
+                // When the producers drop texts, the slot may already be written again, so its payload is left for
+                // the next writer
+                if (!dropping) {
+                    payloads[index] = null;
+                }
+                taken++;
+            }
+
+            if (taken == 0) {
+                return 0;
+            }
+
+            if (!dropping) {
+                readSequence.set(read + taken);
+                return taken;
+            }
+
+            // A producer dropped some of these texts while they were copied, take them again from the new position
+            if (readSequence.compareAndSet(read, read + taken)) {
+                return taken;
+            }
+            batch.truncate(batchSize);
+        }
+    }
+
+    /**
+     * Drop the texts published before a sequence. The texts claimed but not published yet are kept, their slots cannot
+     * be given to another producer before they are written.
+     */
+    private void skipTextsBefore(final long barrier) {
+        while (true) {
+            final long read = readSequence.get();
+            final int index = (int) (read & mask);
+            if (read >= barrier || publishedSequences.get(index) != read) {
+                return;
+            }
+
+            if (readSequence.compareAndSet(read, read + 1) && overflowPolicy != WordReceiver.OverflowPolicy.DROP_OLDEST_TEXT) {
+                payloads[index] = null;
+            }
+        }
+    }
+
+    private void unparkConsumer() {
+        final Thread consumer = waitingConsumer;
+        if (consumer != null) {
+            LockSupport.unpark(consumer);
+        }
+    }
+
+    /**
+     * An event other than a text, and the claim sequence when it was put.
+     */
+    private static final class ControlEvent {
+        final int type;
+        final int channel;
+        final Object payload;
+        final long captureTime;
+        final long barrier;
+
+        ControlEvent(final int type, final int channel, final @Nullable Object payload, final long captureTime, final long barrier) {
+            this.type = type;
+            this.channel = channel;
+            this.payload = payload;
+            this.captureTime = captureTime;
+            this.barrier = barrier;
+        }
+
+        boolean isUrgent() {
+            return type == WordEventBatch.RESET || type == WordEventBatch.ERROR;
+        }
+    }
+}
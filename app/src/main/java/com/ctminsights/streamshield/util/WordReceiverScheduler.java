@@ -0,0 +1,172 @@
+package com.ctminsights.streamshield.util;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Locale;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Where the events of the {@link WordReceiver} stages are processed. By default, each stage has its own thread.
+ * Stages can instead share a scheduler: they then run as tasks on its threads, and a stage only takes a thread while it
+ * has events waiting. The events of a stage are always processed one at a time, in their arrival order, whatever the
+ * number of threads.
+ * <p>
+ * The threads of the schedulers have a priority below the normal one by default, so that the capture and the decoding
+ * are never starved by the stages.
+ */
+public final class WordReceiverScheduler {
+
+    /**
+     * How the events are processed.
+     */
+    public enum Mode {
+        /**
+         * Each stage has its own thread, waiting for its events.
+         */
+        DEDICATED,
+        /**
+         * The stages run on a pool of threads shared by all of them.
+         */
+        POOL,
+        /**
+         * The stages run on a single thread shared by all of them: the chain is processed as a whole, without a
+         * handoff between threads from one stage to the next.
+         */
+        SINGLE_THREAD,
+        /**
+         * The events are processed by the thread putting them, so a chain of stages runs synchronously in the
+         * recognizer thread. Events put while a stage is busy are processed by the thread already processing it.
+         */
+        CALLER
+    }
+
+    // Priority of the threads of the stages, below the capture and the decoding
+    public static final int DEFAULT_PRIORITY = Thread.NORM_PRIORITY - 1;
+
+    private static final WordReceiverScheduler DEDICATED = new WordReceiverScheduler(Mode.DEDICATED, DEFAULT_PRIORITY, null);
+    private static final WordReceiverScheduler CALLER = new WordReceiverScheduler(Mode.CALLER, Thread.NORM_PRIORITY, Runnable::run);
+
+    private final Mode mode;
+    private final int priority;
+
+    // The executor of the tasks, null for the dedicated threads
+    private final Executor executor;
+
+    private WordReceiverScheduler(final @NotNull Mode mode, final int priority, final @Nullable Executor executor) {
+        this.mode = mode;
+        this.priority = priority;
+        this.executor = executor;
+    }
+
+    /**
+     * Get the scheduler giving each stage its own thread, at the default priority.
+     *
+     * @return the scheduler.
+     */
+    public static @NotNull WordReceiverScheduler dedicated() {
+        return DEDICATED;
+    }
+
+    /**
+     * Get a scheduler giving each stage its own thread.
+     *
+     * @param priority the priority of the threads, between {@link Thread#MIN_PRIORITY} and {@link Thread#MAX_PRIORITY}.
+     * @return the scheduler.
+     */
+    public static @NotNull WordReceiverScheduler dedicated(final int priority) {
+        checkPriority(priority);
+        return new WordReceiverScheduler(Mode.DEDICATED, priority, null);
+    }
+
+    /**
+     * Create a scheduler running the stages on a pool of threads.
+     *
+     * @param threads  the number of threads of the pool.
+     * @param priority the priority of the threads, between {@link Thread#MIN_PRIORITY} and {@link Thread#MAX_PRIORITY}.
+     * @return the scheduler.
+     */
+    public static @NotNull WordReceiverScheduler pool(final int threads, final int priority) {
+        if (threads <= 0) {
+            final String msg = String.format(Locale.getDefault(), "Invalid number of threads: %d", threads);
+            throw new IllegalArgumentException(msg);
+        }
+        checkPriority(priority);
+
+        return new WordReceiverScheduler(Mode.POOL, priority, Executors.newFixedThreadPool(threads, createThreadFactory("WordReceiver Pool", priority)));
+    }
+
+    /**
+     * Create a scheduler running the stages on a single thread.
+     *
+     * @param priority the priority of the thread, between {@link Thread#MIN_PRIORITY} and {@link Thread#MAX_PRIORITY}.
+     * @return the scheduler.
+     */
+    public static @NotNull WordReceiverScheduler singleThread(final int priority) {
+        checkPriority(priority);
+
+        return new WordReceiverScheduler(Mode.SINGLE_THREAD, priority, Executors.newSingleThreadExecutor(createThreadFactory("WordReceiver Chain", priority)));
+    }
+
+    /**
+     * Get the scheduler processing the events in the thread putting them.
+     *
+     * @return the scheduler.
+     */
+    public static @NotNull WordReceiverScheduler caller() {
+        return CALLER;
+    }
+
+    public @NotNull Mode getMode() {
+        return mode;
+    }
+
+    public int getPriority() {
+        return priority;
+    }
+
+    /**
+     * Release the threads of a pool or of a single thread scheduler. The stages using it must be stopped first.
+     */
+    public void shutdown() {
+        if (executor instanceof ExecutorService) {
+            ((ExecutorService) executor).shutdown();
+        }
+    }
+
+    /**
+     * Get the executor of the tasks of the stages.
+     *
+     * @return the executor, or null if each stage has its own thread.
+     */
+    @Nullable Executor getExecutor() {
+        return executor;
+    }
+
+    /* ---------------------------------------------------------- */
+    /*                                                            */
+    /*                INTERNAL FUNCTIONS                          */
+    /*                                                            */
+    /* ---------------------------------------------------------- */
+
+    private static void checkPriority(final int priority) {
+        if (priority < Thread.MIN_PRIORITY || priority > Thread.MAX_PRIORITY) {
+            final String msg = String.format(Locale.getDefault(), "Invalid thread priority: %d", priority);
+            throw new IllegalArgumentException(msg);
+        }
+    }
+
+    private static @NotNull ThreadFactory createThreadFactory(final @NotNull String name, final int priority) {
+        final AtomicInteger threadCount = new AtomicInteger();
+        return runnable -> {
+            final Thread thread = new Thread(runnable, name + " " + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            thread.setPriority(priority);
+            return thread;
+        };
+    }
+}
@@ -6,13 +6,18 @@ import org.jetbrains.annotations.NotNull;
 
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 
 public class WordReceiverSigner extends WordReceiver {
 
-    // Keep the previous words. Should only be used inside the thread.
-    final private List<String> previousWords = new ArrayList<>();
+    // Keep the previous words of each channel. Should only be used inside the thread.
+    final private Map<Integer, List<WordEvent>> previousWordsByChannel = new HashMap<>();
+
+    // The events for the next stage, sent at once at the end of each batch. Should only be used inside the thread.
+    private final WordEventBatch output = new WordEventBatch();
 
     public WordReceiverSigner(@NotNull final WordReceiver nextStage) {
         super(nextStage);
@@ -25,27 +30,43 @@ public class WordReceiverSigner extends WordReceiver {
     /*                                                            */
     /* ---------------------------------------------------------- */
 
-    public void processTextReceived(@NotNull String text) {
-        processNewPartialResult(text);
+    public void processTextReceived(final int channel, @NotNull WordEvent[] words) {
+        output.setCaptureTimeNanos(getCaptureTimeNanos());
+        for (final WordEvent word : words) {
+            processNewPartialResult(channel, word);
+        }
     }
 
-    public void processEndOfSentence() {
-        if (nextStage != null) {
-            nextStage.signalEndOfSentence();
-        }
+    public void processEndOfSentence(final int channel) {
+        output.setCaptureTimeNanos(getCaptureTimeNanos());
+        output.addEndOfSentence(channel);
+    }
+
+    public void processKeyword(final int channel, @NotNull WordEvent keyword) {
+        output.setCaptureTimeNanos(getCaptureTimeNanos());
+        output.addKeyword(channel, keyword);
     }
 
     public void processError(@NotNull String text) {
-        if (nextStage != null) {
-            nextStage.signalError(text);
-        }
+        output.setCaptureTimeNanos(getCaptureTimeNanos());
+        output.addError(text);
     }
 
     public void processReset() {
-        previousWords.clear();
+        output.setCaptureTimeNanos(getCaptureTimeNanos());
+        previousWordsByChannel.clear();
+        output.addReset();
+    }
+
+    /**
+     * Give all the signatures of a burst of words to the next stage at once.
+     */
+    @Override
+    protected void onBatchProcessed() {
         if (nextStage != null) {
-            nextStage.reset();
+            nextStage.putBatch(output);
         }
+        output.clear();
     }
 
     /* ---------------------------------------------------------- */
@@ -54,7 +75,8 @@ public class WordReceiverSigner extends WordReceiver {
     /*                                                            */
     /* ---------------------------------------------------------- */
 
-    private void processNewPartialResult(final @NotNull String word) {
+    private void processNewPartialResult(final int channel, final @NotNull WordEvent word) {
+        final List<WordEvent> previousWords = previousWordsByChannel.computeIfAbsent(channel, key -> new ArrayList<>());
 
         previousWords.add(word);
 
@@ -63,22 +85,27 @@ public class WordReceiverSigner extends WordReceiver {
         }
 
         // Get the last 3 words
-        final String word1 = previousWords.get(4);
-        final String word2 = previousWords.get(5);
-        final String word3 = previousWords.get(6);
+        final WordEvent word1 = previousWords.get(4);
+        final WordEvent word2 = previousWords.get(5);
+        final WordEvent word3 = previousWords.get(6);
 
         // Prepare for new words
         previousWords.clear();
 
         // Emit the hash
-        final String toHash = String.format("%s %s %s", word1, word2, word3);
+        final String toHash = String.format("%s %s %s", word1.getWord(), word2.getWord(), word3.getWord());
         final long hash = XxHash64.hashForArray(toHash.getBytes(StandardCharsets.UTF_8));
 
         // TODO send the hash somewhere
 
         if (nextStage != null) {
-            final String output = String.format(Locale.getDefault(), "%s: %X", toHash, hash);
-            nextStage.putText(output);
+            final String signature = String.format(Locale.getDefault(), "%s: %X", toHash, hash);
+
+            // The signature covers the audio of the 3 words, and is as reliable as the least reliable of them
+            final float confidence = word1.hasConfidence() && word2.hasConfidence() && word3.hasConfidence()
+                    ? Math.min(word1.getConfidence(), Math.min(word2.getConfidence(), word3.getConfidence()))
+                    : WordEvent.UNKNOWN_CONFIDENCE;
+            output.addText(channel, new WordEvent(signature, word1.getStartSample(), word3.getEndSample(), confidence));
         }
     }
 }
@@ -14,11 +14,15 @@ public class WordReceiverSink extends WordReceiver {
     /*                                                            */
     /* ---------------------------------------------------------- */
 
-    public void processTextReceived(@NotNull String text) {
+    public void processTextReceived(final int channel, @NotNull WordEvent[] words) {
         // Do nothing
     }
 
-    public void processEndOfSentence() {
+    public void processEndOfSentence(final int channel) {
+        // Do nothing
+    }
+
+    public void processKeyword(final int channel, @NotNull WordEvent keyword) {
         // Do nothing
     }
 
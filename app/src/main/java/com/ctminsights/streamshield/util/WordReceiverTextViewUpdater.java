@@ -13,6 +13,9 @@ public class WordReceiverTextViewUpdater extends WordReceiver {
 
     private final Handler outputUpdateHandler;
 
+    // The channel of the last text shown, the texts of another channel start on a new line
+    private int lastChannel = CHANNEL_DEFAULT;
+
     public WordReceiverTextViewUpdater(
             @NotNull final Handler outputUpdateHandler
     ) {
@@ -35,19 +38,32 @@ public class WordReceiverTextViewUpdater extends WordReceiver {
     /*                                                            */
     /* ---------------------------------------------------------- */
 
-    public void processTextReceived(@NotNull String text) {
-        appendToOutput("/" + text);
+    public void processTextReceived(final int channel, @NotNull WordEvent[] words) {
+        if (channel != lastChannel) {
+            lastChannel = channel;
+            appendAsLineToOutput("[" + channel + "] ");
+        }
+
+        appendToOutput("/" + WordEvent.toText(words));
 
         if (nextStage != null) {
-            nextStage.putText(text);
+            nextStage.putText(channel, getCaptureTimeNanos(), words);
         }
     }
 
-    public void processEndOfSentence() {
+    public void processEndOfSentence(final int channel) {
         appendAsLineToOutput("");
 
         if (nextStage != null) {
-            nextStage.signalEndOfSentence();
+            nextStage.signalEndOfSentence(channel, getCaptureTimeNanos());
+        }
+    }
+
+    public void processKeyword(final int channel, @NotNull WordEvent keyword) {
+        appendAsLineToOutput("[" + channel + "] Keyword: " + keyword.getWord());
+
+        if (nextStage != null) {
+            nextStage.putKeyword(channel, keyword, getCaptureTimeNanos());
         }
     }
 
@@ -61,6 +77,7 @@ public class WordReceiverTextViewUpdater extends WordReceiver {
     }
 
     public void processReset() {
+        lastChannel = CHANNEL_DEFAULT;
         clearOutput();
 
         if (nextStage != null) {
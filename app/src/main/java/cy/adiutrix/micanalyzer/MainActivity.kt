@@ -14,12 +14,20 @@ import android.widget.Toast
 import android.widget.Toast.LENGTH_LONG
 import androidx.appcompat.app.AppCompatActivity
 import androidx.core.app.ActivityCompat
+import com.ctminsights.streamshield.util.AudioBroadcastBuffer
+import com.ctminsights.streamshield.util.AudioPreprocessor
+import com.ctminsights.streamshield.util.BufferOverflowPolicy
+import com.ctminsights.streamshield.util.RecognitionSessionManager
 import com.ctminsights.streamshield.util.SpeechRecognizer
 import com.ctminsights.streamshield.util.TextViewUpdaterHandler
 import com.ctminsights.streamshield.util.WaveWriter
 import com.ctminsights.streamshield.util.WordReceiverDebouncer
+import com.ctminsights.streamshield.util.WordReceiverMetrics
+import com.ctminsights.streamshield.util.WordReceiverScheduler
 import com.ctminsights.streamshield.util.WordReceiverSigner
 import com.ctminsights.streamshield.util.WordReceiverTextViewUpdater
+import java.io.File
+import java.io.IOException
 import java.nio.ByteBuffer
 
 
@@ -34,17 +42,23 @@ class MainActivity : AppCompatActivity() {
         private const val RECORDER_AUDIO_ENCODING = AudioFormat.ENCODING_PCM_16BIT
         private const val BUFFER_DURATION_MS = 10
 
+        // Audio shared by all the consumers of the capture, about 6 seconds of 16 bits stereo audio at 44.1 kHz
+        private const val SHARED_BUFFER_CAPACITY = 1 shl 20
+
+        // Name of the recognition session of the call
+        private const val CALL_SESSION_NAME = "call"
+        private const val METRICS_FILE_NAME = "word_receiver_metrics.txt"
+
         private const val PERMISSION_START_RECORDING = 1000
     }
 
     private var recordingThread: Thread? = null
     private var isRecording = false
 
-    private lateinit var speechRecognizer: SpeechRecognizer
-    private lateinit var wordReceiverDebouncer: WordReceiverDebouncer
-    private lateinit var wordReceiverSigner: WordReceiverSigner
-    private lateinit var wordReceiverTextViewUpdater: WordReceiverTextViewUpdater
+    private lateinit var sessionManager: RecognitionSessionManager
+    private lateinit var callSession: RecognitionSessionManager.Session
     private lateinit var waveWriter: WaveWriter
+    private lateinit var audioBuffer: AudioBroadcastBuffer
 
     public override fun onCreate(savedInstanceState: Bundle?) {
         super.onCreate(savedInstanceState)
@@ -52,16 +66,31 @@ class MainActivity : AppCompatActivity() {
 
         val numberOfChannels = getNumberOfChannelsForEncoding(RECORDER_CHANNELS)
         val bitsPerSample = getBitsPerSampleForEncoding(RECORDER_AUDIO_ENCODING)
-        waveWriter = WaveWriter(this, RECORDER_SAMPLE_RATE, bitsPerSample, numberOfChannels)
+        val bytesPerFrame = numberOfChannels * bitsPerSample / 8
+        // A lagging recognition loses its oldest audio, while the wave writer registers a blocking cursor so that
+        // call.wav is complete
+        audioBuffer = AudioBroadcastBuffer(SHARED_BUFFER_CAPACITY, BufferOverflowPolicy.DROP_OLDEST, bytesPerFrame)
+
+        waveWriter = WaveWriter(this, audioBuffer, RECORDER_SAMPLE_RATE, bitsPerSample, numberOfChannels)
 
         val textView = findViewById<TextView>(R.id.textView)
         val textViewUpdaterHandler = TextViewUpdaterHandler.createTextViewHandler(textView)
-        wordReceiverTextViewUpdater = WordReceiverTextViewUpdater(textViewUpdaterHandler)
-
-        wordReceiverSigner = WordReceiverSigner(wordReceiverTextViewUpdater)
-        wordReceiverDebouncer = WordReceiverDebouncer(wordReceiverSigner)
-
-        speechRecognizer = SpeechRecognizer(this, wordReceiverDebouncer, RECORDER_SAMPLE_RATE, numberOfChannels)
+        val wordReceiverTextViewUpdater = WordReceiverTextViewUpdater(textViewUpdaterHandler)
+
+        val wordReceiverSigner = WordReceiverSigner(wordReceiverTextViewUpdater)
+        val wordReceiverDebouncer = WordReceiverDebouncer(wordReceiverSigner)
+        // The text stages share a single thread, below the capture and the decoding
+        wordReceiverDebouncer.setChainScheduler(WordReceiverScheduler.singleThread(WordReceiverScheduler.DEFAULT_PRIORITY))
+
+        sessionManager = RecognitionSessionManager(this)
+        callSession = sessionManager.openSession(CALL_SESSION_NAME, wordReceiverDebouncer, audioBuffer, RECORDER_SAMPLE_RATE, numberOfChannels)
+        // The two channels carry the two sides of the call, recognize them separately
+        callSession.recognizer.setChannelMode(SpeechRecognizer.ChannelMode.SPLIT)
+        // Phone audio: remove the hum and level the two sides
+        callSession.recognizer.setAudioPreprocessing(listOf(
+            AudioPreprocessor.highPass(100.0),
+            AudioPreprocessor.automaticGainControl(-20.0, 20.0)
+        ))
 
         setButtonHandlers()
         enableButtons(false)
@@ -155,13 +184,12 @@ class MainActivity : AppCompatActivity() {
         buffer: ByteBuffer,
     ) {
         val expectedSize = buffer.capacity()
-        val tmpBuffer = ByteArray(expectedSize)
 
-        wordReceiverTextViewUpdater.start()
-        wordReceiverSigner.start()
-        wordReceiverDebouncer.start()
+        // Start a new stream for all the consumers
+        audioBuffer.restart()
+
         waveWriter.start()
-        speechRecognizer.start()
+        callSession.start()
 
         recorder.startRecording()
 
@@ -169,14 +197,8 @@ class MainActivity : AppCompatActivity() {
             val bytesRead = recorder.read(buffer, expectedSize)
 
             if (bytesRead == expectedSize) {
-                // Grab a copy of the data without altering the buffer
-                buffer.mark()
-                buffer.get(tmpBuffer)
-                buffer.reset()
-
-                // Process the copied data
-                waveWriter.addBytes(tmpBuffer)
-                speechRecognizer.addBytes(tmpBuffer)
+                // Share the data with all the consumers, without altering the buffer
+                audioBuffer.write(buffer, expectedSize)
 
                 // Simply consume the buffer in a similar way of sending it to the phone call
                 buffer.clear()
@@ -186,11 +208,17 @@ class MainActivity : AppCompatActivity() {
             }
         }
 
+        // Let the consumers read the remaining data
+        audioBuffer.setEndOfStreamReached()
+
         waveWriter.stop()
-        speechRecognizer.stop()
-        wordReceiverDebouncer.stop()
-        wordReceiverSigner.stop()
-        wordReceiverTextViewUpdater.stop()
+        callSession.stop()
+
+        try {
+            WordReceiverMetrics.dump(File(filesDir, METRICS_FILE_NAME), callSession.firstStage)
+        } catch (e: IOException) {
+            Log.e(TAG, "Unable to write the metrics of the stages", e)
+        }
 
         recorder.stop()
         recorder.release()
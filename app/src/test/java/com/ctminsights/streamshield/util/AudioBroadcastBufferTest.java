@@ -0,0 +1,163 @@
+package com.ctminsights.streamshield.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class AudioBroadcastBufferTest {
+
+    @Test
+    public void everyCursorReceivesTheDataWrittenAfterItsRegistration() throws IOException {
+        final AudioBroadcastBuffer buffer = new AudioBroadcastBuffer(64, BufferOverflowPolicy.BLOCK, 2);
+        final AudioBroadcastBuffer.Cursor first = buffer.register();
+
+        buffer.write(new byte[]{1, 2, 3, 4}, 0, 4);
+        final AudioBroadcastBuffer.Cursor second = buffer.register();
+        buffer.write(new byte[]{5, 6}, 0, 2);
+        buffer.setEndOfStreamReached();
+
+        assertArrayEquals(new byte[]{1, 2, 3, 4, 5, 6}, readAll(first));
+        assertArrayEquals(new byte[]{5, 6}, readAll(second));
+        assertEquals(2, buffer.getCursorCount());
+
+        first.close();
+        assertEquals(1, buffer.getCursorCount());
+    }
+
+    @Test
+    public void droppingCursorDoesNotHoldTheProducer() throws IOException {
+        assertArrayEquals(new byte[]{4, 5, 6, 7, 8, 9, 10, 11}, writeUnread(BufferOverflowPolicy.DROP_OLDEST, 4));
+
+        // The full cursor is moved past the write that did not fit, and receives the data written after it
+        assertArrayEquals(new byte[]{10, 11}, writeUnread(BufferOverflowPolicy.DROP_NEWEST, 10));
+    }
+
+    @Test
+    public void blockingCursorIsLosslessNextToAFullDroppingNewestOne() throws IOException {
+        final AudioBroadcastBuffer buffer = new AudioBroadcastBuffer(8, BufferOverflowPolicy.BLOCK, 2);
+        final AudioBroadcastBuffer.Cursor recording = buffer.register(BufferOverflowPolicy.BLOCK);
+        final AudioBroadcastBuffer.Cursor lagging = buffer.register(BufferOverflowPolicy.DROP_NEWEST);
+
+        final byte[] data = new byte[4];
+        for (byte i = 0; i < 16; i += 4) {
+            buffer.write(new byte[]{i, (byte) (i + 1), (byte) (i + 2), (byte) (i + 3)}, 0, 4);
+            assertEquals(4, recording.read(data, 0, data.length));
+            assertArrayEquals(new byte[]{i, (byte) (i + 1), (byte) (i + 2), (byte) (i + 3)}, data);
+        }
+        buffer.setEndOfStreamReached();
+
+        assertEquals(0, recording.getDroppedBytes());
+        assertEquals(16, lagging.getDroppedBytes() + readAll(lagging).length);
+        assertEquals(-1, recording.read(data, 0, data.length));
+    }
+
+    @Test(timeout = 10000)
+    public void blockingCursorIsLosslessNextToALaggingOne() throws Exception {
+        final AudioBroadcastBuffer buffer = new AudioBroadcastBuffer(256, BufferOverflowPolicy.DROP_OLDEST, 2);
+        final AudioBroadcastBuffer.Cursor recording = buffer.register(BufferOverflowPolicy.BLOCK);
+        final AudioBroadcastBuffer.Cursor lagging = buffer.register();
+        final int total = 64 * 1024;
+
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        final Thread producer = new Thread(() -> {
+            try {
+                final byte[] chunk = new byte[100];
+                for (int written = 0; written < total; written += chunk.length) {
+                    for (int i = 0; i < chunk.length; i++) {
+                        chunk[i] = (byte) (written + i);
+                    }
+                    buffer.write(chunk, 0, Math.min(chunk.length, total - written));
+                }
+                buffer.setEndOfStreamReached();
+            } catch (final Throwable e) {
+                failure.set(e);
+            }
+        });
+        producer.start();
+
+        final byte[] data = readAll(recording);
+        producer.join();
+
+        assertNull(failure.get());
+        assertEquals(total, data.length);
+        for (int i = 0; i < total; i++) {
+            assertEquals((byte) i, data[i]);
+        }
+        assertEquals(0, recording.getDroppedBytes());
+
+        // The cursor that never read only kept the end of the stream
+        assertTrue(lagging.getDroppedBytes() > 0);
+        assertEquals(total, lagging.getDroppedBytes() + readAll(lagging).length);
+    }
+
+    @Test
+    public void inPlaceReadGivesTheWrappedDataInTwoParts() throws IOException {
+        final AudioBroadcastBuffer buffer = new AudioBroadcastBuffer(8, BufferOverflowPolicy.BLOCK, 2);
+        final AudioBroadcastBuffer.Cursor cursor = buffer.register();
+
+        buffer.write(new byte[]{0, 1, 2, 3, 4, 5}, 0, 6);
+        assertEquals(6, cursor.read(new byte[6], 0, 6));
+        buffer.write(new byte[]{6, 7, 8, 9}, 0, 4);
+
+        final ByteArrayOutputStream received = new ByteArrayOutputStream();
+        final int[] parts = {0};
+        final int read = cursor.read((data, offset, length) -> {
+            received.write(data, offset, length);
+            parts[0]++;
+        }, 16);
+
+        assertEquals(4, read);
+        assertEquals(2, parts[0]);
+        assertArrayEquals(new byte[]{6, 7, 8, 9}, received.toByteArray());
+        assertEquals(0, cursor.available());
+    }
+
+    @Test
+    public void closedCursorDoesNotHoldTheProducer() {
+        final AudioBroadcastBuffer buffer = new AudioBroadcastBuffer(8, BufferOverflowPolicy.BLOCK, 2);
+        final AudioBroadcastBuffer.Cursor cursor = buffer.register();
+        buffer.write(new byte[8], 0, 8);
+
+        cursor.close();
+
+        // Would wait forever for the closed cursor
+        buffer.write(new byte[8], 0, 8);
+        assertEquals(0, buffer.getCursorCount());
+    }
+
+    /**
+     * Write 12 bytes to a buffer of 8 without reading them, then read what the cursor kept.
+     */
+    private static @NotNull byte[] writeUnread(final @NotNull BufferOverflowPolicy policy, final long droppedBytes) throws IOException {
+        final AudioBroadcastBuffer buffer = new AudioBroadcastBuffer(8, BufferOverflowPolicy.BLOCK, 2);
+        final AudioBroadcastBuffer.Cursor cursor = buffer.register(policy);
+        assertEquals(policy, cursor.getOverflowPolicy());
+
+        for (byte i = 0; i < 12; i += 2) {
+            buffer.write(new byte[]{i, (byte) (i + 1)}, 0, 2);
+        }
+        buffer.setEndOfStreamReached();
+
+        final byte[] data = readAll(cursor);
+        assertEquals(droppedBytes, cursor.getDroppedBytes());
+        return data;
+    }
+
+    private static @NotNull byte[] readAll(final @NotNull AudioBroadcastBuffer.Cursor cursor) throws IOException {
+        final ByteArrayOutputStream data = new ByteArrayOutputStream();
+        final byte[] chunk = new byte[64];
+        int read;
+        while ((read = cursor.read(chunk, 0, chunk.length)) >= 0) {
+            data.write(chunk, 0, read);
+        }
+        return data.toByteArray();
+    }
+}
@@ -0,0 +1,125 @@
+package com.ctminsights.streamshield.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+public class AudioPreprocessorTest {
+
+    private static final int SAMPLE_RATE = 16000;
+
+    // Number of samples given at once
+    private static final int CHUNK_SAMPLES = 320;
+
+    @Test
+    public void highPassRemovesTheOffsetAndKeepsTheSpeech() {
+        final AudioPreprocessor preprocessor = new AudioPreprocessor(SAMPLE_RATE, Collections.singletonList(AudioPreprocessor.highPass(80)));
+        final short[] audio = tone(1000, SAMPLE_RATE, 4000);
+        for (int i = 0; i < audio.length; i++) {
+            audio[i] += 5000;
+        }
+
+        process(preprocessor, audio);
+
+        // After the start of the filter, the offset is gone and the tone keeps its RMS of about 2828
+        final short[] settled = Arrays.copyOfRange(audio, SAMPLE_RATE / 5, audio.length);
+        assertEquals(0, mean(settled), 20);
+        assertEquals(2828, rms(settled), 60);
+    }
+
+    @Test
+    public void gainBringsTheLoudSpeechDownToTheTarget() {
+        final AudioPreprocessor preprocessor = new AudioPreprocessor(SAMPLE_RATE, Collections.singletonList(AudioPreprocessor.automaticGainControl(-20, 12)));
+
+        // A sine at -6 dBFS, brought to -20 dBFS, that is a RMS of about 3277
+        final short[] audio = tone(1000, SAMPLE_RATE, 23197);
+        process(preprocessor, audio);
+
+        assertEquals(3277, rms(Arrays.copyOfRange(audio, SAMPLE_RATE / 2, audio.length)), 150);
+    }
+
+    @Test
+    public void gainIsLimitedForTheQuietSpeech() {
+        final AudioPreprocessor preprocessor = new AudioPreprocessor(SAMPLE_RATE, Collections.singletonList(AudioPreprocessor.automaticGainControl(-20, 12)));
+
+        // A sine at -40 dBFS, 20 dB under the target, only raised by 12 dB once the gain has risen
+        final short[] audio = tone(1000, 6 * SAMPLE_RATE, 463);
+        process(preprocessor, audio);
+
+        final double inputRms = 463 / Math.sqrt(2);
+        assertEquals(inputRms * Math.pow(10, 12 / 20.0), rms(Arrays.copyOfRange(audio, 5 * SAMPLE_RATE, audio.length)), 40);
+    }
+
+    @Test
+    public void gainIsKeptOnTheNoise() {
+        final AudioPreprocessor preprocessor = new AudioPreprocessor(SAMPLE_RATE, Collections.singletonList(AudioPreprocessor.automaticGainControl(-20, 30)));
+
+        // A background under -55 dBFS is not amplified
+        final short[] audio = tone(300, SAMPLE_RATE, 40);
+        final short[] original = audio.clone();
+        process(preprocessor, audio);
+
+        assertArrayEquals(original, audio);
+    }
+
+    @Test
+    public void chainIsClippedToTheSampleRange() {
+        final AudioPreprocessor.Stage amplifier = new AudioPreprocessor.Stage() {
+            @Override
+            public float process(final float sample) {
+                return sample * 10;
+            }
+
+            @Override
+            public void reset() {
+            }
+        };
+        final AudioPreprocessor preprocessor = new AudioPreprocessor(SAMPLE_RATE, Collections.singletonList(sampleRate -> amplifier));
+
+        final short[] audio = {0, 1000, -1000, 3276, -3276, 4000, -4000, Short.MAX_VALUE, Short.MIN_VALUE};
+        preprocessor.process(audio, 0, audio.length);
+
+        assertArrayEquals(new short[]{0, 10000, -10000, 32760, -32760, Short.MAX_VALUE, Short.MIN_VALUE, Short.MAX_VALUE, Short.MIN_VALUE}, audio);
+        assertEquals(1, preprocessor.getProcessedBlocks());
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void invalidBlockIsRefused() {
+        new AudioPreprocessor(SAMPLE_RATE, Collections.emptyList()).process(new short[10], 5, 6);
+    }
+
+    private static void process(final @NotNull AudioPreprocessor preprocessor, final @NotNull short[] audio) {
+        for (int position = 0; position < audio.length; position += CHUNK_SAMPLES) {
+            preprocessor.process(audio, position, Math.min(CHUNK_SAMPLES, audio.length - position));
+        }
+    }
+
+    private static @NotNull short[] tone(final double frequency, final int count, final int amplitude) {
+        final short[] samples = new short[count];
+        for (int i = 0; i < count; i++) {
+            samples[i] = (short) Math.round(amplitude * Math.sin(2 * Math.PI * frequency * i / SAMPLE_RATE));
+        }
+        return samples;
+    }
+
+    private static double mean(final @NotNull short[] samples) {
+        double sum = 0;
+        for (final short sample : samples) {
+            sum += sample;
+        }
+        return sum / samples.length;
+    }
+
+    private static double rms(final @NotNull short[] samples) {
+        double sum = 0;
+        for (final short sample : samples) {
+            sum += (double) sample * sample;
+        }
+        return Math.sqrt(sum / samples.length);
+    }
+}
@@ -0,0 +1,120 @@
+package com.ctminsights.streamshield.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+public class AudioSegmenterTest {
+
+    private static final int SAMPLE_RATE = 16000;
+
+    // Number of samples given at once, not aligned on the frames
+    private static final int CHUNK_SAMPLES = 4097;
+
+    @Test(timeout = 10000)
+    public void continuousSpeechIsCutAtTheMaximumDuration() throws IOException {
+        // Bursts of speech with pauses too short for a cut
+        final short[] audio = new short[40 * SAMPLE_RATE];
+        for (int start = 0; start < audio.length; start += ms(300)) {
+            fillSpeech(audio, start, Math.min(audio.length, start + ms(200)));
+        }
+
+        final List<long[]> segments = segment(audio);
+
+        assertTrue(segments.size() >= 2);
+        assertContiguous(segments, audio.length);
+        for (final long[] segment : segments) {
+            assertTrue(segment[1] <= ms(AudioSegmenter.MAX_SEGMENT_MS));
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void uninterruptedSpeechIsCutAtTheMaximumDuration() throws IOException {
+        final short[] audio = new short[70 * SAMPLE_RATE];
+        fillSpeech(audio, 0, audio.length);
+
+        final List<long[]> segments = segment(audio);
+
+        assertTrue(segments.size() >= 3);
+        assertContiguous(segments, audio.length);
+        for (final long[] segment : segments) {
+            assertTrue(segment[1] >= ms(AudioSegmenter.MIN_SEGMENT_MS) || segment == segments.get(segments.size() - 1));
+            assertTrue(segment[1] <= ms(AudioSegmenter.MAX_SEGMENT_MS));
+        }
+    }
+
+    @Test
+    public void segmentIsCutInTheMiddleOfASilence() throws IOException {
+        final short[] audio = new short[9 * SAMPLE_RATE];
+        fillSpeech(audio, 0, ms(6000));
+        fillSpeech(audio, ms(7000), audio.length);
+
+        final List<long[]> segments = segment(audio);
+
+        assertEquals(2, segments.size());
+        // The silence before the second segment is dropped, except its end
+        assertEquals(0, segments.get(0)[0]);
+        final long firstEnd = segments.get(0)[1];
+        assertTrue(firstEnd > ms(6000) && firstEnd < ms(7000));
+        final long secondStart = segments.get(1)[0];
+        assertTrue(secondStart >= firstEnd && secondStart < ms(7000));
+        assertEquals(audio.length, secondStart + segments.get(1)[1]);
+    }
+
+    @Test
+    public void silenceIsNotSubmitted() throws IOException {
+        final List<long[]> segments = new ArrayList<>();
+        final AudioSegmenter segmenter = new AudioSegmenter(SAMPLE_RATE, (startSample, segment) -> segments.add(new long[]{startSample, segment.length}));
+
+        final short[] audio = new short[40 * SAMPLE_RATE];
+        segmenter.addSamples(audio, audio.length);
+        segmenter.flush();
+
+        assertTrue(segments.isEmpty());
+        assertEquals(audio.length, segmenter.getTotalSamples());
+    }
+
+    private static List<long[]> segment(final short[] audio) throws IOException {
+        final List<long[]> segments = new ArrayList<>();
+        final AudioSegmenter segmenter = new AudioSegmenter(SAMPLE_RATE, (startSample, segment) -> segments.add(new long[]{startSample, segment.length}));
+
+        final short[] chunk = new short[CHUNK_SAMPLES];
+        for (int position = 0; position < audio.length; position += CHUNK_SAMPLES) {
+            final int count = Math.min(CHUNK_SAMPLES, audio.length - position);
+            System.arraycopy(audio, position, chunk, 0, count);
+            segmenter.addSamples(chunk, count);
+        }
+        segmenter.flush();
+
+        assertEquals(audio.length, segmenter.getTotalSamples());
+        return segments;
+    }
+
+    private static void assertContiguous(final List<long[]> segments, final int length) {
+        long expectedStart = 0;
+        for (final long[] segment : segments) {
+            assertEquals(expectedStart, segment[0]);
+            expectedStart += segment[1];
+        }
+        assertEquals(length, expectedStart);
+    }
+
+    /**
+     * Write a tone whose level changes every 50 ms, like syllables, so that the noise floor does not follow it.
+     */
+    private static void fillSpeech(final short[] audio, final int from, final int to) {
+        for (int i = from; i < to; i++) {
+            final int amplitude = (i / ms(50)) % 2 == 0 ? 8000 : 2000;
+            audio[i] = (short) (amplitude * Math.sin(2 * Math.PI * 440 * i / SAMPLE_RATE));
+        }
+    }
+
+    private static int ms(final int millis) {
+        return SAMPLE_RATE * millis / 1000;
+    }
+}
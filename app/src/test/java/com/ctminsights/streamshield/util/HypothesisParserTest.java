@@ -0,0 +1,86 @@
+package com.ctminsights.streamshield.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class HypothesisParserTest {
+
+    @Test
+    public void partialTextIsRead() {
+        final HypothesisParser parser = new HypothesisParser();
+
+        assertTrue(parser.parse("{\n  \"partial\" : \"hello world\"\n}"));
+        assertTrue(parser.hasText());
+        assertTrue(parser.isPartial());
+        assertFalse(parser.isTextBlank());
+        assertEquals("hello world", parser.getText());
+        assertEquals(0, parser.getWordCount());
+    }
+
+    @Test
+    public void resultWordsAreRead() {
+        final HypothesisParser parser = new HypothesisParser();
+
+        assertTrue(parser.parse("{\"result\" : [{\"conf\" : 0.5, \"end\" : 1.25, \"start\" : 1.0, \"word\" : \"hello\"}, "
+                + "{\"conf\" : 1.000000, \"end\" : 2.0, \"start\" : 1.5, \"word\" : \"world\", \"spk\" : [1, {\"x\" : \"]\"}]}], "
+                + "\"text\" : \"hello world\"}"));
+        assertFalse(parser.isPartial());
+        assertEquals("hello world", parser.getText());
+        assertEquals(2, parser.getWordCount());
+        assertEquals("world", parser.getWord(1));
+        assertEquals(1.0f, parser.getWordStartTime(0), 1e-6f);
+        assertEquals(1.25f, parser.getWordEndTime(0), 1e-6f);
+        assertEquals(0.5f, parser.getWordConfidence(0), 1e-6f);
+
+        // The positions are the times at the sample rate, after the start of the stream
+        final WordEvent[] words = parser.getWordEvents(16000, 1000);
+        assertEquals(2, words.length);
+        assertEquals("hello", words[0].getWord());
+        assertEquals(17000, words[0].getStartSample());
+        assertEquals(21000, words[0].getEndSample());
+        assertEquals(25000, words[1].getStartSample());
+        assertEquals(33000, words[1].getEndSample());
+    }
+
+    @Test
+    public void escapedStringsAreDecoded() {
+        final HypothesisParser parser = new HypothesisParser();
+
+        assertTrue(parser.parse("{\"text\" : \"say \\\"caf\\u00e9\\\"\\n\"}"));
+        assertEquals("say \"caf\u00e9\"\n", parser.getText());
+    }
+
+    @Test
+    public void wordsComeFromTheTextWithoutResult() {
+        final HypothesisParser parser = new HypothesisParser();
+
+        assertTrue(parser.parse("{\"text\" : \"one two\"}"));
+        final WordEvent[] words = parser.getWordEvents(16000, 0);
+
+        assertEquals(2, words.length);
+        assertEquals("two", words[1].getWord());
+        assertFalse(words[1].hasTiming());
+    }
+
+    @Test
+    public void blankAndInvalidHypothesesHaveNoText() {
+        final HypothesisParser parser = new HypothesisParser();
+
+        assertTrue(parser.parse("{\"text\" : \"  \"}"));
+        assertTrue(parser.isTextBlank());
+
+        assertTrue(parser.parse("{}"));
+        assertFalse(parser.hasText());
+        assertTrue(parser.isTextBlank());
+
+        assertFalse(parser.parse(null));
+        assertFalse(parser.parse("{\"text\" : \"unterminated}"));
+        assertFalse(parser.parse("{\"result\" : [{\"start\" : x}]}"));
+        assertFalse(parser.hasText());
+        assertEquals(0, parser.getWordCount());
+        assertEquals("", parser.getText());
+    }
+}
@@ -0,0 +1,96 @@
+package com.ctminsights.streamshield.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+public class KeywordSpotterTest {
+
+    @Test
+    public void longestPhraseIsMatchedFirst() {
+        final KeywordSpotter spotter = new KeywordSpotter(Arrays.asList("stop", "stop the stream"), 0);
+
+        final List<WordEvent> matches = spotter.match(words("please stop the stream now stop"));
+
+        assertEquals(2, matches.size());
+        assertEquals("stop the stream", matches.get(0).getWord());
+        assertEquals("stop", matches.get(1).getWord());
+    }
+
+    @Test
+    public void matchCoversTheAudioOfItsWords() {
+        final KeywordSpotter spotter = new KeywordSpotter(Collections.singletonList("mute the audio"), 0);
+        final WordEvent[] words = {
+                new WordEvent("then", 0, 100, 1),
+                new WordEvent("mute", 200, 300, 0.9f),
+                new WordEvent("the", 300, 350, 0.6f),
+                new WordEvent("audio", 400, 600, 0.8f),
+        };
+
+        final List<WordEvent> matches = spotter.match(words);
+
+        // From the start of the first word to the end of the last one, with the lowest confidence
+        assertEquals(1, matches.size());
+        assertEquals("mute the audio", matches.get(0).getWord());
+        assertEquals(200, matches.get(0).getStartSample());
+        assertEquals(600, matches.get(0).getEndSample());
+        assertEquals(0.6f, matches.get(0).getConfidence(), 1e-6f);
+    }
+
+    @Test
+    public void matchesBelowTheMinimumConfidenceAreDropped() {
+        final KeywordSpotter spotter = new KeywordSpotter(Arrays.asList("pause", "resume playback"), 0.7f);
+        final WordEvent[] words = {
+                new WordEvent("pause", 0, 100, 0.65f),
+                new WordEvent("resume", 200, 300, 0.9f),
+                new WordEvent("playback", 300, 400, 0.7f),
+                new WordEvent("pause", 500, 600, WordEvent.UNKNOWN_CONFIDENCE),
+        };
+
+        final List<WordEvent> matches = spotter.match(words);
+
+        // A word without confidence does not lower the confidence of its match
+        assertEquals(2, matches.size());
+        assertEquals("resume playback", matches.get(0).getWord());
+        assertEquals(0.7f, matches.get(0).getConfidence(), 1e-6f);
+        assertEquals("pause", matches.get(1).getWord());
+        assertEquals(1f, matches.get(1).getConfidence(), 1e-6f);
+    }
+
+    @Test
+    public void incompletePhraseIsNotMatched() {
+        final KeywordSpotter spotter = new KeywordSpotter(Collections.singletonList("next track"), 0);
+
+        assertTrue(spotter.match(words("next song next")).isEmpty());
+    }
+
+    @Test
+    public void grammarHasTheNormalizedPhrasesAndTheUnknownWord() {
+        final KeywordSpotter spotter = new KeywordSpotter(Arrays.asList("  Stop   The Stream ", "stop the stream", "", "say \"hi\\"), 0.5f);
+
+        // Duplicates and blank phrases are dropped, quotes and backslashes are escaped
+        assertEquals("[\"stop the stream\", \"say \\\"hi\\\\\", \"[unk]\"]", spotter.getGrammar());
+        assertEquals(2, spotter.getPhraseCount());
+        assertEquals(0.5f, spotter.getMinConfidence(), 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void noPhraseIsRefused() {
+        new KeywordSpotter(Collections.singletonList(" "), 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidConfidenceIsRefused() {
+        new KeywordSpotter(Collections.singletonList("stop"), 1.5f);
+    }
+
+    private static @NotNull WordEvent[] words(final @NotNull String text) {
+        return WordEvent.fromText(text);
+    }
+}
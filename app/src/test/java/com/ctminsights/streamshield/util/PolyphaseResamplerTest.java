@@ -0,0 +1,97 @@
+package com.ctminsights.streamshield.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+public class PolyphaseResamplerTest {
+
+    @Test
+    public void outputLengthFollowsTheRatio() {
+        for (final int inputRate : new int[]{8000, 22050, 44100, 48000}) {
+            final PolyphaseResampler resampler = new PolyphaseResampler(inputRate, 16000, PolyphaseResampler.Quality.BALANCED);
+            final short[] output = resample(resampler, new short[inputRate * 3], 1000);
+
+            assertEquals(String.valueOf(inputRate), 48000, output.length, 1);
+        }
+    }
+
+    @Test
+    public void chunkSizeDoesNotChangeTheOutput() {
+        final short[] input = tone(44100, 440, 44100, 8000);
+
+        final short[] whole = resample(new PolyphaseResampler(44100, 16000, PolyphaseResampler.Quality.HIGH), input, input.length);
+        final short[] chunked = resample(new PolyphaseResampler(44100, 16000, PolyphaseResampler.Quality.HIGH), input, 333);
+
+        assertArrayEquals(whole, chunked);
+    }
+
+    @Test
+    public void constantSignalKeepsItsLevel() {
+        final short[] input = new short[48000];
+        Arrays.fill(input, (short) 10000);
+
+        final short[] output = resample(new PolyphaseResampler(48000, 16000, PolyphaseResampler.Quality.BALANCED), input, 1024);
+
+        // After the start of the filter
+        for (int i = 100; i < output.length; i++) {
+            assertEquals(10000, output[i], 100);
+        }
+    }
+
+    @Test
+    public void toneAboveTheOutputBandIsAttenuated() {
+        final double passed = rms(resample(new PolyphaseResampler(48000, 16000, PolyphaseResampler.Quality.HIGH), tone(48000, 1000, 48000, 8000), 1024));
+        final double aliased = rms(resample(new PolyphaseResampler(48000, 16000, PolyphaseResampler.Quality.HIGH), tone(48000, 12000, 48000, 8000), 1024));
+
+        // A sine of amplitude 8000 has a RMS of about 5657
+        assertEquals(5657, passed, 300);
+        assertTrue(aliased < passed / 100);
+    }
+
+    @Test
+    public void resetForgetsThePreviousStream() {
+        final PolyphaseResampler resampler = new PolyphaseResampler(44100, 16000, PolyphaseResampler.Quality.FAST);
+        final short[] input = tone(44100, 300, 4410, 8000);
+
+        final short[] first = resample(resampler, input, 512);
+        resampler.reset();
+        final short[] second = resample(resampler, input, 512);
+
+        assertArrayEquals(first, second);
+    }
+
+    private static @NotNull short[] resample(final @NotNull PolyphaseResampler resampler, final @NotNull short[] input, final int chunkSamples) {
+        final short[] output = new short[resampler.getMaxOutputSamples(input.length) + input.length / chunkSamples + 1];
+        int written = 0;
+        for (int position = 0; position < input.length; position += chunkSamples) {
+            final int count = Math.min(chunkSamples, input.length - position);
+            written += resampler.process(input, position, count, output, written);
+        }
+        return Arrays.copyOf(output, written);
+    }
+
+    private static @NotNull short[] tone(final int sampleRate, final double frequency, final int count, final int amplitude) {
+        final short[] samples = new short[count];
+        for (int i = 0; i < count; i++) {
+            samples[i] = (short) Math.round(amplitude * Math.sin(2 * Math.PI * frequency * i / sampleRate));
+        }
+        return samples;
+    }
+
+    /**
+     * Get the RMS of the samples, without the start of the filter.
+     */
+    private static double rms(final @NotNull short[] samples) {
+        double sum = 0;
+        for (int i = 100; i < samples.length; i++) {
+            sum += (double) samples[i] * samples[i];
+        }
+        return Math.sqrt(sum / (samples.length - 100));
+    }
+}
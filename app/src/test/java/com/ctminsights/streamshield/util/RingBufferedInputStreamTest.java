@@ -0,0 +1,177 @@
+package com.ctminsights.streamshield.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class RingBufferedInputStreamTest {
+
+    private static final int SAMPLE_RATE = 16000;
+
+    @Test(timeout = 10000)
+    public void blockedProducerDeliversEverySampleInOrder() throws Exception {
+        // A buffer far smaller than the stream, so that the producer waits and the data wraps around many times
+        final RingBufferedInputStream buffer = new RingBufferedInputStream(64, BufferOverflowPolicy.BLOCK, 2);
+        final int total = 100_000;
+
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        final Thread producer = new Thread(() -> {
+            try {
+                final short[] chunk = new short[37];
+                for (int written = 0; written < total; ) {
+                    final int count = Math.min(chunk.length, total - written);
+                    for (int i = 0; i < count; i++) {
+                        chunk[i] = (short) (written + i);
+                    }
+                    buffer.addSamples(chunk, 0, count, System.nanoTime());
+                    written += count;
+                }
+                buffer.setEndOfStreamReached();
+            } catch (final Throwable e) {
+                failure.set(e);
+            }
+        });
+        producer.start();
+
+        final short[] samples = new short[50];
+        int expected = 0;
+        int read;
+        while ((read = buffer.readSamples(samples, 0, samples.length)) >= 0) {
+            for (int i = 0; i < read; i++) {
+                assertEquals((short) expected++, samples[i]);
+            }
+        }
+        producer.join();
+
+        assertNull(failure.get());
+        assertEquals(total, expected);
+        assertEquals(0, buffer.getDroppedBytes());
+        assertEquals(total, buffer.getReadSamples());
+    }
+
+    @Test
+    public void dropOldestKeepsTheNewestFrames() throws IOException {
+        final RingBufferedInputStream buffer = new RingBufferedInputStream(8, BufferOverflowPolicy.DROP_OLDEST, 2);
+
+        buffer.addSamples(new short[]{0, 1, 2, 3}, 0, 4, 0);
+        buffer.addSamples(new short[]{4, 5}, 0, 2, 0);
+        buffer.setEndOfStreamReached();
+
+        final short[] samples = new short[8];
+        assertEquals(4, buffer.readSamples(samples, 0, samples.length));
+        assertArrayEquals(new short[]{2, 3, 4, 5}, Arrays.copyOf(samples, 4));
+        assertEquals(4, buffer.getDroppedBytes());
+
+        // The positions count the frames dropped before being read
+        assertEquals(6, buffer.getReadSamples());
+        assertEquals(-1, buffer.readSamples(samples, 0, samples.length));
+    }
+
+    @Test
+    public void dropNewestKeepsTheOldestFrames() throws IOException {
+        final RingBufferedInputStream buffer = new RingBufferedInputStream(8, BufferOverflowPolicy.DROP_NEWEST, 2);
+
+        buffer.addSamples(new short[]{0, 1, 2}, 0, 3, 0);
+        buffer.addSamples(new short[]{3, 4, 5}, 0, 3, 0);
+        buffer.setEndOfStreamReached();
+
+        final short[] samples = new short[8];
+        assertEquals(4, buffer.readSamples(samples, 0, samples.length));
+        assertArrayEquals(new short[]{0, 1, 2, 3}, Arrays.copyOf(samples, 4));
+        assertEquals(4, buffer.getDroppedBytes());
+    }
+
+    @Test
+    public void captureTimeFollowsTheChunks() {
+        final RingBufferedInputStream buffer = new RingBufferedInputStream(1024, BufferOverflowPolicy.BLOCK, 2);
+        buffer.restart();
+
+        buffer.addSamples(new short[160], 0, 160, 1_000_000_000L);
+        buffer.addSamples(new short[160], 0, 160, 5_000_000_000L);
+
+        assertEquals(1_000_000_000L, buffer.getCaptureTimeNanos(0, SAMPLE_RATE));
+        // 80 samples are 5 ms at 16 kHz
+        assertEquals(1_005_000_000L, buffer.getCaptureTimeNanos(80, SAMPLE_RATE));
+        assertEquals(5_000_000_000L, buffer.getCaptureTimeNanos(160, SAMPLE_RATE));
+    }
+
+    @Test
+    public void capturePositionFollowsTheGaps() {
+        final RingBufferedInputStream buffer = new RingBufferedInputStream(1024, BufferOverflowPolicy.BLOCK, 2);
+        buffer.restart();
+
+        // 10 captured samples, 90 left out, then 5 captured samples
+        buffer.addSamples(new short[10], 0, 10, 0);
+        buffer.addSamples(new short[5], 0, 5, 0, 100);
+
+        // 3 inserted samples, then the captured samples go on
+        buffer.addSamples(new short[3], 0, 3, 0, 105);
+        buffer.addSamples(new short[4], 0, 4, 0, 105);
+
+        assertEquals(0, buffer.getCapturePosition(0));
+        assertEquals(9, buffer.getCapturePosition(9));
+        assertEquals(100, buffer.getCapturePosition(10));
+        assertEquals(104, buffer.getCapturePosition(14));
+
+        // The inserted samples have the position of the next captured sample
+        assertEquals(105, buffer.getCapturePosition(15));
+        assertEquals(105, buffer.getCapturePosition(17));
+        assertEquals(105, buffer.getCapturePosition(18));
+        assertEquals(108, buffer.getCapturePosition(21));
+    }
+
+    @Test
+    public void capturePositionCountsTheFramesSkippedBeforeALargeWrite() {
+        final RingBufferedInputStream buffer = new RingBufferedInputStream(8, BufferOverflowPolicy.DROP_OLDEST, 2);
+        buffer.restart();
+
+        // Only the last 4 samples fit in the buffer
+        buffer.addSamples(new short[6], 0, 6, 0);
+
+        assertEquals(4, buffer.getDroppedBytes());
+        assertEquals(2, buffer.getCapturePosition(0));
+        assertEquals(5, buffer.getCapturePosition(3));
+    }
+
+    @Test
+    public void capturePositionCountsTheDroppedNewestFrames() throws IOException {
+        final RingBufferedInputStream buffer = new RingBufferedInputStream(8, BufferOverflowPolicy.DROP_NEWEST, 2);
+        buffer.restart();
+
+        // Only the first 4 samples fit in the buffer
+        buffer.addSamples(new short[6], 0, 6, 0);
+        assertEquals(4, buffer.readSamples(new short[4], 0, 4));
+
+        // The next samples follow the dropped ones
+        buffer.addSamples(new short[2], 0, 2, 0);
+
+        assertEquals(6, buffer.getWrittenSamples());
+        assertEquals(3, buffer.getCapturePosition(3));
+        assertEquals(6, buffer.getCapturePosition(4));
+        assertEquals(7, buffer.getCapturePosition(5));
+    }
+
+    @Test
+    public void restartStartsANewStream() throws IOException {
+        final RingBufferedInputStream buffer = new RingBufferedInputStream(16, BufferOverflowPolicy.BLOCK, 2);
+        buffer.addSamples(new short[]{1, 2, 3}, 0, 3, 0);
+        buffer.setEndOfStreamReached();
+        buffer.close();
+
+        buffer.restart();
+        assertEquals(0, buffer.available());
+        assertEquals(0, buffer.getReadSamples());
+
+        buffer.addSamples(new short[]{4, 5}, 0, 2, 0);
+        final short[] samples = new short[2];
+        assertEquals(2, buffer.readSamples(samples, 0, samples.length));
+        assertArrayEquals(new short[]{4, 5}, samples);
+        assertEquals(0, buffer.getCapturePosition(0));
+    }
+}
@@ -0,0 +1,83 @@
+package com.ctminsights.streamshield.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+public class StereoDownmixerTest {
+
+    @Test
+    public void modesGiveTheExpectedSamples() {
+        final byte[] bytes = frames(1000, -3000, -32768, 32767);
+
+        assertArrayEquals(new short[]{1000, -32768}, downmix(new StereoDownmixer(StereoDownmixer.Mode.LEFT), bytes));
+        assertArrayEquals(new short[]{-3000, 32767}, downmix(new StereoDownmixer(StereoDownmixer.Mode.RIGHT), bytes));
+        assertArrayEquals(new short[]{-1000, -1}, downmix(new StereoDownmixer(StereoDownmixer.Mode.AVERAGE), bytes));
+    }
+
+    @Test
+    public void frameSplitBetweenChunksIsKept() {
+        final StereoDownmixer downmixer = new StereoDownmixer(StereoDownmixer.Mode.AVERAGE);
+        final byte[] bytes = frames(100, 300, 1000, 2000, -50, -150);
+        final short[] output = new short[3];
+
+        // Cut in the middle of the first and the second frames
+        assertEquals(0, downmixer.downmix(bytes, 0, 3, output, 0));
+        assertEquals(1, downmixer.downmix(bytes, 3, 3, output, 0));
+        assertEquals(2, downmixer.downmix(bytes, 6, 6, output, 1));
+
+        assertArrayEquals(new short[]{200, 1500, -100}, output);
+    }
+
+    @Test
+    public void splitGivesBothChannels() {
+        final StereoDownmixer downmixer = new StereoDownmixer(StereoDownmixer.Mode.LEFT);
+        final byte[] bytes = frames(1, 2, 3, 4, 5, 6);
+        final short[] left = new short[3];
+        final short[] right = new short[3];
+
+        assertEquals(1, downmixer.split(bytes, 0, 5, left, right, 0));
+        assertEquals(2, downmixer.split(bytes, 5, 7, left, right, 1));
+
+        assertArrayEquals(new short[]{1, 3, 5}, left);
+        assertArrayEquals(new short[]{2, 4, 6}, right);
+    }
+
+    @Test
+    public void louderModeOnlySwitchesForAClearlyLouderChannel() {
+        final StereoDownmixer downmixer = new StereoDownmixer(StereoDownmixer.Mode.LOUDER);
+
+        // Starts on the left, and stays there while the right is not twice as loud
+        assertArrayEquals(new short[]{1000, 1000}, downmix(downmixer, frames(1000, 1200, 1000, 1200)));
+        assertArrayEquals(new short[]{2000, 2000}, downmix(downmixer, frames(100, 2000, 100, 2000)));
+
+        // Then stays on the right while the left is not twice as loud
+        assertArrayEquals(new short[]{2000, 2000}, downmix(downmixer, frames(2500, 2000, 2500, 2000)));
+        assertArrayEquals(new short[]{3000, 3000}, downmix(downmixer, frames(3000, 2000, 3000, 2000)));
+
+        downmixer.reset();
+        assertArrayEquals(new short[]{1000, 1000}, downmix(downmixer, frames(1000, 1200, 1000, 1200)));
+    }
+
+    private static @NotNull short[] downmix(final @NotNull StereoDownmixer downmixer, final @NotNull byte[] bytes) {
+        final short[] output = new short[StereoDownmixer.getMaxOutputSamples(bytes.length)];
+        final int written = downmixer.downmix(bytes, 0, bytes.length, output, 0);
+        return Arrays.copyOf(output, written);
+    }
+
+    /**
+     * Build little-endian interleaved data from the left and right samples.
+     */
+    private static @NotNull byte[] frames(final int... samples) {
+        final byte[] bytes = new byte[samples.length * 2];
+        for (int i = 0; i < samples.length; i++) {
+            bytes[2 * i] = (byte) samples[i];
+            bytes[2 * i + 1] = (byte) (samples[i] >> 8);
+        }
+        return bytes;
+    }
+}
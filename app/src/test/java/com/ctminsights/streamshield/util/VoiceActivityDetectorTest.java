@@ -0,0 +1,139 @@
+package com.ctminsights.streamshield.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class VoiceActivityDetectorTest {
+
+    private static final int SAMPLE_RATE = 16000;
+
+    // Samples of a 10 ms frame
+    private static final int FRAME = 160;
+
+    // Number of samples given at once, not aligned on the frames
+    private static final int CHUNK_SAMPLES = 97;
+
+    @Test
+    public void gateLetsThroughThePreRollTheSpeechAndTheHangover() {
+        // Speech in the frames 1 to 4 and 20 to 21, with 50 ms of hangover and 30 ms of pre-roll
+        final short[] audio = noise(30);
+        fillSpeech(audio, 1, 5);
+        fillSpeech(audio, 20, 22);
+
+        final List<long[]> blocks = new ArrayList<>();
+        final VoiceActivityDetector detector = new VoiceActivityDetector(SAMPLE_RATE, 50, 30, VoiceActivityDetector.SilenceMode.SKIP, (samples, srcPos, count, streamPosition) -> {
+            // The samples given are the ones of the audio at their position
+            final short[] expected = new short[count];
+            System.arraycopy(audio, (int) streamPosition, expected, 0, count);
+            final short[] actual = new short[count];
+            System.arraycopy(samples, srcPos, actual, 0, count);
+            assertArrayEquals(expected, actual);
+
+            addBlock(blocks, streamPosition, count);
+        });
+
+        process(detector, audio);
+
+        // Only one frame of pre-roll before the first speech, then the hangover up to frame 9. The last 3 frames of the
+        // silence before the second speech, then its hangover up to frame 26.
+        assertEquals(2, blocks.size());
+        assertArrayEquals(new long[]{0, 10 * FRAME}, blocks.get(0));
+        assertArrayEquals(new long[]{17 * FRAME, 27 * FRAME}, blocks.get(1));
+
+        assertEquals(6, detector.getSpeechFrames());
+        assertEquals(24, detector.getNonSpeechFrames());
+        // The last 3 frames are still in the pre-roll
+        assertEquals(7 * FRAME, detector.getSkippedSamples());
+        assertFalse(detector.isSpeaking());
+    }
+
+    @Test
+    public void silenceMarkerHasThePositionOfTheFollowingAudio() {
+        final short[] audio = noise(20);
+        fillSpeech(audio, 5, 8);
+
+        final List<long[]> markers = new ArrayList<>();
+        final List<long[]> blocks = new ArrayList<>();
+        final VoiceActivityDetector detector = new VoiceActivityDetector(SAMPLE_RATE, 20, 0, VoiceActivityDetector.SilenceMode.MARKER, (samples, srcPos, count, streamPosition) -> {
+            if (count == SAMPLE_RATE) {
+                markers.add(new long[]{streamPosition, count});
+            } else {
+                addBlock(blocks, streamPosition, count);
+            }
+        });
+
+        process(detector, audio);
+
+        // No pre-roll, 2 frames of hangover, then the marker when the gate closes on frame 10
+        assertEquals(1, blocks.size());
+        assertArrayEquals(new long[]{5 * FRAME, 10 * FRAME}, blocks.get(0));
+        assertEquals(1, markers.size());
+        assertArrayEquals(new long[]{10 * FRAME, SAMPLE_RATE}, markers.get(0));
+    }
+
+    @Test
+    public void speechWithinTheHangoverKeepsTheGateOpen() {
+        final short[] audio = noise(20);
+        fillSpeech(audio, 3, 5);
+        fillSpeech(audio, 8, 10);
+
+        final List<long[]> blocks = new ArrayList<>();
+        final VoiceActivityDetector detector = new VoiceActivityDetector(SAMPLE_RATE, 50, 20, VoiceActivityDetector.SilenceMode.SKIP, (samples, srcPos, count, streamPosition) -> addBlock(blocks, streamPosition, count));
+
+        process(detector, audio);
+
+        assertEquals(1, blocks.size());
+        assertArrayEquals(new long[]{FRAME, 15 * FRAME}, blocks.get(0));
+
+        // A new session starts from the position 0
+        detector.reset();
+        blocks.clear();
+        process(detector, audio);
+        assertArrayEquals(new long[]{FRAME, 15 * FRAME}, blocks.get(0));
+    }
+
+    private static void process(final @NotNull VoiceActivityDetector detector, final @NotNull short[] audio) {
+        for (int position = 0; position < audio.length; position += CHUNK_SAMPLES) {
+            detector.process(audio, position, Math.min(CHUNK_SAMPLES, audio.length - position));
+        }
+    }
+
+    /**
+     * Add a block given to the sink, merged with the previous one when it follows it.
+     */
+    private static void addBlock(final @NotNull List<long[]> blocks, final long position, final int count) {
+        final long[] last = blocks.isEmpty() ? null : blocks.get(blocks.size() - 1);
+        if (last != null && last[1] == position) {
+            last[1] = position + count;
+        } else {
+            blocks.add(new long[]{position, position + count});
+        }
+    }
+
+    /**
+     * Create some frames of a background noise too quiet to be speech.
+     */
+    private static @NotNull short[] noise(final int frames) {
+        final short[] audio = new short[frames * FRAME];
+        for (int i = 0; i < audio.length; i++) {
+            audio[i] = (short) (i % 7 - 3);
+        }
+        return audio;
+    }
+
+    /**
+     * Replace some frames by a loud square wave.
+     */
+    private static void fillSpeech(final @NotNull short[] audio, final int startFrame, final int endFrame) {
+        for (int i = startFrame * FRAME; i < endFrame * FRAME; i++) {
+            audio[i] = (short) ((i / 20) % 2 == 0 ? 5000 : -5000);
+        }
+    }
+}
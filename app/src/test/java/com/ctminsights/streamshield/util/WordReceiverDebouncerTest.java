@@ -0,0 +1,111 @@
+package com.ctminsights.streamshield.util;
+
+import static org.junit.Assert.assertEquals;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class WordReceiverDebouncerTest {
+
+    private CollectingStage collector;
+    private WordReceiverDebouncer debouncer;
+
+    @Before
+    public void setUp() {
+        collector = new CollectingStage();
+        debouncer = new WordReceiverDebouncer(collector);
+
+        // Processed synchronously by the thread putting the events
+        debouncer.setChainScheduler(WordReceiverScheduler.caller());
+        collector.start();
+        debouncer.start();
+    }
+
+    @After
+    public void tearDown() {
+        debouncer.stop();
+        collector.stop();
+    }
+
+    @Test
+    public void wordIsEmittedOnceSeenTwice() {
+        debouncer.putText(0, "hello");
+        debouncer.putText(0, "hello world");
+        debouncer.putText(0, "hello world again");
+
+        assertEquals(Arrays.asList("0:hello", "0:world"), collector.events);
+    }
+
+    @Test
+    public void endOfSentenceEmitsTheUnconfirmedWords() {
+        debouncer.putText(0, "hello");
+        debouncer.putText(0, "hello world");
+        debouncer.signalEndOfSentence(0);
+
+        assertEquals(Arrays.asList("0:hello", "0:world", "0:EOS"), collector.events);
+    }
+
+    @Test
+    public void repeatedPartialDoesNotEmitTwice() {
+        debouncer.putText(0, "hello");
+        debouncer.putText(0, "hello world");
+        debouncer.putText(0, "hello world");
+        debouncer.signalEndOfSentence(0);
+
+        assertEquals(Arrays.asList("0:hello", "0:world", "0:EOS"), collector.events);
+    }
+
+    @Test
+    public void channelsAreDebouncedSeparately() {
+        debouncer.putText(0, "left");
+        debouncer.putText(1, "right");
+        debouncer.putText(0, "left side");
+        debouncer.signalEndOfSentence(1);
+
+        assertEquals(Arrays.asList("0:left", "1:right", "1:EOS"), collector.events);
+    }
+
+    /**
+     * Keep the events received, as text.
+     */
+    private static final class CollectingStage extends WordReceiver {
+        final List<String> events = new ArrayList<>();
+
+        CollectingStage() {
+            super(null);
+        }
+
+        @Override
+        public void processTextReceived(final int channel, final @NotNull WordEvent[] words) {
+            for (final WordEvent word : words) {
+                events.add(channel + ":" + word.getWord());
+            }
+        }
+
+        @Override
+        public void processEndOfSentence(final int channel) {
+            events.add(channel + ":EOS");
+        }
+
+        @Override
+        public void processKeyword(final int channel, final @NotNull WordEvent keyword) {
+            events.add(channel + ":keyword " + keyword.getWord());
+        }
+
+        @Override
+        public void processError(final @NotNull String text) {
+            events.add("error " + text);
+        }
+
+        @Override
+        public void processReset() {
+            events.add("reset");
+        }
+    }
+}
@@ -0,0 +1,186 @@
+package com.ctminsights.streamshield.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class WordReceiverRingTest {
+
+    private final AtomicLong droppedEvents = new AtomicLong();
+    private final AtomicLong coalescedEvents = new AtomicLong();
+    private final AtomicLong spilledEvents = new AtomicLong();
+
+    @Test(timeout = 10000)
+    public void textsOfEveryProducerAreTakenOnceInTheirOrder() throws InterruptedException {
+        final WordReceiverRing ring = createRing(8, WordReceiver.OverflowPolicy.BLOCK);
+        final int producers = 4;
+        final int textsPerProducer = 5000;
+
+        final Thread[] threads = new Thread[producers];
+        for (int p = 0; p < producers; p++) {
+            final int channel = p;
+            threads[p] = new Thread(() -> {
+                for (int i = 0; i < textsPerProducer; i++) {
+                    ring.put(WordEventBatch.TEXT, channel, WordEvent.fromText("w" + i), WordReceiver.UNKNOWN_CAPTURE_TIME, consumer(true, true));
+                }
+            });
+            threads[p].start();
+        }
+
+        // The texts of each producer must come in the order it put them
+        final int[] next = new int[producers];
+        final WordEventBatch batch = new WordEventBatch();
+        int taken = 0;
+        while (taken < producers * textsPerProducer) {
+            batch.clear();
+            taken += ring.takeAll(batch, 16);
+            for (int i = 0; i < batch.size(); i++) {
+                final int channel = batch.getChannel(i);
+                assertEquals("w" + next[channel]++, batch.getWords(i)[0].getWord());
+            }
+        }
+
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+        assertFalse(ring.hasEvent());
+        assertEquals(0, droppedEvents.get());
+    }
+
+    @Test
+    public void endOfSentenceKeepsItsPlaceAmongTheTexts() {
+        final WordReceiverRing ring = createRing(8, WordReceiver.OverflowPolicy.BLOCK);
+
+        putText(ring, "hello");
+        ring.put(WordEventBatch.END_OF_SENTENCE, 0, null, WordReceiver.UNKNOWN_CAPTURE_TIME, consumer(true, true));
+        putText(ring, "world");
+
+        assertEquals(3, ring.size());
+        assertEquals(Arrays.asList("hello", "<end>", "world"), takeAll(ring));
+    }
+
+    @Test
+    public void resetGoesAheadAndDropsTheTextsBeforeIt() {
+        final WordReceiverRing ring = createRing(8, WordReceiver.OverflowPolicy.BLOCK);
+
+        putText(ring, "old");
+        ring.put(WordEventBatch.RESET, WordReceiver.CHANNEL_DEFAULT, null, WordReceiver.UNKNOWN_CAPTURE_TIME, consumer(true, true));
+        putText(ring, "new");
+
+        assertEquals(Arrays.asList("<reset>", "new"), takeAll(ring));
+    }
+
+    @Test
+    public void dropOldestTextKeepsTheNewestTexts() {
+        final WordReceiverRing ring = createRing(4, WordReceiver.OverflowPolicy.DROP_OLDEST_TEXT);
+
+        for (int i = 0; i < 6; i++) {
+            putText(ring, "w" + i);
+        }
+
+        assertEquals(Arrays.asList("w2", "w3", "w4", "w5"), takeAll(ring));
+        assertEquals(2, droppedEvents.get());
+    }
+
+    @Test
+    public void fullRingSpillsWhenTheProducerCannotWait() {
+        final WordReceiverRing ring = createRing(4, WordReceiver.OverflowPolicy.BLOCK);
+
+        for (int i = 0; i < 6; i++) {
+            ring.put(WordEventBatch.TEXT, 0, WordEvent.fromText("w" + i), WordReceiver.UNKNOWN_CAPTURE_TIME, consumer(true, false));
+        }
+
+        assertEquals(Arrays.asList("w0", "w1", "w2", "w3", "w4", "w5"), takeAll(ring));
+        assertEquals(2, spilledEvents.get());
+        assertEquals(0, droppedEvents.get());
+    }
+
+    @Test
+    public void fullRingDropsTheTextsWhileTheConsumerIsStopped() {
+        final WordReceiverRing ring = createRing(4, WordReceiver.OverflowPolicy.BLOCK);
+
+        for (int i = 0; i < 6; i++) {
+            assertEquals(i < 4, ring.put(WordEventBatch.TEXT, 0, WordEvent.fromText("w" + i), WordReceiver.UNKNOWN_CAPTURE_TIME, consumer(false, true)));
+        }
+        // The other events are never dropped
+        assertTrue(ring.put(WordEventBatch.END_OF_SENTENCE, 0, null, WordReceiver.UNKNOWN_CAPTURE_TIME, consumer(false, true)));
+
+        assertEquals(2, droppedEvents.get());
+        ring.clear();
+        assertFalse(ring.hasEvent());
+    }
+
+    @Test
+    public void batchIsPutInOrder() {
+        final WordReceiverRing ring = createRing(4, WordReceiver.OverflowPolicy.BLOCK);
+        final WordEventBatch batch = new WordEventBatch();
+        batch.addText(0, new WordEvent("a"));
+        batch.addText(0, new WordEvent("b"));
+        batch.addEndOfSentence(0);
+        batch.addText(0, new WordEvent("c"));
+
+        assertEquals(4, ring.putAll(batch, consumer(true, true)));
+        assertEquals(Arrays.asList("a", "b", "<end>", "c"), takeAll(ring));
+    }
+
+    private @NotNull WordReceiverRing createRing(final int capacity, final @NotNull WordReceiver.OverflowPolicy policy) {
+        return new WordReceiverRing(capacity, policy, droppedEvents, coalescedEvents, spilledEvents);
+    }
+
+    private static void putText(final @NotNull WordReceiverRing ring, final @NotNull String text) {
+        ring.put(WordEventBatch.TEXT, 0, WordEvent.fromText(text), WordReceiver.UNKNOWN_CAPTURE_TIME, consumer(true, true));
+    }
+
+    /**
+     * Take the events waiting, as the words of the texts and the names of the other events.
+     */
+    private static @NotNull List<String> takeAll(final @NotNull WordReceiverRing ring) {
+        final WordEventBatch batch = new WordEventBatch();
+        ring.takeAll(batch, Integer.MAX_VALUE);
+
+        final List<String> events = new ArrayList<>();
+        for (int i = 0; i < batch.size(); i++) {
+            switch (batch.getType(i)) {
+                case WordEventBatch.TEXT: {
+                    events.add(WordEvent.toText(batch.getWords(i)));
+                    break;
+                }
+                case WordEventBatch.END_OF_SENTENCE: {
+                    events.add("<end>");
+                    break;
+                }
+                case WordEventBatch.RESET: {
+                    events.add("<reset>");
+                    break;
+                }
+                default: {
+                    events.add("<" + batch.getType(i) + ">");
+                    break;
+                }
+            }
+        }
+        return events;
+    }
+
+    private static @NotNull WordReceiverRing.ConsumerState consumer(final boolean active, final boolean canWait) {
+        return new WordReceiverRing.ConsumerState() {
+            @Override
+            public boolean isActive() {
+                return active;
+            }
+
+            @Override
+            public boolean canWait() {
+                return canWait;
+            }
+        };
+    }
+}
@@ -0,0 +1,277 @@
+package com.ctminsights.streamshield.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class WordReceiverTest {
+
+    private static final long TIMEOUT_MS = 5000;
+
+    // A consumer taking the events, that producers can wait for
+    private static final WordReceiverRing.ConsumerState RUNNING = new WordReceiverRing.ConsumerState() {
+        @Override
+        public boolean isActive() {
+            return true;
+        }
+
+        @Override
+        public boolean canWait() {
+            return true;
+        }
+    };
+
+    @Test(timeout = TIMEOUT_MS)
+    public void fullStageOnTheSameThreadDoesNotBlock() throws InterruptedException {
+        final WordReceiverScheduler scheduler = WordReceiverScheduler.singleThread(WordReceiverScheduler.DEFAULT_PRIORITY);
+        try {
+            assertAllWordsDelivered(scheduler, WordReceiver.OverflowPolicy.BLOCK);
+        } finally {
+            scheduler.shutdown();
+        }
+    }
+
+    @Test(timeout = TIMEOUT_MS)
+    public void fullStageOfTheCallersDoesNotBlock() throws InterruptedException {
+        assertAllWordsDelivered(WordReceiverScheduler.caller(), WordReceiver.OverflowPolicy.BLOCK);
+    }
+
+    @Test(timeout = TIMEOUT_MS)
+    public void fullStageOnAPoolDoesNotBlock() throws InterruptedException {
+        final WordReceiverScheduler scheduler = WordReceiverScheduler.pool(1, WordReceiverScheduler.DEFAULT_PRIORITY);
+        try {
+            assertAllWordsDelivered(scheduler, WordReceiver.OverflowPolicy.BLOCK);
+        } finally {
+            scheduler.shutdown();
+        }
+    }
+
+    @Test(timeout = TIMEOUT_MS)
+    public void eventsKeepTheirOrderWithEveryScheduler() throws InterruptedException {
+        final WordReceiverScheduler[] schedulers = {
+                WordReceiverScheduler.dedicated(),
+                WordReceiverScheduler.pool(3, WordReceiverScheduler.DEFAULT_PRIORITY),
+                WordReceiverScheduler.singleThread(WordReceiverScheduler.DEFAULT_PRIORITY),
+                WordReceiverScheduler.caller()
+        };
+
+        for (final WordReceiverScheduler scheduler : schedulers) {
+            final CollectingStage collector = new CollectingStage(null);
+            final CollectingStage forwarder = new CollectingStage(collector);
+            forwarder.setChainScheduler(scheduler);
+            collector.start();
+            forwarder.start();
+
+            for (int i = 0; i < 1000; i++) {
+                forwarder.putText(i % 2, "w" + i);
+            }
+            collector.await(1000);
+
+            forwarder.stop();
+            collector.stop();
+            scheduler.shutdown();
+
+            final List<String> expected = new ArrayList<>();
+            for (int i = 0; i < 1000; i++) {
+                expected.add((i % 2) + ":w" + i);
+            }
+            assertEquals(scheduler.getMode().toString(), expected, collector.snapshot());
+        }
+    }
+
+    @Test(timeout = TIMEOUT_MS)
+    public void drainingStopProcessesTheEventsWaiting() throws InterruptedException {
+        final WordReceiverScheduler[] schedulers = {
+                WordReceiverScheduler.dedicated(),
+                WordReceiverScheduler.pool(2, WordReceiverScheduler.DEFAULT_PRIORITY),
+                WordReceiverScheduler.singleThread(WordReceiverScheduler.DEFAULT_PRIORITY)
+        };
+
+        for (final WordReceiverScheduler scheduler : schedulers) {
+            final CollectingStage collector = new CollectingStage(null);
+            final CollectingStage forwarder = new CollectingStage(collector);
+            forwarder.setChainScheduler(scheduler);
+            forwarder.processingDelayMs = 1;
+            collector.start();
+            forwarder.start();
+
+            for (int i = 0; i < 51; i++) {
+                forwarder.putText(0, "w" + i);
+            }
+
+            // Stopped from the first stage, as a session does
+            forwarder.drainAndStop();
+            collector.drainAndStop();
+            scheduler.shutdown();
+
+            assertEquals(scheduler.getMode().toString(), 51, collector.snapshot().size());
+            assertEquals("0:w50", collector.snapshot().get(50));
+            assertEquals(0, forwarder.getDroppedEvents() + collector.getDroppedEvents());
+        }
+    }
+
+    @Test
+    public void coalescedTextsKeepTheLatestOne() {
+        final WordReceiverRing ring = new WordReceiverRing(16, WordReceiver.OverflowPolicy.COALESCE_TEXT,
+                new AtomicLong(), new AtomicLong(), new AtomicLong());
+
+        // Partial results, each holding all the words of the sentence so far
+        putText(ring, 0, "hello");
+        putText(ring, 1, "good");
+        putText(ring, 0, "hello world");
+        putText(ring, 1, "good morning");
+        ring.put(WordEventBatch.END_OF_SENTENCE, 0, null, WordReceiver.UNKNOWN_CAPTURE_TIME, RUNNING);
+        putText(ring, 0, "bye");
+
+        final WordEventBatch batch = new WordEventBatch();
+        assertEquals(6, ring.takeAll(batch, Integer.MAX_VALUE));
+        assertEquals(4, batch.size());
+        assertEquals("hello world", WordEvent.toText(batch.getWords(0)));
+        assertEquals("good morning", WordEvent.toText(batch.getWords(1)));
+        assertEquals(WordEventBatch.END_OF_SENTENCE, batch.getType(2));
+        assertEquals("bye", WordEvent.toText(batch.getWords(3)));
+    }
+
+    @Test
+    public void stoppedStageDropsTheTextsBeyondItsCapacity() {
+        final CollectingStage stage = new CollectingStage(null);
+        stage.setCapacity(16, WordReceiver.OverflowPolicy.BLOCK);
+        stage.start();
+        stage.stop();
+
+        for (int i = 0; i < 20; i++) {
+            stage.putText(0, "w" + i);
+        }
+        stage.signalEndOfSentence(0);
+
+        // The ring keeps the capacity, the end of sentence is never dropped
+        assertEquals(4, stage.getDroppedEvents());
+    }
+
+    private static void putText(final @NotNull WordReceiverRing ring, final int channel, final @NotNull String text) {
+        ring.put(WordEventBatch.TEXT, channel, WordEvent.fromText(text), WordReceiver.UNKNOWN_CAPTURE_TIME, RUNNING);
+    }
+
+    /**
+     * Emit 40 words from a single event to a stage of 16 texts, on the same scheduler.
+     */
+    private static void assertAllWordsDelivered(final @NotNull WordReceiverScheduler scheduler, final @NotNull WordReceiver.OverflowPolicy policy) throws InterruptedException {
+        final CollectingStage collector = new CollectingStage(null);
+        collector.setCapacity(16, policy);
+        final WordReceiver splitter = new WordReceiver(collector) {
+            private final WordEventBatch output = new WordEventBatch();
+
+            @Override
+            public void processTextReceived(final int channel, final @NotNull WordEvent[] words) {
+                for (final WordEvent word : words) {
+                    output.addText(channel, word);
+                }
+                nextStage.putBatch(output);
+                output.clear();
+            }
+
+            @Override
+            public void processEndOfSentence(final int channel) {
+            }
+
+            @Override
+            public void processKeyword(final int channel, final @NotNull WordEvent keyword) {
+            }
+
+            @Override
+            public void processError(final @NotNull String text) {
+            }
+
+            @Override
+            public void processReset() {
+            }
+        };
+        splitter.setChainScheduler(scheduler);
+        collector.start();
+        splitter.start();
+
+        final StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 40; i++) {
+            text.append(" w").append(i);
+        }
+        splitter.putText(0, text.toString());
+        collector.await(40);
+
+        splitter.stop();
+        collector.stop();
+
+        final List<String> expected = new ArrayList<>();
+        for (int i = 0; i < 40; i++) {
+            expected.add("0:w" + i);
+        }
+        assertEquals(policy.toString(), expected, collector.snapshot());
+        assertTrue(collector.getSpilledEvents() > 0);
+    }
+
+    /**
+     * Keep the words received, and forward them to the next stage if any.
+     */
+    private static final class CollectingStage extends WordReceiver {
+        private final List<String> words = Collections.synchronizedList(new ArrayList<>());
+
+        // Time spent on each text, for a stage falling behind
+        volatile long processingDelayMs = 0;
+
+        CollectingStage(final WordReceiver nextStage) {
+            super(nextStage);
+        }
+
+        @Override
+        public void processTextReceived(final int channel, final @NotNull WordEvent[] received) {
+            if (processingDelayMs > 0) {
+                try {
+                    Thread.sleep(processingDelayMs);
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+
+            for (final WordEvent word : received) {
+                words.add(channel + ":" + word.getWord());
+            }
+            if (nextStage != null) {
+                nextStage.putText(channel, received);
+            }
+        }
+
+        @Override
+        public void processEndOfSentence(final int channel) {
+        }
+
+        @Override
+        public void processKeyword(final int channel, final @NotNull WordEvent keyword) {
+        }
+
+        @Override
+        public void processError(final @NotNull String text) {
+        }
+
+        @Override
+        public void processReset() {
+        }
+
+        void await(final int count) throws InterruptedException {
+            while (words.size() < count) {
+                Thread.sleep(1);
+            }
+        }
+
+        @NotNull List<String> snapshot() {
+            synchronized (words) {
+                return new ArrayList<>(words);
+            }
+        }
+    }
+}